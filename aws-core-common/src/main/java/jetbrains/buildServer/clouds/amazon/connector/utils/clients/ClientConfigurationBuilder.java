@@ -2,6 +2,9 @@ package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Protocol;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.StringUtil;
@@ -13,12 +16,81 @@ import org.jetbrains.annotations.Nullable;
 import static jetbrains.buildServer.serverSide.TeamCityProperties.getInteger;
 import static jetbrains.buildServer.serverSide.TeamCityProperties.getPropertyOrNull;
 
+/**
+ * Creates client configurations from the {@code teamcity.<suffix>.timeout}, {@code teamcity.http.proxy.*.<suffix>}
+ * and {@code teamcity.http.pool.*.<suffix>} internal properties, falling back to the {@code aws} suffix.
+ * The pool properties are {@code maxConnections}, {@code connectionTtlMs}, {@code maxIdleMs},
+ * {@code validateAfterInactivityMs}, {@code tcpKeepAlive} and {@code idleConnectionReaper}, the SDK defaults
+ * are used for the missing ones. Use {@link ConnectionPoolMetrics#newCollector} to see how full the pools are.
+ * <p>
+ * The configuration built for a suffix is kept as a template for {@link #TEMPLATE_TTL_SEC} seconds, so changed
+ * properties are picked up after that time, and every call returns a copy of it. At most {@link #MAX_TEMPLATES}
+ * recently used suffixes are kept.
+ */
 public class ClientConfigurationBuilder {
+  static final String TEMPLATE_TTL_SEC = "teamcity.aws.clientConfiguration.templateTtlSec";
+  private static final int DEFAULT_TEMPLATE_TTL_SEC = 30;
+  static final int MAX_TEMPLATES = 1000;
+
+  private static final Map<String, Template> ourTemplates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Template> eldest) {
+      return size() > MAX_TEMPLATES;
+    }
+  };
 
   public static ClientConfiguration createClientConfigurationEx(@Nullable String suffix, @Nullable ConnectionSocketFactory socketFactory){
     if (StringUtil.isEmpty(suffix)){
       suffix = AwsCloudConnectorConstants.DEFAULT_SUFFIX;
     }
+    final ClientConfiguration config = new ClientConfiguration(getTemplate(suffix));
+
+    if (socketFactory != null) {
+      config.getApacheHttpClientConfig().withSslSocketFactory(socketFactory);
+    }
+
+    return config;
+  }
+
+  public static ClientConfiguration createClientConfigurationEx(@Nullable String suffix){
+    return createClientConfigurationEx(suffix, null);
+  }
+
+  /**
+   * @return configuration shared by all callers, must not be changed
+   */
+  @NotNull
+  private static ClientConfiguration getTemplate(@NotNull String suffix) {
+    final long now = System.nanoTime();
+    synchronized (ourTemplates) {
+      final Template template = ourTemplates.get(suffix);
+      if (template != null && now - template.myExpiresAt < 0) {
+        return template.myConfiguration;
+      }
+    }
+    final long ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, TeamCityProperties.getInteger(TEMPLATE_TTL_SEC, DEFAULT_TEMPLATE_TTL_SEC)));
+    final ClientConfiguration configuration = buildClientConfiguration(suffix);
+    synchronized (ourTemplates) {
+      if (ttlNanos > 0) {
+        ourTemplates.put(suffix, new Template(configuration, now + ttlNanos));
+      } else {
+        ourTemplates.remove(suffix);
+      }
+    }
+    return configuration;
+  }
+
+  /**
+   * Makes the next calls read the internal properties again
+   */
+  static void clearTemplates() {
+    synchronized (ourTemplates) {
+      ourTemplates.clear();
+    }
+  }
+
+  @NotNull
+  private static ClientConfiguration buildClientConfiguration(@NotNull String suffix) {
     final ClientConfiguration config = new ClientConfiguration();
 
     int connectionTimeout = TeamCityProperties.getInteger(String.format("teamcity.%s.timeout", suffix), AwsCloudConnectorConstants.DEFAULT_CONNECTION_TIMEOUT);
@@ -37,15 +109,16 @@ public class ClientConfigurationBuilder {
     config.setProxyPassword(getPropertyEx(PREFIX + "password", suffix, config.getProxyPassword()));
     config.setProxyWorkstation(getPropertyEx(PREFIX + "workstation", suffix, config.getProxyWorkstation()));
 
-    if (socketFactory != null) {
-      config.getApacheHttpClientConfig().withSslSocketFactory(socketFactory);
-    }
+    final String POOL_PREFIX = "teamcity.http.pool.";
 
-    return config;
-  }
+    config.setMaxConnections(getIntegerEx(POOL_PREFIX + "maxConnections", suffix, config.getMaxConnections()));
+    config.setConnectionTTL(getIntegerEx(POOL_PREFIX + "connectionTtlMs", suffix, (int)config.getConnectionTTL()));
+    config.setConnectionMaxIdleMillis(getIntegerEx(POOL_PREFIX + "maxIdleMs", suffix, (int)config.getConnectionMaxIdleMillis()));
+    config.setValidateAfterInactivityMillis(getIntegerEx(POOL_PREFIX + "validateAfterInactivityMs", suffix, config.getValidateAfterInactivityMillis()));
+    config.setUseTcpKeepAlive(getBooleanEx(POOL_PREFIX + "tcpKeepAlive", suffix, config.useTcpKeepAlive()));
+    config.setUseReaper(getBooleanEx(POOL_PREFIX + "idleConnectionReaper", suffix, config.useReaper()));
 
-  public static ClientConfiguration createClientConfigurationEx(@Nullable String suffix){
-    return createClientConfigurationEx(suffix, null);
+    return config;
   }
 
   private static String getPropertyEx(@NotNull String baseName, @NotNull String suffix, @Nullable String defaultValue){
@@ -54,10 +127,27 @@ public class ClientConfigurationBuilder {
     return propertyOrNull == null ? defaultValue : propertyOrNull;
   }
 
+  private static boolean getBooleanEx(@NotNull String baseName, @NotNull String suffix, boolean defaultValue){
+    final String value = getPropertyEx(baseName, suffix, null);
+
+    return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+  }
+
   private static Integer getIntegerEx(@NotNull String baseName, @NotNull String suffix, int defaultValue){
     final int intValue = getInteger(baseName + "."+ suffix, getInteger(baseName + "." + AwsCloudConnectorConstants.DEFAULT_SUFFIX));
 
     return intValue == 0 ? defaultValue : intValue;
 
   }
+
+  private static final class Template {
+    @NotNull
+    private final ClientConfiguration myConfiguration;
+    private final long myExpiresAt;
+
+    private Template(@NotNull final ClientConfiguration configuration, final long expiresAt) {
+      myConfiguration = configuration;
+      myExpiresAt = expiresAt;
+    }
+  }
 }
@@ -0,0 +1,49 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.handlers.RequestHandler2;
+import java.util.ArrayList;
+import java.util.List;
+import jetbrains.buildServer.util.amazon.retry.AdaptiveRateLimiter;
+import jetbrains.buildServer.util.amazon.retry.CircuitBreaker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Adds what every AWS client is built with: the {@link CircuitBreaker} and {@link AdaptiveRateLimiter} request handlers
+ * and the {@link ConnectionPoolMetrics} collector of the client suffix. The request handlers set on the builder before are kept
+ * and run first, a metrics collector set before isn't replaced.
+ */
+public class ClientRequestHandlers {
+
+  /**
+   * @param suffix same suffix as the one of the client configuration, the {@code aws} one if null or empty
+   * @return the given builder
+   */
+  @NotNull
+  public static <B extends AwsClientBuilder<B, ?>> B withStandardHandlers(@NotNull final B builder, @Nullable final String suffix) {
+    if (builder.getMetricsCollector() == null) {
+      builder.setMetricsCollector(ConnectionPoolMetrics.newCollector(suffix));
+    }
+    final List<RequestHandler2> handlers = new ArrayList<>();
+    if (builder.getRequestHandlers() != null) {
+      handlers.addAll(builder.getRequestHandlers());
+    }
+    handlers.add(CircuitBreaker.newRequestHandler());
+    handlers.add(AdaptiveRateLimiter.newRequestHandler());
+    return builder.withRequestHandlers(handlers.toArray(new RequestHandler2[0]));
+  }
+
+  /**
+   * Adds the request handlers to a client created with its constructor, the collector is passed to the constructor there
+   *
+   * @return the given client
+   */
+  @NotNull
+  public static <C extends AmazonWebServiceClient> C withStandardHandlers(@NotNull final C client) {
+    client.addRequestHandler(CircuitBreaker.newRequestHandler());
+    client.addRequestHandler(AdaptiveRateLimiter.newRequestHandler());
+    return client;
+  }
+}
@@ -0,0 +1,281 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+import com.intellij.openapi.diagnostic.Logger;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Leased, available and pending connections of the HTTP connection pools of the clients, summed up per client suffix.
+ * <p>
+ * The SDK samples the pool of a client before sending every request if the client has a request metric collector,
+ * so a client built with {@link #newCollector(String)} reports the counts seen by its latest request. Clients which
+ * were shut down with {@link #unregister(Object)} or garbage collected aren't counted anymore. Every suffix with clients
+ * is also published as an MXBean named {@code jetbrains.buildServer.aws:type=HttpConnectionPool,suffix=<suffix>},
+ * which is unregistered once the last client of the suffix is gone.
+ * <p>
+ * Set {@link #METRICS_ENABLED} to false to build clients without the collector.
+ */
+public final class ConnectionPoolMetrics {
+  static final String METRICS_ENABLED = "teamcity.http.pool.metrics.enabled";
+  static final String OBJECT_NAME = "jetbrains.buildServer.aws:type=HttpConnectionPool,suffix=";
+  private static final Logger LOG = Logger.getInstance(ConnectionPoolMetrics.class.getName());
+  private static final ConnectionPoolMetrics INSTANCE = new ConnectionPoolMetrics();
+
+  private final Map<String, Map<PoolCollector, Boolean>> myCollectors = new HashMap<>();
+
+  private ConnectionPoolMetrics() {
+  }
+
+  @NotNull
+  public static ConnectionPoolMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param suffix suffix the client configuration was created with, see {@link ClientConfigurationBuilder}
+   * @return collector to build a single client with
+   */
+  @NotNull
+  public static RequestMetricCollector newCollector(@Nullable String suffix) {
+    if (!TeamCityProperties.getBooleanOrTrue(METRICS_ENABLED)) {
+      return RequestMetricCollector.NONE;
+    }
+    if (StringUtil.isEmpty(suffix)) {
+      suffix = AwsCloudConnectorConstants.DEFAULT_SUFFIX;
+    }
+    return INSTANCE.register(suffix);
+  }
+
+  /**
+   * Stops counting the connection pool of a client, call it when the client is shut down.
+   * Clients built without a collector of {@link #newCollector(String)} are ignored.
+   */
+  public static void unregister(@NotNull final Object client) {
+    if (!(client instanceof AmazonWebServiceClient)) return;
+    final RequestMetricCollector collector = ((AmazonWebServiceClient)client).getRequestMetricsCollector();
+    if (collector instanceof PoolCollector) {
+      INSTANCE.unregister((PoolCollector)collector);
+    }
+  }
+
+  private void unregister(@NotNull final PoolCollector collector) {
+    synchronized (myCollectors) {
+      final Map<PoolCollector, Boolean> collectors = myCollectors.get(collector.mySuffix);
+      if (collectors == null) return;
+      collectors.remove(collector);
+      removeIfEmpty(collector.mySuffix, collectors);
+    }
+  }
+
+  /**
+   * Removes the suffix without clients together with its MXBean, must be called under the lock,
+   * so the MXBean isn't published for a new client at the same time
+   */
+  private void removeIfEmpty(@NotNull final String suffix, @NotNull final Map<PoolCollector, Boolean> collectors) {
+    if (!collectors.isEmpty()) return;
+    myCollectors.remove(suffix);
+    unpublish(suffix);
+  }
+
+  /**
+   * Removes the suffixes which clients were all garbage collected, must be called under the lock
+   */
+  private void removeEmpty() {
+    for (Map.Entry<String, Map<PoolCollector, Boolean>> entry : new ArrayList<>(myCollectors.entrySet())) {
+      removeIfEmpty(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @NotNull
+  private PoolCollector register(@NotNull final String suffix) {
+    final PoolCollector collector = new PoolCollector(suffix);
+    synchronized (myCollectors) {
+      removeEmpty();
+      Map<PoolCollector, Boolean> collectors = myCollectors.get(suffix);
+      if (collectors == null) {
+        collectors = new WeakHashMap<>();
+        myCollectors.put(suffix, collectors);
+        publish(suffix);
+      }
+      collectors.put(collector, Boolean.TRUE);
+    }
+    return collector;
+  }
+
+  private void publish(@NotNull final String suffix) {
+    try {
+      final ObjectName name = getObjectName(suffix);
+      if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new PoolMXBeanImpl(suffix), name);
+      }
+    } catch (JMException | RuntimeException e) {
+      LOG.warnAndDebugDetails("Failed to publish HTTP connection pool metrics of " + suffix + " clients", e);
+    }
+  }
+
+  private void unpublish(@NotNull final String suffix) {
+    try {
+      final ObjectName name = getObjectName(suffix);
+      if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      }
+    } catch (JMException | RuntimeException e) {
+      LOG.warnAndDebugDetails("Failed to unpublish HTTP connection pool metrics of " + suffix + " clients", e);
+    }
+  }
+
+  @NotNull
+  static ObjectName getObjectName(@NotNull final String suffix) throws JMException {
+    return new ObjectName(OBJECT_NAME + ObjectName.quote(suffix));
+  }
+
+  @NotNull
+  public Stats getStats(@NotNull final String suffix) {
+    int leased = 0, available = 0, pending = 0, clients = 0;
+    synchronized (myCollectors) {
+      final Map<PoolCollector, Boolean> collectors = myCollectors.get(suffix);
+      if (collectors != null) {
+        for (PoolCollector collector : collectors.keySet()) {
+          leased += collector.myLeased;
+          available += collector.myAvailable;
+          pending += collector.myPending;
+          clients++;
+        }
+      }
+    }
+    return new Stats(leased, available, pending, clients);
+  }
+
+  /**
+   * @return stats of all suffixes with clients, sorted by suffix
+   */
+  @NotNull
+  public SortedMap<String, Stats> getStats() {
+    final Set<String> suffixes;
+    synchronized (myCollectors) {
+      removeEmpty();
+      suffixes = new HashSet<>(myCollectors.keySet());
+    }
+    final SortedMap<String, Stats> result = new TreeMap<>();
+    for (String suffix : suffixes) {
+      result.put(suffix, getStats(suffix));
+    }
+    return result;
+  }
+
+  public static final class Stats {
+    private final int myLeased;
+    private final int myAvailable;
+    private final int myPending;
+    private final int myClients;
+
+    private Stats(final int leased, final int available, final int pending, final int clients) {
+      myLeased = leased;
+      myAvailable = available;
+      myPending = pending;
+      myClients = clients;
+    }
+
+    public int getLeased() {
+      return myLeased;
+    }
+
+    public int getAvailable() {
+      return myAvailable;
+    }
+
+    public int getPending() {
+      return myPending;
+    }
+
+    public int getClients() {
+      return myClients;
+    }
+
+    @Override
+    public String toString() {
+      return "leased=" + myLeased + ", available=" + myAvailable + ", pending=" + myPending + ", clients=" + myClients;
+    }
+  }
+
+  public interface PoolMXBean {
+    int getLeased();
+
+    int getAvailable();
+
+    int getPending();
+
+    int getClients();
+  }
+
+  private final class PoolMXBeanImpl implements PoolMXBean {
+    @NotNull
+    private final String mySuffix;
+
+    private PoolMXBeanImpl(@NotNull final String suffix) {
+      mySuffix = suffix;
+    }
+
+    @Override
+    public int getLeased() {
+      return getStats(mySuffix).getLeased();
+    }
+
+    @Override
+    public int getAvailable() {
+      return getStats(mySuffix).getAvailable();
+    }
+
+    @Override
+    public int getPending() {
+      return getStats(mySuffix).getPending();
+    }
+
+    @Override
+    public int getClients() {
+      return getStats(mySuffix).getClients();
+    }
+  }
+
+  /**
+   * Remembers the pool counts sampled by the SDK for the latest request of a client
+   */
+  private static final class PoolCollector extends RequestMetricCollector {
+    @NotNull
+    private final String mySuffix;
+    private volatile int myLeased = 0;
+    private volatile int myAvailable = 0;
+    private volatile int myPending = 0;
+
+    private PoolCollector(@NotNull final String suffix) {
+      mySuffix = suffix;
+    }
+
+    @Override
+    public void collectMetrics(final Request<?> request, final Response<?> response) {
+      final AWSRequestMetrics metrics = request.getAWSRequestMetrics();
+      if (metrics == null) return;
+      final TimingInfo timingInfo = metrics.getTimingInfo();
+      final Number leased = timingInfo.getCounter(AWSRequestMetrics.Field.HttpClientPoolLeasedCount.name());
+      final Number available = timingInfo.getCounter(AWSRequestMetrics.Field.HttpClientPoolAvailableCount.name());
+      final Number pending = timingInfo.getCounter(AWSRequestMetrics.Field.HttpClientPoolPendingCount.name());
+      if (leased == null || available == null || pending == null) return;
+      myLeased = leased.intValue();
+      myAvailable = available.intValue();
+      myPending = pending.intValue();
+    }
+  }
+}
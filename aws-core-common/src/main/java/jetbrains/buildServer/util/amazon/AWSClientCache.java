@@ -0,0 +1,241 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SystemDefaultDnsResolver;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.http.SystemPropertyTlsKeyManagersProvider;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Shares SDK clients created by {@link AWSClients}, so every caller with the same settings doesn't
+ * start its own HTTP connection pool and connection reaper.
+ * <p>
+ * Clients are keyed by the client kind, credentials, region, endpoint, S3 addressing options and every
+ * {@link ClientConfiguration} setting affecting the client, are handed out as ref-counted leases and shut
+ * down after staying unused for {@link #IDLE_TIMEOUT_SEC} seconds. Basic credentials are compared by value, any other
+ * credentials by identity. Leased clients must not be shut down or reconfigured by the callers.
+ */
+public final class AWSClientCache {
+  @NotNull
+  static final String CACHE_ENABLED = "amazon.clients.cache.enabled";
+  @NotNull
+  static final String IDLE_TIMEOUT_SEC = "amazon.clients.cache.idleTimeoutSec";
+  static final int DEFAULT_IDLE_TIMEOUT_SEC = 300;
+  @NotNull
+  private static final AWSClientCache INSTANCE = new AWSClientCache();
+
+  @NotNull
+  private final RefCountedPool<Key, Object> myPool = new RefCountedPool<>("cached client", "amazon-util-client-cache-evictor",
+                                                                         IDLE_TIMEOUT_SEC, DEFAULT_IDLE_TIMEOUT_SEC, client -> true);
+
+  private AWSClientCache() {
+  }
+
+  @NotNull
+  static AWSClientCache getInstance() {
+    return INSTANCE;
+  }
+
+  static boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(CACHE_ENABLED);
+  }
+
+  /**
+   * @param factory  creates the client if there is no cached one for the key
+   * @param shutdown shuts the client down when it's evicted
+   */
+  @NotNull
+  @SuppressWarnings("unchecked")
+  <T> Lease<T> acquire(@NotNull final Key key, @NotNull final Supplier<T> factory, @NotNull final Consumer<? super T> shutdown) {
+    final Consumer<Object> untypedShutdown = client -> shutdown.accept((T)client);
+    if (!isEnabled()) {
+      return new Lease<>(myPool.unpooled(key, factory.get(), untypedShutdown));
+    }
+    return new Lease<>(myPool.acquire(key, factory, untypedShutdown));
+  }
+
+  /**
+   * @return true if the client is one of the cached ones, so other callers get the same instance
+   */
+  boolean isCached(@NotNull final Object client) {
+    return myPool.contains(client);
+  }
+
+  /**
+   * Shuts down all idle clients immediately, leased ones are shut down when released
+   */
+  void clear() {
+    myPool.clear();
+  }
+
+  /**
+   * Client shared with other callers, close the lease instead of shutting the client down
+   */
+  public static final class Lease<T> implements AutoCloseable {
+    @NotNull
+    private final RefCountedPool.Lease<Object> myLease;
+
+    private Lease(@NotNull final RefCountedPool.Lease<Object> lease) {
+      myLease = lease;
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public T getClient() {
+      return (T)myLease.get();
+    }
+
+    @Override
+    public void close() {
+      myLease.close();
+    }
+  }
+
+  static final class Key {
+    @NotNull
+    private final String myKind;
+    @Nullable
+    private final AWSCredentials myCredentials;
+    @NotNull
+    private final String myRegion;
+    @Nullable
+    private final String myServiceEndpoint;
+    private final boolean myPathStyleAccess;
+    private final boolean myAccelerateMode;
+    @NotNull
+    private final List<Object> myClientConfiguration;
+
+    /**
+     * @param kind        client interface the key is for, e.g. "s3"
+     * @param credentials null for the default credentials provider chain
+     */
+    Key(@NotNull final String kind,
+        @Nullable final AWSCredentials credentials,
+        @NotNull final String region,
+        @Nullable final String serviceEndpoint,
+        final boolean pathStyleAccess,
+        final boolean accelerateMode,
+        @NotNull final ClientConfiguration clientConfiguration) {
+      myKind = kind;
+      myCredentials = credentials;
+      myRegion = region;
+      myServiceEndpoint = serviceEndpoint;
+      myPathStyleAccess = pathStyleAccess;
+      myAccelerateMode = accelerateMode;
+      myClientConfiguration = snapshot(clientConfiguration);
+    }
+
+    /**
+     * Every setting which affects the created client. Settings holding objects are compared by identity,
+     * except the default DNS resolver and TLS key managers provider which are created for every configuration.
+     * The secure random isn't included, it's created lazily by the configuration itself.
+     */
+    @NotNull
+    private static List<Object> snapshot(@NotNull final ClientConfiguration configuration) {
+      return Arrays.asList(configuration.getSignerOverride(),
+                           configuration.getProtocol(),
+                           configuration.getConnectionTimeout(),
+                           configuration.getSocketTimeout(),
+                           configuration.getRequestTimeout(),
+                           configuration.getClientExecutionTimeout(),
+                           configuration.getMaxConnections(),
+                           configuration.getConnectionTTL(),
+                           configuration.getConnectionMaxIdleMillis(),
+                           configuration.getValidateAfterInactivityMillis(),
+                           configuration.useTcpKeepAlive(),
+                           configuration.useReaper(),
+                           configuration.useGzip(),
+                           configuration.isUseExpectContinue(),
+                           configuration.isDisableHostPrefixInjection(),
+                           Arrays.toString(configuration.getSocketBufferSizeHints()),
+                           configuration.getLocalAddress(),
+                           configuration.getUserAgentPrefix(),
+                           configuration.getUserAgentSuffix(),
+                           new HashMap<>(configuration.getHeaders()),
+                           configuration.getRetryPolicy(),
+                           configuration.getMaxErrorRetry(),
+                           configuration.getRetryMode(),
+                           configuration.useThrottledRetries(),
+                           configuration.getMaxConsecutiveRetriesBeforeThrottling(),
+                           configuration.getCacheResponseMetadata(),
+                           configuration.getResponseMetadataCacheSize(),
+                           configuration.getProxyProtocol(),
+                           configuration.getProxyHost(),
+                           configuration.getProxyPort(),
+                           configuration.getNonProxyHosts(),
+                           configuration.getProxyDomain(),
+                           configuration.getProxyUsername(),
+                           configuration.getProxyPassword(),
+                           configuration.getProxyWorkstation(),
+                           configuration.getProxyAuthenticationMethods(),
+                           configuration.isPreemptiveBasicProxyAuth(),
+                           configuration.getApacheHttpClientConfig().getSslSocketFactory(),
+                           statelessByClass(configuration.getDnsResolver(), SystemDefaultDnsResolver.class),
+                           statelessByClass(configuration.getTlsKeyManagersProvider(), SystemPropertyTlsKeyManagersProvider.class));
+    }
+
+    @Nullable
+    private static Object statelessByClass(@Nullable final Object value, @NotNull final Class<?> statelessClass) {
+      return value != null && value.getClass() == statelessClass ? statelessClass : value;
+    }
+
+    private static boolean isComparedByValue(@Nullable final AWSCredentials credentials) {
+      return credentials != null && (credentials.getClass() == BasicAWSCredentials.class || credentials.getClass() == BasicSessionCredentials.class);
+    }
+
+    private static boolean sameCredentials(@Nullable final AWSCredentials first, @Nullable final AWSCredentials second) {
+      if (first == second) return true;
+      if (second == null || !isComparedByValue(first) || first.getClass() != second.getClass()) return false;
+      return first.getAWSAccessKeyId().equals(second.getAWSAccessKeyId()) &&
+             first.getAWSSecretKey().equals(second.getAWSSecretKey()) &&
+             (!(first instanceof AWSSessionCredentials) ||
+              Objects.equals(((AWSSessionCredentials)first).getSessionToken(), ((AWSSessionCredentials)second).getSessionToken()));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final Key key = (Key)o;
+      return myKind.equals(key.myKind) &&
+             sameCredentials(myCredentials, key.myCredentials) &&
+             myRegion.equals(key.myRegion) &&
+             Objects.equals(myServiceEndpoint, key.myServiceEndpoint) &&
+             myPathStyleAccess == key.myPathStyleAccess &&
+             myAccelerateMode == key.myAccelerateMode &&
+             myClientConfiguration.equals(key.myClientConfiguration);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = myKind.hashCode();
+      result = 31 * result + (isComparedByValue(myCredentials) ? myCredentials.getAWSAccessKeyId().hashCode() : System.identityHashCode(myCredentials));
+      result = 31 * result + myRegion.hashCode();
+      result = 31 * result + Objects.hashCode(myServiceEndpoint);
+      result = 31 * result + Boolean.hashCode(myPathStyleAccess);
+      result = 31 * result + Boolean.hashCode(myAccelerateMode);
+      result = 31 * result + myClientConfiguration.hashCode();
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      // no secrets here
+      return myKind +
+             "{credentials=" + (myCredentials == null ? "default" : isComparedByValue(myCredentials) ? myCredentials.getAWSAccessKeyId() : "@" + Integer.toHexString(System.identityHashCode(myCredentials))) +
+             ", region=" + myRegion +
+             (myServiceEndpoint != null ? ", endpoint=" + myServiceEndpoint : "") +
+             ", pathStyleAccess=" + myPathStyleAccess +
+             ", accelerateMode=" + myAccelerateMode +
+             '}';
+    }
+  }
+}
@@ -6,7 +6,6 @@ import com.amazonaws.AmazonWebServiceClient;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.*;
 import com.amazonaws.client.builder.AwsClientBuilder;
-import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.services.cloudfront.AmazonCloudFront;
 import com.amazonaws.services.cloudfront.AmazonCloudFrontClientBuilder;
 import com.amazonaws.services.codebuild.AWSCodeBuildClient;
@@ -18,6 +17,8 @@ import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.amazonaws.services.securitytoken.model.Credentials;
+import java.util.function.Consumer;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ConnectionPoolMetrics;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.regions.AWSRegions;
 import jetbrains.buildServer.log.Loggers;
@@ -25,6 +26,8 @@ import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import static jetbrains.buildServer.clouds.amazon.connector.utils.clients.ClientRequestHandlers.withStandardHandlers;
+
 /**
  * @author vbedrosova
  */
@@ -75,55 +78,74 @@ public class AWSClients {
                                                   @NotNull final String iamRoleARN, @Nullable final String externalID,
                                                   @NotNull final String sessionName, final int sessionDuration,
                                                   @NotNull final String region) {
-    return fromExistingCredentials(new AWSCommonParams.LazyCredentials() {
-      @NotNull
-      @Override
-      protected AWSSessionCredentials createCredentials() {
-        return AWSClients.fromBasicCredentials(accessKeyId, secretAccessKey, region).createSessionCredentials(iamRoleARN, externalID, sessionName, sessionDuration);
-      }
-    }, region);
+    return fromExistingCredentials(createSessionCredentials(accessKeyId, secretAccessKey, iamRoleARN, externalID, sessionName, sessionDuration, region), region);
   }
 
   @NotNull
   public static AWSClients fromSessionCredentials(@NotNull final String iamRoleARN, @Nullable final String externalID,
                                                   @NotNull final String sessionName, final int sessionDuration,
                                                   @NotNull final String region) {
-    return fromExistingCredentials(new AWSCommonParams.LazyCredentials() {
+    return fromExistingCredentials(createSessionCredentials(null, null, iamRoleARN, externalID, sessionName, sessionDuration, region), region);
+  }
+
+  /**
+   * @param accessKeyId     null to assume the role with the default credentials provider chain
+   * @param secretAccessKey null to assume the role with the default credentials provider chain
+   */
+  @NotNull
+  static RefreshingSessionCredentials createSessionCredentials(@Nullable final String accessKeyId, @Nullable final String secretAccessKey,
+                                                               @NotNull final String iamRoleARN, @Nullable final String externalID,
+                                                               @NotNull final String sessionName, final int sessionDuration,
+                                                               @NotNull final String region) {
+    return new RefreshingSessionCredentials() {
       @NotNull
       @Override
-      protected AWSSessionCredentials createCredentials() {
-        return AWSClients.fromDefaultCredentialProviderChain(region).createSessionCredentials(iamRoleARN, externalID, sessionName, sessionDuration);
+      protected Credentials requestCredentials() {
+        final AWSClients clients = accessKeyId == null || secretAccessKey == null
+                                   ? AWSClients.fromDefaultCredentialProviderChain(region)
+                                   : AWSClients.fromBasicCredentials(accessKeyId, secretAccessKey, region);
+        return clients.assumeRole(iamRoleARN, externalID, sessionName, sessionDuration);
       }
-    }, region);
+    };
   }
 
   @NotNull
-  private static AWSClients fromExistingCredentials(@Nullable AWSCredentials credentials, @NotNull String region) {
+  static AWSClients fromExistingCredentials(@Nullable AWSCredentials credentials, @NotNull String region) {
     return new AWSClients(credentials, region);
   }
 
   @NotNull
   public AmazonS3 createS3Client() {
-    if (StringUtil.isNotEmpty(myS3SignerType)) {
-      myClientConfiguration.withSignerOverride(myS3SignerType);
-    }
+    final ClientConfiguration configuration = getS3ClientConfiguration();
+    final AmazonS3 s3Client = createS3Client(configuration);
+    final AWSClientCache.Key key = createCacheKey("s3", configuration);
+    // the callers usually create a client for every transfer, the cached one of the same settings lets them share the transfer managers
+    TransferManagerPool.getInstance().registerSharedClient(s3Client, () -> AWSClientCache.getInstance().acquire(key, () -> createS3Client(configuration), S3Util::shutdownClient));
+    return s3Client;
+  }
 
+  /**
+   * @return lease of an S3 client shared by all callers with the same settings, see {@link AWSClientCache}
+   */
+  @NotNull
+  public AWSClientCache.Lease<AmazonS3> leaseS3Client() {
+    final ClientConfiguration configuration = getS3ClientConfiguration();
+    return AWSClientCache.getInstance().acquire(createCacheKey("s3", configuration), () -> createS3Client(configuration), S3Util::shutdownClient);
+  }
+
+  @NotNull
+  private AmazonS3 createS3Client(@NotNull final ClientConfiguration configuration) {
     final AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
-                                                               .withClientConfiguration(myClientConfiguration)
+                                                               .withClientConfiguration(configuration)
                                                                .withAccelerateModeEnabled(myAccelerateModeEnabled)
                                                                .withPathStyleAccessEnabled(!myDisablePathStyleAccess);
+    withStandardHandlers(builder, null);
 
     if (myCredentials != null) {
-      builder.withCredentials(new AWSStaticCredentialsProvider(myCredentials));
+      builder.withCredentials(getCredentialsProvider(myCredentials));
     }
 
-    // null in myRegion will cause S3 client instantiation to fail
-    // we ensure, that we have at least default region
-    String region = myRegion;
-
-    if (myRegion == null) {
-      region = AwsCloudConnectorConstants.REGION_NAME_DEFAULT;
-    }
+    final String region = getRegionOrDefault();
 
     if (StringUtil.isNotEmpty(myServiceEndpoint)) {
       builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(myServiceEndpoint, region));
@@ -134,37 +156,59 @@ public class AWSClients {
     return builder.build();
   }
 
+  /**
+   * @return copy of the client configuration with the S3 signer, the shared configuration is never changed
+   */
+  @NotNull
+  private ClientConfiguration getS3ClientConfiguration() {
+    final ClientConfiguration configuration = new ClientConfiguration(myClientConfiguration);
+    if (StringUtil.isNotEmpty(myS3SignerType)) {
+      configuration.withSignerOverride(myS3SignerType);
+    }
+    return configuration;
+  }
+
   @NotNull
   public AmazonCodeDeployClient createCodeDeployClient() {
-    return withRegion(myCredentials == null ? new AmazonCodeDeployClient(myClientConfiguration) : new AmazonCodeDeployClient(myCredentials, myClientConfiguration));
+    return withRegion(withStandardHandlers(new AmazonCodeDeployClient(getCredentialsProvider(), myClientConfiguration, ConnectionPoolMetrics.newCollector(null))));
+  }
+
+  @NotNull
+  public AWSClientCache.Lease<AmazonCodeDeployClient> leaseCodeDeployClient() {
+    return AWSClientCache.getInstance().acquire(createCacheKey("codedeploy", myClientConfiguration), this::createCodeDeployClient, shutdown(AmazonCodeDeployClient::shutdown));
   }
 
   @NotNull
   public AWSCodePipelineClient createCodePipeLineClient() {
-    return withRegion(myCredentials == null ? new AWSCodePipelineClient(myClientConfiguration) : new AWSCodePipelineClient(myCredentials, myClientConfiguration));
+    return withRegion(withStandardHandlers(new AWSCodePipelineClient(getCredentialsProvider(), myClientConfiguration, ConnectionPoolMetrics.newCollector(null))));
+  }
+
+  @NotNull
+  public AWSClientCache.Lease<AWSCodePipelineClient> leaseCodePipeLineClient() {
+    return AWSClientCache.getInstance().acquire(createCacheKey("codepipeline", myClientConfiguration), this::createCodePipeLineClient, shutdown(AWSCodePipelineClient::shutdown));
   }
 
   @NotNull
   public AWSCodeBuildClient createCodeBuildClient() {
-    return withRegion(myCredentials == null ? new AWSCodeBuildClient(myClientConfiguration) : new AWSCodeBuildClient(myCredentials, myClientConfiguration));
+    return withRegion(withStandardHandlers(new AWSCodeBuildClient(getCredentialsProvider(), myClientConfiguration, ConnectionPoolMetrics.newCollector(null))));
+  }
+
+  @NotNull
+  public AWSClientCache.Lease<AWSCodeBuildClient> leaseCodeBuildClient() {
+    return AWSClientCache.getInstance().acquire(createCacheKey("codebuild", myClientConfiguration), this::createCodeBuildClient, shutdown(AWSCodeBuildClient::shutdown));
   }
 
   @NotNull
   public AmazonCloudFront createCloudFrontClient(){
     final AmazonCloudFrontClientBuilder builder = AmazonCloudFrontClientBuilder.standard()
                                                                                .withClientConfiguration(myClientConfiguration);
+    withStandardHandlers(builder, null);
 
     if (myCredentials != null) {
-      builder.withCredentials(new AWSStaticCredentialsProvider(myCredentials));
+      builder.withCredentials(getCredentialsProvider(myCredentials));
     }
 
-    // null in myRegion will cause S3 client instantiation to fail
-    // we ensure, that we have at least default region
-    String region = myRegion;
-
-    if (myRegion == null) {
-      region = AwsCloudConnectorConstants.REGION_NAME_DEFAULT;
-    }
+    final String region = getRegionOrDefault();
 
     if (StringUtil.isNotEmpty(myServiceEndpoint)) {
       builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(myServiceEndpoint, region));
@@ -175,18 +219,45 @@ public class AWSClients {
     return builder.build();
   }
 
+  @NotNull
+  public AWSClientCache.Lease<AmazonCloudFront> leaseCloudFrontClient() {
+    return AWSClientCache.getInstance().acquire(createCacheKey("cloudfront", myClientConfiguration), this::createCloudFrontClient, shutdown(AmazonCloudFront::shutdown));
+  }
+
+  @NotNull
+  private AWSClientCache.Key createCacheKey(@NotNull final String kind, @NotNull final ClientConfiguration configuration) {
+    return new AWSClientCache.Key(kind, myCredentials, getRegionOrDefault(), myServiceEndpoint, !myDisablePathStyleAccess, myAccelerateModeEnabled, configuration);
+  }
+
   @NotNull
   private AWSSecurityTokenService createSecurityTokenService() {
     AWSSecurityTokenServiceClientBuilder builder = AWSSecurityTokenServiceClientBuilder
       .standard()
       .withRegion(getRegion())
       .withClientConfiguration(myClientConfiguration);
+    withStandardHandlers(builder, null);
     if (myCredentials != null){
-      builder.withCredentials(new StaticCredentialsProvider(myCredentials));
+      builder.withCredentials(getCredentialsProvider(myCredentials));
     }
     return builder.build();
   }
 
+  /**
+   * @return provider of the client credentials, the default provider chain the client constructors use when there are none
+   */
+  @NotNull
+  private AWSCredentialsProvider getCredentialsProvider() {
+    return myCredentials == null ? DefaultAWSCredentialsProviderChain.getInstance() : getCredentialsProvider(myCredentials);
+  }
+
+  /**
+   * @return provider reading refreshed temporary credentials at once, other credentials never change
+   */
+  @NotNull
+  private static AWSCredentialsProvider getCredentialsProvider(@NotNull AWSCredentials credentials) {
+    return credentials instanceof AWSCredentialsProvider ? (AWSCredentialsProvider)credentials : new AWSStaticCredentialsProvider(credentials);
+  }
+
   @NotNull
   public String getRegion() {
     return myRegion;
@@ -208,22 +279,35 @@ public class AWSClients {
     myAccelerateModeEnabled = accelerateModeEnabled;
   }
 
+  /**
+   * @return shutdown of a cached client which also stops counting its connection pool
+   */
+  @NotNull
+  private static <T> Consumer<T> shutdown(@NotNull final Consumer<T> shutdown) {
+    return client -> {
+      ConnectionPoolMetrics.unregister(client);
+      shutdown.accept(client);
+    };
+  }
+
   @NotNull
   private <T extends AmazonWebServiceClient> T withRegion(@NotNull T client) {
-    // null in myRegion will cause S3 client instantiation to fail
-    // we ensure, that we have at least default region
-    String region = myRegion;
+    return client.withRegion(AWSRegions.getRegion(getRegionOrDefault()));
+  }
 
+  @NotNull
+  private String getRegionOrDefault() {
+    // null in myRegion will cause client instantiation to fail
+    // we ensure, that we have at least default region
     if (myRegion == null) {
       Loggers.SERVER.debug("Region is not specified, using default region: " + AwsCloudConnectorConstants.REGION_NAME_DEFAULT);
-      region = AwsCloudConnectorConstants.REGION_NAME_DEFAULT;
+      return AwsCloudConnectorConstants.REGION_NAME_DEFAULT;
     }
-
-    return client.withRegion(AWSRegions.getRegion(region));
+    return myRegion;
   }
 
   @NotNull
-  private AWSSessionCredentials createSessionCredentials(@NotNull String iamRoleARN, @Nullable String externalID, @NotNull String sessionName, int sessionDuration)
+  private Credentials assumeRole(@NotNull String iamRoleARN, @Nullable String externalID, @NotNull String sessionName, int sessionDuration)
     throws AWSException {
     final AssumeRoleRequest assumeRoleRequest =
       new AssumeRoleRequest()
@@ -234,9 +318,10 @@ public class AWSClients {
     if (StringUtil.isNotEmpty(externalID))
       assumeRoleRequest.setExternalId(externalID);
 
-    try {
-      final Credentials credentials = createSecurityTokenService().assumeRole(assumeRoleRequest).getCredentials();
-      return new BasicSessionCredentials(credentials.getAccessKeyId(), credentials.getSecretAccessKey(), credentials.getSessionToken());
+    try (AWSClientCache.Lease<AWSSecurityTokenService> sts = AWSClientCache.getInstance().acquire(createCacheKey("sts", myClientConfiguration),
+                                                                                                 this::createSecurityTokenService,
+                                                                                                 shutdown(AWSSecurityTokenService::shutdown))) {
+      return sts.getClient().assumeRole(assumeRoleRequest).getCredentials();
     } catch (Exception e) {
       throw new AWSException(e);
     }
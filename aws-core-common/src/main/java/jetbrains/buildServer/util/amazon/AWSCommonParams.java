@@ -3,13 +3,14 @@
 package jetbrains.buildServer.util.amazon;
 
 import com.amazonaws.ClientConfiguration;
-import com.amazonaws.Protocol;
 import com.amazonaws.auth.*;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ClientConfigurationBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ClientRequestHandlers;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.parameters.ReferencesResolverUtil;
@@ -17,12 +18,9 @@ import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
-import jetbrains.buildServer.version.ServerVersionHolder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import static jetbrains.buildServer.serverSide.TeamCityProperties.getInteger;
-import static jetbrains.buildServer.serverSide.TeamCityProperties.getPropertyOrNull;
 import static jetbrains.buildServer.util.amazon.AWSClients.*;
 
 /**
@@ -34,7 +32,6 @@ public final class AWSCommonParams {
   // "codedeploy_" prefix is for backward compatibility
 
   private static final String DEFAULT_SUFFIX = "aws";
-  private static final int DEFAULT_CONNECTION_TIMEOUT = 60 * 1000;
 
   public static final String ENVIRONMENT_NAME_PARAM = "aws.environment";
   public static final String ENVIRONMENT_NAME_LABEL = "AWS environment";
@@ -288,41 +285,11 @@ public final class AWSCommonParams {
     return createClientConfigurationEx(null);
   }
 
+  /**
+   * @see ClientConfigurationBuilder#createClientConfigurationEx(String)
+   */
   public static ClientConfiguration createClientConfigurationEx(@Nullable String suffix){
-    if (StringUtil.isEmpty(suffix)){
-      suffix = "aws";
-    }
-    final ClientConfiguration config = new ClientConfiguration();
-
-    int connectionTimeout = TeamCityProperties.getInteger(String.format("teamcity.%s.timeout", suffix), DEFAULT_CONNECTION_TIMEOUT);
-    config.setConnectionTimeout(connectionTimeout);
-    config.setSocketTimeout(connectionTimeout);
-    // version copy-pasted from jetbrains.buildServer.updates.VersionChecker.retrieveUpdates()
-    config.setUserAgentPrefix("TeamCity Server " + ServerVersionHolder.getVersion().getDisplayVersion() + " (build " + ServerVersionHolder.getVersion().getBuildNumber() + ")");
-    config.setProtocol(Protocol.HTTPS);
-
-    final String PREFIX = "teamcity.http.proxy.";
-
-    config.setProxyHost(getPropertyEx(PREFIX + "host", suffix, "aws", config.getProxyHost()));
-    config.setProxyPort(getIntegerEx(PREFIX + "port", suffix, "aws", config.getProxyPort()));
-    config.setProxyDomain(getPropertyEx(PREFIX + "domain", suffix, "aws", config.getProxyDomain()));
-    config.setProxyUsername(getPropertyEx(PREFIX + "user", suffix, "aws", config.getProxyUsername()));
-    config.setProxyPassword(getPropertyEx(PREFIX + "password", suffix, "aws", config.getProxyPassword()));
-    config.setProxyWorkstation(getPropertyEx(PREFIX + "workstation", suffix, "aws", config.getProxyWorkstation()));
-    return config;
-  }
-
-  private static String getPropertyEx(@NotNull String baseName, @NotNull String suffix, @NotNull String defaultSuffix, @Nullable String defaultValue){
-    final String propertyOrNull = getPropertyOrNull(baseName + "." + suffix, getPropertyOrNull(baseName + "." + defaultSuffix));
-
-    return propertyOrNull == null ? defaultValue : propertyOrNull;
-  }
-
-  private static Integer getIntegerEx(@NotNull String baseName, @NotNull String suffix, @NotNull String defaultSuffix, int defaultValue){
-    final int intValue = getInteger(baseName + "."+ suffix, getInteger(baseName + "." + defaultSuffix));
-
-    return intValue == 0 ? defaultValue : intValue;
-
+    return ClientConfigurationBuilder.createClientConfigurationEx(suffix);
   }
 
   public interface WithAWSClients<T, E extends Throwable> {
@@ -351,12 +318,17 @@ public final class AWSCommonParams {
     if (isTempCredentialsOption(getCredentialsType(params))) {
       final String iamRoleARN = getIamRoleArnParam(params);
       final String externalID = getExternalId(params);
-      final String sessionName = getStringOrDefault(params.get(TEMP_CREDENTIALS_SESSION_NAME_PARAM), TEMP_CREDENTIALS_SESSION_NAME_DEFAULT_PREFIX + new Date().getTime());
+      final String configuredSessionName = StringUtil.isEmptyOrSpaces(params.get(TEMP_CREDENTIALS_SESSION_NAME_PARAM)) ? null : params.get(TEMP_CREDENTIALS_SESSION_NAME_PARAM);
       final int sessionDuration = getIntegerOrDefault(params.get(TEMP_CREDENTIALS_DURATION_SEC_PARAM), TEMP_CREDENTIALS_DURATION_SEC_DEFAULT);
-
-      awsClients = isUseDefaultCredentialProviderChain(params)
-                   ? fromSessionCredentials(iamRoleARN, externalID, sessionName, sessionDuration, regionName)
-                   : fromSessionCredentials(accessKeyId, secretAccessKey, iamRoleARN, externalID, sessionName, sessionDuration, regionName);
+      final String sessionAccessKeyId = isUseDefaultCredentialProviderChain(params) ? null : accessKeyId;
+      final String sessionSecretAccessKey = isUseDefaultCredentialProviderChain(params) ? null : secretAccessKey;
+
+      final AssumedRoleSessionCache.Key key =
+        new AssumedRoleSessionCache.Key(regionName, sessionAccessKeyId, sessionSecretAccessKey, iamRoleARN, externalID, sessionDuration, configuredSessionName);
+      awsClients = fromExistingCredentials(AssumedRoleSessionCache.getInstance().get(key, () -> {
+        final String sessionName = getStringOrDefault(configuredSessionName, TEMP_CREDENTIALS_SESSION_NAME_DEFAULT_PREFIX + new Date().getTime());
+        return createSessionCredentials(sessionAccessKeyId, sessionSecretAccessKey, iamRoleARN, externalID, sessionName, sessionDuration, regionName);
+      }), regionName);
     } else {
       awsClients = isUseDefaultCredentialProviderChain(params) ?
                    fromDefaultCredentialProviderChain(regionName) :
@@ -399,8 +371,7 @@ public final class AWSCommonParams {
   @NotNull
   private static AWSSecurityTokenService createSecurityTokenService(Map<String, String> params) {
     final String region = getRegionName(params);
-    return AWSSecurityTokenServiceClientBuilder
-      .standard()
+    return ClientRequestHandlers.withStandardHandlers(AWSSecurityTokenServiceClientBuilder.standard(), "sts")
       .withRegion(region)
       .withClientConfiguration(createClientConfigurationEx("sts"))
       .withCredentials(getCredentialsProvider(params, true))
@@ -448,34 +419,4 @@ public final class AWSCommonParams {
   private static Collection<String> getIdentityFormingParams(@NotNull Map<String, String> params) {
     return Arrays.asList(getRegionName(params), getAccessKeyId(params), getIamRoleArnParam(params));
   }
-
-  // must implement AWSSessionCredentials as AWS SDK may use "instanceof"
-  static abstract class LazyCredentials implements AWSSessionCredentials {
-    @Nullable
-    private AWSSessionCredentials myDelegate = null;
-
-    @Override
-    public String getAWSAccessKeyId() {
-      return getDelegate().getAWSAccessKeyId();
-    }
-
-    @Override
-    public String getAWSSecretKey() {
-      return getDelegate().getAWSSecretKey();
-    }
-
-    @Override
-    public String getSessionToken() {
-      return getDelegate().getSessionToken();
-    }
-
-    @NotNull
-    private AWSSessionCredentials getDelegate() {
-      if (myDelegate == null) myDelegate = createCredentials();
-      return myDelegate;
-    }
-
-    @NotNull
-    protected abstract AWSSessionCredentials createCredentials();
-  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,136 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Shares assumed-role sessions between {@link AWSCommonParams#withAWSClients} calls with the same connection, so
+ * consecutive steps against the same role reuse the temporary credentials instead of calling AssumeRole every time.
+ * <p>
+ * Sessions are keyed by the region, access key (and secret), role ARN, external ID, session duration and the session
+ * name if it's set explicitly. The shared {@link RefreshingSessionCredentials} are requested again before they expire.
+ * At most {@link #MAX_SESSIONS} recently used sessions are kept. Set {@link #CACHE_ENABLED} to false to assume
+ * the role for every call.
+ */
+final class AssumedRoleSessionCache {
+  @NotNull
+  static final String CACHE_ENABLED = "teamcity.aws.tempCredentials.cache.enabled";
+  static final int MAX_SESSIONS = 100;
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AssumedRoleSessionCache.class.getName());
+  @NotNull
+  private static final AssumedRoleSessionCache INSTANCE = new AssumedRoleSessionCache();
+
+  @NotNull
+  private final Map<Key, RefreshingSessionCredentials> mySessions = new LinkedHashMap<Key, RefreshingSessionCredentials>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Key, RefreshingSessionCredentials> eldest) {
+      return size() > MAX_SESSIONS;
+    }
+  };
+
+  private AssumedRoleSessionCache() {
+  }
+
+  @NotNull
+  static AssumedRoleSessionCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param factory creates the credentials if there is no session for the key, must not request them
+   */
+  @NotNull
+  RefreshingSessionCredentials get(@NotNull final Key key, @NotNull final Supplier<RefreshingSessionCredentials> factory) {
+    if (!TeamCityProperties.getBooleanOrTrue(CACHE_ENABLED)) {
+      return factory.get();
+    }
+    synchronized (mySessions) {
+      RefreshingSessionCredentials credentials = mySessions.get(key);
+      if (credentials == null) {
+        credentials = factory.get();
+        mySessions.put(key, credentials);
+        LOG.debug(() -> "Created shared assumed-role session for " + key);
+      }
+      return credentials;
+    }
+  }
+
+  void clear() {
+    synchronized (mySessions) {
+      mySessions.clear();
+    }
+  }
+
+  static final class Key {
+    @NotNull
+    private final String myRegion;
+    @Nullable
+    private final String myAccessKeyId;
+    @Nullable
+    private final String mySecretAccessKey;
+    @Nullable
+    private final String myIamRoleARN;
+    @Nullable
+    private final String myExternalID;
+    private final int mySessionDuration;
+    @Nullable
+    private final String mySessionName;
+
+    /**
+     * @param accessKeyId     null for the default credentials provider chain
+     * @param secretAccessKey null for the default credentials provider chain
+     * @param sessionName     null if the session name is generated
+     */
+    Key(@NotNull final String region,
+        @Nullable final String accessKeyId,
+        @Nullable final String secretAccessKey,
+        @Nullable final String iamRoleARN,
+        @Nullable final String externalID,
+        final int sessionDuration,
+        @Nullable final String sessionName) {
+      myRegion = region;
+      myAccessKeyId = accessKeyId;
+      mySecretAccessKey = secretAccessKey;
+      myIamRoleARN = iamRoleARN;
+      myExternalID = externalID;
+      mySessionDuration = sessionDuration;
+      mySessionName = sessionName;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final Key key = (Key)o;
+      return myRegion.equals(key.myRegion) &&
+             Objects.equals(myAccessKeyId, key.myAccessKeyId) &&
+             Objects.equals(mySecretAccessKey, key.mySecretAccessKey) &&
+             Objects.equals(myIamRoleARN, key.myIamRoleARN) &&
+             Objects.equals(myExternalID, key.myExternalID) &&
+             mySessionDuration == key.mySessionDuration &&
+             Objects.equals(mySessionName, key.mySessionName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myRegion, myAccessKeyId, myIamRoleARN, myExternalID, mySessionDuration, mySessionName);
+    }
+
+    @Override
+    public String toString() {
+      // no secrets here
+      return myIamRoleARN +
+             "{region=" + myRegion +
+             ", credentials=" + (myAccessKeyId == null ? "default" : myAccessKeyId) +
+             ", duration=" + mySessionDuration +
+             '}';
+    }
+  }
+}
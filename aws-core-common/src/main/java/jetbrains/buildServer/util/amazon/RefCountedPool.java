@@ -0,0 +1,278 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Values shared by key as ref-counted leases, shut down after staying unused for the idle timeout.
+ * <p>
+ * A value which stopped being usable, e.g. was shut down by a caller, is dropped when it's released
+ * and replaced by a new one on the next acquire. {@link #clear()} shuts down the idle values at once
+ * and the leased ones when they are released.
+ *
+ * @see AWSClientCache
+ * @see TransferManagerPool
+ */
+final class RefCountedPool<K, V> {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(RefCountedPool.class.getName());
+
+  @NotNull
+  private final String myDescription;
+  @NotNull
+  private final String myIdleTimeoutProperty;
+  private final int myDefaultIdleTimeoutSec;
+  @NotNull
+  private final Predicate<? super V> myIsUsable;
+  @NotNull
+  private final Map<K, Entry<V>> myEntries = new HashMap<>();
+  @NotNull
+  private final ScheduledThreadPoolExecutor myEvictor;
+  @Nullable
+  private ScheduledFuture<?> myEviction;
+
+  /**
+   * @param description         what the values are, for the logs, e.g. "cached client"
+   * @param evictorThreadName   name of the thread shutting down idle values
+   * @param idleTimeoutProperty internal property with the idle timeout in seconds
+   * @param isUsable            tells whether a pooled value may still be handed out
+   */
+  RefCountedPool(@NotNull final String description,
+                 @NotNull final String evictorThreadName,
+                 @NotNull final String idleTimeoutProperty,
+                 final int defaultIdleTimeoutSec,
+                 @NotNull final Predicate<? super V> isUsable) {
+    myDescription = description;
+    myIdleTimeoutProperty = idleTimeoutProperty;
+    myDefaultIdleTimeoutSec = defaultIdleTimeoutSec;
+    myIsUsable = isUsable;
+    myEvictor = new ScheduledThreadPoolExecutor(1, r -> {
+      final Thread thread = new Thread(r, evictorThreadName);
+      thread.setDaemon(true);
+      thread.setContextClassLoader(RefCountedPool.class.getClassLoader());
+      return thread;
+    });
+    myEvictor.setKeepAliveTime(1, TimeUnit.MINUTES);
+    myEvictor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @param factory  creates the value if there is no usable pooled one for the key, it's called outside the pool lock,
+   *                 so a value created concurrently for the same key is shut down right away and the pooled one is used
+   * @param shutdown shuts the value down when it's evicted
+   */
+  @NotNull
+  Lease<V> acquire(@NotNull final K key, @NotNull final Supplier<? extends V> factory, @NotNull final Consumer<? super V> shutdown) {
+    synchronized (this) {
+      final Entry<V> entry = getUsable(key);
+      if (entry != null) {
+        return lease(entry);
+      }
+    }
+    final Entry<V> created = new Entry<>(key, factory.get(), shutdown);
+    final Lease<V> pooled;
+    synchronized (this) {
+      final Entry<V> entry = getUsable(key);
+      if (entry == null) {
+        myEntries.put(key, created);
+        LOG.debug(() -> "Created " + myDescription + " for " + key);
+        return lease(created);
+      }
+      pooled = lease(entry);
+    }
+    // another caller has pooled a value for the key meanwhile
+    shutdown(created);
+    return pooled;
+  }
+
+  @Nullable
+  private Entry<V> getUsable(@NotNull final K key) {
+    final Entry<V> entry = myEntries.get(key);
+    if (entry != null && !myIsUsable.test(entry.myValue)) {
+      myEntries.remove(key);
+      return null;
+    }
+    return entry;
+  }
+
+  @NotNull
+  private Lease<V> lease(@NotNull final Entry<V> entry) {
+    entry.myRefCount++;
+    return new Lease<>(this, entry);
+  }
+
+  /**
+   * @return lease of a value which isn't pooled and is shut down when the lease is closed
+   */
+  @NotNull
+  Lease<V> unpooled(@NotNull final K key, @NotNull final V value, @NotNull final Consumer<? super V> shutdown) {
+    final Entry<V> entry = new Entry<>(key, value, shutdown);
+    entry.myRefCount++;
+    entry.myDisposeOnRelease = true;
+    return new Lease<>(this, entry);
+  }
+
+  /**
+   * @return true if the released value is not pooled anymore and should be shut down by the caller
+   */
+  private synchronized boolean release(@NotNull final Entry<V> entry) {
+    entry.myRefCount--;
+    entry.myLastReleased = System.currentTimeMillis();
+    if (!myIsUsable.test(entry.myValue)) {
+      // shut down by the caller, it can't be reused
+      if (myEntries.get(entry.myKey) == entry) {
+        myEntries.remove(entry.myKey);
+      }
+      return false;
+    }
+    if (entry.myDisposeOnRelease) {
+      return entry.myRefCount == 0;
+    }
+    scheduleEviction();
+    return false;
+  }
+
+  private synchronized void discard(@NotNull final Entry<V> entry) {
+    if (myEntries.get(entry.myKey) == entry) {
+      myEntries.remove(entry.myKey);
+    }
+    entry.myDisposeOnRelease = true;
+  }
+
+  private void scheduleEviction() {
+    if (myEviction == null && !myEntries.isEmpty()) {
+      myEviction = myEvictor.schedule(this::evictIdle, getIdleTimeoutMs(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void evictIdle() {
+    final List<Entry<V>> evicted = new ArrayList<>();
+    synchronized (this) {
+      myEviction = null;
+      final long now = System.currentTimeMillis();
+      final long idleTimeoutMs = getIdleTimeoutMs();
+      for (Iterator<Entry<V>> it = myEntries.values().iterator(); it.hasNext(); ) {
+        final Entry<V> entry = it.next();
+        if (entry.myRefCount == 0 && now - entry.myLastReleased >= idleTimeoutMs) {
+          it.remove();
+          evicted.add(entry);
+        }
+      }
+      scheduleEviction();
+    }
+    for (Entry<V> entry : evicted) {
+      LOG.debug(() -> "Shutting down idle " + myDescription + " for " + entry.myKey);
+      shutdown(entry);
+    }
+  }
+
+  /**
+   * @return true if the value is pooled, compared by identity
+   */
+  synchronized boolean contains(@NotNull final Object value) {
+    for (Entry<V> entry : myEntries.values()) {
+      if (entry.myValue == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Shuts down all idle values immediately, leased ones are shut down when released
+   */
+  void clear() {
+    evict(value -> true);
+  }
+
+  /**
+   * Shuts down the matching idle values immediately, leased ones are shut down when released
+   */
+  synchronized void evict(@NotNull final Predicate<? super V> matches) {
+    for (Iterator<Entry<V>> it = myEntries.values().iterator(); it.hasNext(); ) {
+      final Entry<V> entry = it.next();
+      if (!matches.test(entry.myValue)) continue;
+      it.remove();
+      if (entry.myRefCount == 0) {
+        shutdown(entry);
+      } else {
+        entry.myDisposeOnRelease = true;
+      }
+    }
+  }
+
+  private void shutdown(@NotNull final Entry<V> entry) {
+    try {
+      entry.myShutdown.accept(entry.myValue);
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Shutting down " + myDescription + " for " + entry.myKey + " failed.", e);
+    }
+  }
+
+  private long getIdleTimeoutMs() {
+    return TimeUnit.SECONDS.toMillis(Math.max(1, TeamCityProperties.getInteger(myIdleTimeoutProperty, myDefaultIdleTimeoutSec)));
+  }
+
+  static final class Lease<V> implements AutoCloseable {
+    @NotNull
+    private final RefCountedPool<?, V> myPool;
+    @NotNull
+    private final Entry<V> myEntry;
+    private boolean myReleased = false;
+
+    private Lease(@NotNull final RefCountedPool<?, V> pool, @NotNull final Entry<V> entry) {
+      myPool = pool;
+      myEntry = entry;
+    }
+
+    @NotNull
+    V get() {
+      return myEntry.myValue;
+    }
+
+    /**
+     * Takes the value out of the pool, it's shut down when the last lease of it is closed
+     */
+    void discard() {
+      myPool.discard(myEntry);
+    }
+
+    @Override
+    public void close() {
+      synchronized (this) {
+        if (myReleased) return;
+        myReleased = true;
+      }
+      if (myPool.release(myEntry)) {
+        myPool.shutdown(myEntry);
+      }
+    }
+  }
+
+  private static final class Entry<V> {
+    @NotNull
+    private final Object myKey;
+    @NotNull
+    private final V myValue;
+    @NotNull
+    private final Consumer<? super V> myShutdown;
+    private int myRefCount = 0;
+    private long myLastReleased = System.currentTimeMillis();
+    private boolean myDisposeOnRelease = false;
+
+    private Entry(@NotNull final Object key, @NotNull final V value, @NotNull final Consumer<? super V> shutdown) {
+      myKey = key;
+      myValue = value;
+      myShutdown = shutdown;
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.Date;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.amazon.retry.AsyncAmazonRetrier;
+import jetbrains.buildServer.util.retry.AbortRetriesException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Temporary credentials which are requested on the first use and requested again before they expire.
+ * <p>
+ * Concurrent first calls share a single request. Once there are credentials, {@link #getCredentials()} returns them
+ * without locking. After the point {@link #REFRESH_MARGIN_SEC} seconds before the expiration (at most half of the
+ * session duration before it) the next call starts a request in the background and still returns the current
+ * credentials. Only calls made after the expiration wait for the new ones. Transient errors of every request, the first
+ * one included, are retried by {@link AsyncAmazonRetrier} without holding a thread between the attempts, a failed
+ * background refresh is logged and started again after {@link #RETRY_DELAY_MS}.
+ * <p>
+ * Must implement {@link AWSSessionCredentials} as AWS SDK may use "instanceof", but clients should be built with
+ * the instance as the {@link AWSCredentialsProvider}: separate getter calls may see different credentials
+ * if a refresh completes between them.
+ */
+abstract class RefreshingSessionCredentials implements AWSSessionCredentials, AWSCredentialsProvider {
+  static final String REFRESH_MARGIN_SEC = "teamcity.aws.tempCredentials.refreshMarginSec";
+  private static final int DEFAULT_REFRESH_MARGIN_SEC = 300;
+  static final long RETRY_DELAY_MS = 10 * 1000;
+  private static final int REFRESH_RETRIES = 3;
+  private static final int REFRESH_RETRY_DELAY_MS = 1000;
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(RefreshingSessionCredentials.class.getName());
+  @NotNull
+  private static final ExecutorService REFRESH_EXECUTOR;
+
+  static {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), r -> {
+      final Thread thread = new Thread(r, "amazon-util-credentials-refresh");
+      thread.setDaemon(true);
+      thread.setContextClassLoader(RefreshingSessionCredentials.class.getClassLoader());
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    REFRESH_EXECUTOR = executor;
+  }
+
+  @NotNull
+  private static final AsyncAmazonRetrier REFRESH_RETRIER = AsyncAmazonRetrier.defaultAwsRetrier(REFRESH_RETRIES, REFRESH_RETRY_DELAY_MS, LOG);
+
+  @Nullable
+  private volatile Session mySession;
+  @NotNull
+  private final AtomicReference<CompletableFuture<Session>> myRequest = new AtomicReference<>();
+  private volatile long myNextAttempt = 0;
+
+  /**
+   * @return new temporary credentials, called by a single thread at a time
+   */
+  @NotNull
+  protected abstract Credentials requestCredentials();
+
+  @NotNull
+  @Override
+  public AWSSessionCredentials getCredentials() {
+    final Session session = mySession;
+    final long now = System.currentTimeMillis();
+    if (session != null && now < session.myRefreshAt) {
+      return session.myCredentials;
+    }
+    if (session != null && now < session.myExpiresAt) {
+      if (now >= myNextAttempt) {
+        refreshInBackground();
+      }
+      return session.myCredentials;
+    }
+    return awaitRequest().myCredentials;
+  }
+
+  @Override
+  public void refresh() {
+    awaitRequest();
+  }
+
+  @Override
+  public String getAWSAccessKeyId() {
+    return getCredentials().getAWSAccessKeyId();
+  }
+
+  @Override
+  public String getAWSSecretKey() {
+    return getCredentials().getAWSSecretKey();
+  }
+
+  @Override
+  public String getSessionToken() {
+    return getCredentials().getSessionToken();
+  }
+
+  private void refreshInBackground() {
+    request();
+  }
+
+  @NotNull
+  private Session awaitRequest() {
+    try {
+      return request().join();
+    } catch (CompletionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new AWSException(cause);
+    }
+  }
+
+  /**
+   * @return the request in progress or a new one
+   */
+  @NotNull
+  private CompletableFuture<Session> request() {
+    while (true) {
+      final CompletableFuture<Session> inProgress = myRequest.get();
+      if (inProgress != null) {
+        return inProgress;
+      }
+      final CompletableFuture<Session> request = new CompletableFuture<>();
+      if (myRequest.compareAndSet(null, request)) {
+        REFRESH_RETRIER.execute(this::requestSession, REFRESH_EXECUTOR).whenComplete((session, e) -> {
+          if (e == null) {
+            mySession = session;
+            myRequest.set(null);
+            request.complete(session);
+            LOG.debug(() -> "Received temporary credentials valid until " + session);
+          } else {
+            final Throwable cause = e instanceof AbortRetriesException && e.getCause() != null ? e.getCause() : e;
+            myNextAttempt = System.currentTimeMillis() + RETRY_DELAY_MS;
+            myRequest.set(null);
+            request.completeExceptionally(cause instanceof AWSException ? cause : new AWSException(cause));
+            final Session current = mySession;
+            // the callers waiting for the credentials get the error
+            if (current != null && System.currentTimeMillis() < current.myExpiresAt) {
+              LOG.warnAndDebugDetails("Failed to refresh temporary credentials, the current ones are valid until " + current, cause);
+            }
+          }
+        });
+        return request;
+      }
+    }
+  }
+
+  /**
+   * Passes the SDK error wrapped by {@link AWSClients} to the retrier, which only classifies the SDK errors
+   */
+  @NotNull
+  private Session requestSession() throws Exception {
+    try {
+      return new Session(requestCredentials());
+    } catch (AWSException e) {
+      if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+      throw e;
+    }
+  }
+
+  private static final class Session {
+    @NotNull
+    private final BasicSessionCredentials myCredentials;
+    private final long myExpiresAt;
+    private final long myRefreshAt;
+
+    private Session(@NotNull final Credentials credentials) {
+      myCredentials = new BasicSessionCredentials(credentials.getAccessKeyId(), credentials.getSecretAccessKey(), credentials.getSessionToken());
+      final long now = System.currentTimeMillis();
+      if (credentials.getExpiration() == null) {
+        myExpiresAt = Long.MAX_VALUE;
+        myRefreshAt = Long.MAX_VALUE;
+      } else {
+        myExpiresAt = credentials.getExpiration().getTime();
+        final long marginMs = TimeUnit.SECONDS.toMillis(Math.max(0, TeamCityProperties.getInteger(REFRESH_MARGIN_SEC, DEFAULT_REFRESH_MARGIN_SEC)));
+        myRefreshAt = myExpiresAt - Math.min(marginMs, Math.max(0, myExpiresAt - now) / 2);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return myExpiresAt == Long.MAX_VALUE ? "never" : new Date(myExpiresAt).toString();
+    }
+  }
+}
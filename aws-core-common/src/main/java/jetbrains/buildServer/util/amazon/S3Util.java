@@ -6,26 +6,37 @@ import com.amazonaws.client.builder.ExecutorFactory;
 import com.amazonaws.services.cloudfront.AmazonCloudFront;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
-import com.amazonaws.services.s3.transfer.AbortableTransfer;
-import com.amazonaws.services.s3.transfer.Transfer;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.*;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
 import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.Used;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ConnectionPoolMetrics;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
-import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.amazon.retry.AmazonRetrier;
-import jetbrains.buildServer.util.retry.Retrier;
+import jetbrains.buildServer.util.amazon.retry.BackOff;
+import jetbrains.buildServer.util.amazon.retry.RetryBudget;
+import jetbrains.buildServer.util.amazon.retry.RetryPolicy;
+import jetbrains.buildServer.util.amazon.s3.S3BulkDeleter;
+import jetbrains.buildServer.util.amazon.s3.S3ContentAddressedUploader;
+import jetbrains.buildServer.util.amazon.s3.S3DirectorySync;
+import jetbrains.buildServer.util.amazon.s3.S3MultipartOutputStream;
+import jetbrains.buildServer.util.amazon.s3.S3MultipartUploader;
+import jetbrains.buildServer.util.amazon.s3.S3ParallelLister;
+import jetbrains.buildServer.util.amazon.s3.S3RangedDownloader;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -36,6 +47,8 @@ public final class S3Util {
   public static final int DEFAULT_S3_THREAD_POOL_SIZE = 10;
   @NotNull
   public static final String TRANSFER_MANAGER_THREAD_POOL_SIZE = "amazon.s3.transferManager.threadPool.size";
+  @NotNull
+  public static final String TRANSFER_MANAGER_VIRTUAL_THREADS = "amazon.s3.transferManager.virtualThreads.enabled";
   public static final int DEFAULT_URL_LIFETIME_SEC = 600;
   public static final int DEFAULT_RETRY_DELAY_ON_ERROR_MS = 1000;
   public static final int DEFAULT_NUMBER_OF_RETRIES_ON_ERROR = 5;
@@ -43,6 +56,10 @@ public final class S3Util {
   public static final boolean DEFAULT_ENABLE_CONSISTENCY_CHECK = true;
   @NotNull
   private static final Logger LOG = Logger.getInstance(S3Util.class.getName());
+  @NotNull
+  private static final String WORKER_THREAD_NAME_PREFIX = "amazon-util-s3-transfer-manager-worker-";
+  @NotNull
+  private static final AtomicBoolean VIRTUAL_THREADS_WARNING_LOGGED = new AtomicBoolean(false);
 
   @Used("codedeploy,codebuild,codepipeline")
   @NotNull
@@ -54,21 +71,15 @@ public final class S3Util {
   public static <T extends Transfer> Collection<T> withTransferManager(@NotNull final AmazonS3 s3Client,
                                                                        @NotNull final WithTransferManager<T> runnable,
                                                                        @NotNull final S3AdvancedConfiguration advancedConfiguration) throws Throwable {
-
-    final TransferManager manager = TransferManagerBuilder.standard()
-                                                          .withS3Client(s3Client)
-                                                          .withShutDownThreadPools(true)
-                                                          .withMinimumUploadPartSize(advancedConfiguration.getMinimumUploadPartSize())
-                                                          .withMultipartUploadThreshold(advancedConfiguration.getMultipartUploadThreshold())
-                                                          .withMultipartCopyThreshold(advancedConfiguration.getMultipartUploadThreshold())
-                                                          .withExecutorFactory(createExecutorFactory(createDefaultExecutorService(advancedConfiguration.getNThreads())))
-                                                          .build();
-    LOG.debug(() -> "Processing with s3Client " + advancedConfiguration);
-
-    final Retrier retrier = AmazonRetrier.defaultAwsRetrier(advancedConfiguration.getRetriesNum(), advancedConfiguration.getRetryDelay(), LOG);
-
-    try {
-      final List<T> transfers = new ArrayList<>(runnable.run(manager));
+    return withDiscardableManager(s3Client, advancedConfiguration, (manager, executor, discardManager) -> {
+      final List<T> transfers;
+      try {
+        transfers = new ArrayList<>(runnable.run(manager));
+      } catch (Throwable t) {
+        // the transfers started before the failure are unknown, they are aborted by shutting the manager down
+        discardManager.run();
+        throw t;
+      }
 
       final AtomicBoolean isInterrupted = new AtomicBoolean(false);
 
@@ -77,54 +88,360 @@ public final class S3Util {
           isInterrupted.set(true);
 
           for (T transfer : transfers) {
-            boolean aborted = false;
-            if (transfer instanceof AbortableTransfer) {
-              ((AbortableTransfer)transfer).abort();
-              aborted = true;
-            } else {
-              try {
-                final Method abort = transfer.getClass().getDeclaredMethod("abort");
-                abort.invoke(transfer);
-                aborted = true;
-              } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException ignored) {
-              }
-            }
-            if (!aborted) {
-              LOG.warn("Transfer type " + transfer.getClass().getName() + " does not support interrupt");
-            }
+            abort(transfer);
           }
         };
         ((InterruptAwareWithTransferManager<T>)runnable).setInterruptHook(hook);
       }
 
-      Throwable exception = null;
-      for (T transfer : transfers) {
+      return waitForTransfers(manager, transfers, new HashMap<>(), advancedConfiguration, isInterrupted, discardManager);
+    });
+  }
+
+  /**
+   * Same as {@link #withTransferManager(AmazonS3, WithTransferManager, S3AdvancedConfiguration)}, but a transfer which fails
+   * with a retryable error is submitted again, up to {@link S3AdvancedConfiguration#getRetriesNum()} times
+   * with the {@link BackOff} of {@link S3AdvancedConfiguration#getRetryDelay()} while the {@link RetryBudget} allows
+   *
+   * @param submitters transfers to perform
+   * @return successfully completed transfers, the last attempt of every transfer, in the order of the submitters
+   */
+  @NotNull
+  public static <T extends Transfer> Collection<T> withResubmittingTransferManager(@NotNull final AmazonS3 s3Client,
+                                                                                   @NotNull final Collection<? extends TransferSubmitter<T>> submitters,
+                                                                                   @NotNull final S3AdvancedConfiguration advancedConfiguration) throws Throwable {
+    return withDiscardableManager(s3Client, advancedConfiguration, (manager, executor, discardManager) -> {
+      final List<T> transfers = new ArrayList<>();
+      final Map<T, TransferAttempt<T>> attempts = new HashMap<>();
+      for (TransferSubmitter<T> submitter : submitters) {
+        final TransferAttempt<T> attempt = new TransferAttempt<>(submitter, transfers.size(), 0, 0, 0);
+        final T transfer;
         try {
-          retrier.execute(transfer::waitForCompletion);
+          transfer = submitter.submit(manager, attempt.myAttempt);
         } catch (Throwable t) {
-          if (!isInterrupted.get()) {
-            if (exception != null) {
-              exception.addSuppressed(t);
-            } else {
-              exception = t;
-            }
-          }
+          abortQuietly(transfers);
+          // the submitter may have started transfers before the failure, they are aborted by shutting the manager down
+          discardManager.run();
+          throw t;
         }
+        transfers.add(transfer);
+        attempts.put(transfer, attempt);
       }
-      if (exception != null) {
-        throw exception;
+      return waitForTransfers(manager, transfers, attempts, advancedConfiguration, new AtomicBoolean(false), discardManager);
+    });
+  }
+
+  /**
+   * Uploads a file part by part, retrying every part on its own, see {@link S3MultipartUploader}
+   */
+  @NotNull
+  public static UploadResult uploadFile(@NotNull final AmazonS3 s3Client,
+                                        @NotNull final String bucketName,
+                                        @NotNull final String key,
+                                        @NotNull final File file,
+                                        @Nullable final ObjectMetadata metadata,
+                                        @NotNull final S3AdvancedConfiguration advancedConfiguration) throws Throwable {
+    return withManager(s3Client, advancedConfiguration,
+                       (manager, executor) -> new S3MultipartUploader(s3Client, executor, advancedConfiguration).upload(bucketName, key, file, metadata));
+  }
+
+  /**
+   * Uploads the data written by the writer without storing it anywhere first, see {@link S3MultipartOutputStream}.
+   * The object is created only if the writer completes normally.
+   */
+  @NotNull
+  public static UploadResult uploadStream(@NotNull final AmazonS3 s3Client,
+                                          @NotNull final String bucketName,
+                                          @NotNull final String key,
+                                          @Nullable final ObjectMetadata metadata,
+                                          @NotNull final S3AdvancedConfiguration advancedConfiguration,
+                                          @NotNull final UploadStreamWriter writer) throws Throwable {
+    return withManager(s3Client, advancedConfiguration, (manager, executor) -> {
+      final S3MultipartOutputStream stream = new S3MultipartOutputStream(s3Client, executor, advancedConfiguration, bucketName, key, metadata);
+      boolean isWritten = false;
+      try {
+        writer.write(stream);
+        isWritten = true;
+      } finally {
+        if (!isWritten) {
+          stream.abort();
+        }
       }
+      stream.close();
+      return stream.getResult();
+    });
+  }
+
+  /**
+   * Uploads the content of the channel till its end, see {@link #uploadStream}
+   */
+  @NotNull
+  public static UploadResult uploadChannel(@NotNull final AmazonS3 s3Client,
+                                           @NotNull final String bucketName,
+                                           @NotNull final String key,
+                                           @Nullable final ObjectMetadata metadata,
+                                           @NotNull final S3AdvancedConfiguration advancedConfiguration,
+                                           @NotNull final ReadableByteChannel channel) throws Throwable {
+    return uploadStream(s3Client, bucketName, key, metadata, advancedConfiguration, stream -> stream.writeFrom(channel));
+  }
+
+  /**
+   * Downloads an object with concurrent ranged requests into the file, see {@link S3RangedDownloader}.
+   * The file is replaced only if the whole object is downloaded and verified.
+   */
+  @NotNull
+  public static ObjectMetadata downloadFile(@NotNull final AmazonS3 s3Client,
+                                            @NotNull final String bucketName,
+                                            @NotNull final String key,
+                                            @NotNull final File file,
+                                            @NotNull final S3AdvancedConfiguration advancedConfiguration) throws Throwable {
+    return withManager(s3Client, advancedConfiguration,
+                       (manager, executor) -> new S3RangedDownloader(s3Client, executor, advancedConfiguration).download(bucketName, key, file));
+  }
+
+  /**
+   * Deletes all objects under the prefixes, sending delete requests concurrently while the keys are listed, see {@link S3BulkDeleter}.
+   * Keys which couldn't be deleted are reported in the result.
+   */
+  @NotNull
+  public static S3BulkDeleter.Result deletePrefixes(@NotNull final AmazonS3 s3Client,
+                                                    @NotNull final String bucketName,
+                                                    @NotNull final Collection<String> prefixes,
+                                                    @NotNull final S3AdvancedConfiguration advancedConfiguration) throws Throwable {
+    return withManager(s3Client, advancedConfiguration,
+                       (manager, executor) -> new S3BulkDeleter(s3Client, executor, advancedConfiguration).deletePrefixes(bucketName, prefixes));
+  }
+
+  /**
+   * Lists objects under the prefix with concurrent requests for its sub-prefixes, see {@link S3ParallelLister}.
+   * The consumer is called on the calling thread, objects of different sub-prefixes are interleaved.
+   *
+   * @return number of listed objects
+   */
+  public static long listObjects(@NotNull final AmazonS3 s3Client,
+                                 @NotNull final String bucketName,
+                                 @NotNull final String prefix,
+                                 @NotNull final S3AdvancedConfiguration advancedConfiguration,
+                                 @NotNull final S3ParallelLister.ObjectSummaryConsumer consumer) throws Throwable {
+    return withManager(s3Client, advancedConfiguration,
+                       (manager, executor) -> new S3ParallelLister(s3Client, executor, advancedConfiguration).list(bucketName, prefix, consumer));
+  }
+
+  /**
+   * Uploads the content of the files which isn't stored under the prefix yet, see {@link S3ContentAddressedUploader}
+   *
+   * @param files files by the names they get in the manifest
+   * @return manifest mapping the names to the content keys
+   */
+  @NotNull
+  public static S3ContentAddressedUploader.Manifest uploadContentAddressed(@NotNull final AmazonS3 s3Client,
+                                                                          @NotNull final String bucketName,
+                                                                          @NotNull final String prefix,
+                                                                          @NotNull final Map<String, File> files,
+                                                                          @NotNull final S3AdvancedConfiguration advancedConfiguration) throws Throwable {
+    return withManager(s3Client, advancedConfiguration,
+                       (manager, executor) -> new S3ContentAddressedUploader(s3Client, executor, advancedConfiguration).upload(bucketName, prefix, files));
+  }
+
+  /**
+   * Uploads the new and changed files of the directory to the prefix, see {@link S3DirectorySync}
+   *
+   * @param deleteOrphans whether to delete objects under the prefix which have no file in the directory, requires the prefix
+   *                      to be empty or to end with a slash
+   */
+  @NotNull
+  public static S3DirectorySync.Result syncDirectory(@NotNull final AmazonS3 s3Client,
+                                                     @NotNull final String bucketName,
+                                                     @NotNull final String prefix,
+                                                     @NotNull final File directory,
+                                                     final boolean deleteOrphans,
+                                                     @NotNull final S3AdvancedConfiguration advancedConfiguration) throws Throwable {
+    return withManager(s3Client, advancedConfiguration,
+                       (manager, executor) -> new S3DirectorySync(s3Client, executor, advancedConfiguration).sync(bucketName, prefix, directory, deleteOrphans));
+  }
+
+  @NotNull
+  private static <R> R withManager(@NotNull final AmazonS3 s3Client,
+                                   @NotNull final S3AdvancedConfiguration advancedConfiguration,
+                                   @NotNull final WithManagerAndExecutor<R> action) throws Throwable {
+    return withDiscardableManager(s3Client, advancedConfiguration, (manager, executor, discardManager) -> action.run(manager, executor));
+  }
 
-      return CollectionsUtil.filterCollection(transfers, data -> Transfer.TransferState.Completed == data.getState());
+  @NotNull
+  private static <R> R withDiscardableManager(@NotNull final AmazonS3 s3Client,
+                                              @NotNull final S3AdvancedConfiguration advancedConfiguration,
+                                              @NotNull final WithDiscardableManager<R> action) throws Throwable {
+    // a client shut down after the call or created for this call only is never passed again, so there is nothing to reuse the manager with
+    final TransferManagerPool.Lease lease = !advancedConfiguration.shouldShutdownClient() && TransferManagerPool.isPoolable(s3Client)
+                                            ? TransferManagerPool.getInstance().acquire(s3Client, advancedConfiguration)
+                                            : null;
+    final ExecutorService executor = lease != null ? lease.getExecutor() : createExecutorService(advancedConfiguration);
+    final TransferManager manager = lease != null ? lease.getManager() : createTransferManager(s3Client, advancedConfiguration, executor);
+    LOG.debug(() -> "Processing with s3Client " + advancedConfiguration);
+
+    try {
+      return action.run(manager, executor, () -> {
+        if (lease != null) {
+          lease.discard();
+        }
+      });
     } finally {
-      manager.shutdownNow(advancedConfiguration.shouldShutdownClient());
-      if (advancedConfiguration.shouldShutdownClient()) {
-        shutdownClient(s3Client);
+      if (lease != null) {
+        lease.close();
+      } else {
+        manager.shutdownNow(advancedConfiguration.shouldShutdownClient());
+        if (advancedConfiguration.shouldShutdownClient()) {
+          shutdownClient(s3Client);
+        }
+      }
+    }
+  }
+
+  @NotNull
+  private static <T extends Transfer> Collection<T> waitForTransfers(@NotNull final TransferManager manager,
+                                                                     @NotNull final List<T> transfers,
+                                                                     @NotNull final Map<T, TransferAttempt<T>> resubmittable,
+                                                                     @NotNull final S3AdvancedConfiguration advancedConfiguration,
+                                                                     @NotNull final AtomicBoolean isInterrupted,
+                                                                     @NotNull final Runnable discardManager) throws Throwable {
+    // transfers are handled in the order they finish, so a failure is noticed without waiting for slower transfers before it
+    final TransferCompletionService<T> completionService = new TransferCompletionService<>(transfers);
+    final PriorityQueue<TransferAttempt<T>> scheduled = new PriorityQueue<>(Comparator.comparingLong(a -> a.mySubmitAt));
+    // completed transfers are returned in the order they were given, a resubmitted one takes the place of the failed attempt
+    final Map<T, Integer> positions = new IdentityHashMap<>();
+    for (int i = 0; i < transfers.size(); i++) {
+      positions.put(transfers.get(i), i);
+    }
+    final List<T> completed = new ArrayList<>(Collections.nCopies(transfers.size(), null));
+    boolean isFailedFast = false;
+    Throwable exception = null;
+    while (completionService.hasNext() || !scheduled.isEmpty()) {
+      final T transfer;
+      try {
+        while (!scheduled.isEmpty() && scheduled.peek().mySubmitAt <= System.currentTimeMillis()) {
+          final TransferAttempt<T> attempt = scheduled.poll();
+          if (isInterrupted.get() || isFailedFast) continue;
+          final T resubmitted;
+          try {
+            resubmitted = attempt.mySubmitter.submit(manager, attempt.myAttempt);
+          } catch (Throwable t) {
+            abortQuietly(completionService.getPending());
+            discardManager.run();
+            throw t;
+          }
+          resubmittable.put(resubmitted, attempt);
+          positions.put(resubmitted, attempt.myIndex);
+          completionService.submit(resubmitted);
+        }
+        if (scheduled.isEmpty()) {
+          transfer = completionService.hasNext() ? completionService.take() : null;
+        } else {
+          final long delay = Math.max(0, scheduled.peek().mySubmitAt - System.currentTimeMillis());
+          if (completionService.hasNext()) {
+            transfer = completionService.poll(delay);
+          } else {
+            Thread.sleep(delay);
+            transfer = null;
+          }
+        }
+      } catch (InterruptedException e) {
+        abortQuietly(completionService.getPending());
+        Thread.currentThread().interrupt();
+        throw e;
+      }
+      if (transfer == null) continue;
+
+      try {
+        // waiting again for a failed transfer doesn't transfer anything, so failed transfers are submitted again instead
+        transfer.waitForCompletion();
+        if (Transfer.TransferState.Completed == transfer.getState()) {
+          completed.set(positions.get(transfer), transfer);
+        }
+      } catch (Throwable t) {
+        if (isInterrupted.get() || isFailedFast) continue;
+
+        final TransferAttempt<T> attempt = resubmittable.remove(transfer);
+        if (attempt != null && attempt.myAttempt < advancedConfiguration.getRetriesNum() && AmazonRetrier.isRetryable(t) && RetryBudget.getInstance().tryAcquire()) {
+          final TransferAttempt<T> next = attempt.next(advancedConfiguration.getRetryDelay(), t);
+          LOG.warn("Transfer " + transfer.getDescription() + " failed, submitting it again in " + (next.mySubmitAt - System.currentTimeMillis()) + " ms " +
+                   "(attempt " + (next.myAttempt + 1) + " of " + (advancedConfiguration.getRetriesNum() + 1) + "): " + t.getMessage());
+          scheduled.add(next);
+          continue;
+        }
+
+        if (exception != null) {
+          exception.addSuppressed(t);
+        } else {
+          exception = t;
+        }
+        if (advancedConfiguration.isFailFast() && !AmazonRetrier.isRetryable(t)) {
+          isFailedFast = true;
+          final List<T> pending = completionService.getPending();
+          LOG.warn("Transfer failed with non-retryable error, aborting " + pending.size() + " remaining transfer(s): " + t.getMessage());
+          abortQuietly(pending);
+        }
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+
+    completed.removeIf(Objects::isNull);
+    return completed;
+  }
+
+  @NotNull
+  static TransferManager createTransferManager(@NotNull final AmazonS3 s3Client,
+                                               @NotNull final S3AdvancedConfiguration advancedConfiguration,
+                                               @NotNull final ExecutorService executorService) {
+    return TransferManagerBuilder.standard()
+                                 .withS3Client(s3Client)
+                                 .withShutDownThreadPools(true)
+                                 .withMinimumUploadPartSize(advancedConfiguration.getMinimumUploadPartSize())
+                                 .withMultipartUploadThreshold(advancedConfiguration.getMultipartUploadThreshold())
+                                 .withMultipartCopyThreshold(advancedConfiguration.getMultipartUploadThreshold())
+                                 .withExecutorFactory(createExecutorFactory(executorService))
+                                 .build();
+  }
+
+  /**
+   * Shuts down all idle transfer managers kept between {@link #withTransferManager} calls
+   */
+  public static void shutdownTransferManagerPool() {
+    TransferManagerPool.getInstance().clear();
+  }
+
+  private static <T extends Transfer> void abortQuietly(@NotNull final Collection<T> transfers) {
+    for (T transfer : transfers) {
+      try {
+        abort(transfer);
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Aborting transfer " + transfer.getDescription() + " failed.", e);
+      }
+    }
+  }
+
+  private static <T extends Transfer> void abort(@NotNull final T transfer) throws IOException {
+    boolean aborted = false;
+    if (transfer instanceof AbortableTransfer) {
+      ((AbortableTransfer)transfer).abort();
+      aborted = true;
+    } else {
+      try {
+        final Method abort = transfer.getClass().getDeclaredMethod("abort");
+        abort.invoke(transfer);
+        aborted = true;
+      } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException ignored) {
       }
     }
+    if (!aborted) {
+      LOG.warn("Transfer type " + transfer.getClass().getName() + " does not support interrupt");
+    }
   }
 
   public static void shutdownClient(@NotNull final AmazonS3 s3Client) {
+    ConnectionPoolMetrics.unregister(s3Client);
+    TransferManagerPool.getInstance().evict(s3Client);
     try {
       s3Client.shutdown();
     } catch (Exception e) {
@@ -133,6 +450,7 @@ public final class S3Util {
   }
 
   public static void shutdownClient(@NotNull final AmazonCloudFront client) {
+    ConnectionPoolMetrics.unregister(client);
     try {
       client.shutdown();
     } catch (Exception e) {
@@ -152,7 +470,7 @@ public final class S3Util {
 
       public Thread newThread(@NotNull Runnable r) {
         Thread thread = new Thread(r);
-        thread.setName("amazon-util-s3-transfer-manager-worker-" + threadCount.getAndIncrement());
+        thread.setName(WORKER_THREAD_NAME_PREFIX + threadCount.getAndIncrement());
         thread.setContextClassLoader(getClass().getClassLoader());
         return thread;
       }
@@ -160,11 +478,64 @@ public final class S3Util {
     return Executors.newFixedThreadPool(nThreads, threadFactory);
   }
 
+  /**
+   * Creates the executor for transfers of the given configuration: a pool of {@link S3AdvancedConfiguration#getNThreads()} threads,
+   * or virtual threads with at most that many tasks running at once if {@link S3AdvancedConfiguration#isVirtualThreads()}
+   * and the JVM supports them. Either way the tasks are bounded, not the HTTP requests, see {@link VirtualThreadExecutor}
+   */
+  @NotNull
+  public static ExecutorService createExecutorService(@NotNull final S3AdvancedConfiguration advancedConfiguration) {
+    if (advancedConfiguration.isVirtualThreads()) {
+      final ExecutorService executor = VirtualThreadExecutor.create(WORKER_THREAD_NAME_PREFIX, S3Util.class.getClassLoader(), advancedConfiguration.getNThreads());
+      if (executor != null) {
+        return executor;
+      }
+      if (VIRTUAL_THREADS_WARNING_LOGGED.compareAndSet(false, true)) {
+        LOG.warn("Virtual threads are requested for S3 transfers, but are not supported by the JVM, platform threads are used instead");
+      }
+    }
+    return createDefaultExecutorService(advancedConfiguration.getNThreads());
+  }
+
   public interface WithTransferManager<T extends Transfer> {
     @NotNull
     Collection<T> run(@NotNull TransferManager manager) throws Throwable;
   }
 
+  /**
+   * Creates a transfer, which can be created again if the previous attempt failed with a retryable error
+   */
+  public interface TransferSubmitter<T extends Transfer> {
+    /**
+     * @param manager manager to submit the transfer with
+     * @param attempt 0 for the first attempt
+     * @return submitted transfer
+     */
+    @NotNull
+    T submit(@NotNull TransferManager manager, int attempt) throws Throwable;
+
+    /**
+     * Every attempt uploads the whole file again, use {@link S3Util#uploadFile} to keep already uploaded parts
+     *
+     * @param request file based request
+     */
+    @NotNull
+    static TransferSubmitter<Upload> upload(@NotNull final PutObjectRequest request) {
+      if (request.getFile() == null) {
+        throw new IllegalArgumentException("Only file uploads can be submitted again");
+      }
+      return (manager, attempt) -> manager.upload(request.clone());
+    }
+
+    /**
+     * Next attempts keep the already downloaded data and request only the rest of the object
+     */
+    @NotNull
+    static TransferSubmitter<Download> download(@NotNull final GetObjectRequest request, @NotNull final File file) {
+      return (manager, attempt) -> manager.download(request, file, null, 0, attempt > 0);
+    }
+  }
+
   public interface TransferManagerInterruptHook {
     void interrupt() throws Throwable;
   }
@@ -179,6 +550,48 @@ public final class S3Util {
     void setInterruptHook(@NotNull TransferManagerInterruptHook hook);
   }
 
+  public interface UploadStreamWriter {
+    void write(@NotNull S3MultipartOutputStream stream) throws IOException;
+  }
+
+  private interface WithManagerAndExecutor<R> {
+    R run(@NotNull TransferManager manager, @NotNull ExecutorService executor) throws Throwable;
+  }
+
+  private interface WithDiscardableManager<R> {
+    /**
+     * @param discardManager makes the manager shut down after the call even if it's pooled
+     */
+    R run(@NotNull TransferManager manager, @NotNull ExecutorService executor, @NotNull Runnable discardManager) throws Throwable;
+  }
+
+  private static final class TransferAttempt<T extends Transfer> {
+    @NotNull
+    private final TransferSubmitter<T> mySubmitter;
+    /**
+     * position of the transfer in the waited ones
+     */
+    private final int myIndex;
+    private final int myAttempt;
+    private final long mySubmitAt;
+    private final long myDelayMs;
+
+    private TransferAttempt(@NotNull final TransferSubmitter<T> submitter, final int index, final int attempt, final long submitAt, final long delayMs) {
+      mySubmitter = submitter;
+      myIndex = index;
+      myAttempt = attempt;
+      mySubmitAt = submitAt;
+      myDelayMs = delayMs;
+    }
+
+    @NotNull
+    private TransferAttempt<T> next(final int retryDelayMs, @NotNull final Throwable error) {
+      final int attempt = myAttempt + 1;
+      final long delayMs = RetryPolicy.getInstance().getDelayMs(error, BackOff.getDelayMs(BackOff.getStrategy(), attempt, retryDelayMs, myDelayMs));
+      return new TransferAttempt<>(mySubmitter, myIndex, attempt, System.currentTimeMillis() + delayMs, delayMs);
+    }
+  }
+
   public static class S3AdvancedConfiguration {
     private static final int FIVE_MB = 5 * 1024 * 1024;
     private long myMinimumUploadPartSize = FIVE_MB;
@@ -193,6 +606,12 @@ public final class S3Util {
     private int myNThreads = TeamCityProperties.getInteger(TRANSFER_MANAGER_THREAD_POOL_SIZE, DEFAULT_S3_THREAD_POOL_SIZE);
     private boolean myConsistencyCheckEnabled = DEFAULT_ENABLE_CONSISTENCY_CHECK;
     private boolean myAllowPlainHttpUpload = false;
+    private boolean myFailFast = false;
+    private boolean myAdaptiveTuning = false;
+    private boolean myDirectBufferUpload = false;
+    private boolean myVirtualThreads = TeamCityProperties.getBoolean(TRANSFER_MANAGER_VIRTUAL_THREADS);
+    @Nullable
+    private File myCheckpointDirectory = null;
 
     @NotNull
     private CannedAccessControlList myAcl = CannedAccessControlList.BucketOwnerFullControl;
@@ -262,6 +681,15 @@ public final class S3Util {
       return this;
     }
 
+    /**
+     * Runs transfers on virtual threads on JDK 21+, {@link #getNThreads()} then only limits the number of concurrent requests
+     */
+    @NotNull
+    public S3AdvancedConfiguration withVirtualThreads(final boolean virtualThreads) {
+      myVirtualThreads = virtualThreads;
+      return this;
+    }
+
     @NotNull
     public S3AdvancedConfiguration withPresignedMultipartUploadEnabled(final boolean enabled) {
       myPresignedMultipartUploadEnabled = enabled;
@@ -293,6 +721,46 @@ public final class S3Util {
       return this;
     }
 
+    /**
+     * Abort the remaining transfers as soon as one of them fails with a non-retryable error
+     */
+    @NotNull
+    public S3AdvancedConfiguration withFailFast(final boolean failFast) {
+      myFailFast = failFast;
+      return this;
+    }
+
+    /**
+     * Lets {@link S3MultipartUploader} pick the part size from the file size and adjust the number of parts
+     * in flight to the measured throughput, the concurrency may then exceed {@link #getNThreads()} if the executor has more threads
+     */
+    @NotNull
+    public S3AdvancedConfiguration withAdaptiveTuning(final boolean adaptiveTuning) {
+      myAdaptiveTuning = adaptiveTuning;
+      return this;
+    }
+
+    /**
+     * Makes {@link S3MultipartUploader} read every part from the file channel into a pooled direct buffer and send it from there,
+     * so the heap usage doesn't grow with the number of threads and the part size
+     */
+    @NotNull
+    public S3AdvancedConfiguration withDirectBufferUpload(final boolean directBufferUpload) {
+      myDirectBufferUpload = directBufferUpload;
+      return this;
+    }
+
+    /**
+     * Makes {@link S3MultipartUploader} uploads resumable after a crash or a restart
+     *
+     * @param checkpointDirectory directory to keep upload checkpoints in, e.g. inside the agent work directory
+     */
+    @NotNull
+    public S3AdvancedConfiguration withCheckpointDirectory(@Nullable final File checkpointDirectory) {
+      myCheckpointDirectory = checkpointDirectory;
+      return this;
+    }
+
     public int getPresignedUrlMaxChunkSize() {
       return myPresignedUrlMaxChunkSize;
     }
@@ -309,6 +777,10 @@ public final class S3Util {
       return myNThreads;
     }
 
+    public boolean isVirtualThreads() {
+      return myVirtualThreads;
+    }
+
     public boolean shouldShutdownClient() {
       return myShutdownClient;
     }
@@ -341,6 +813,23 @@ public final class S3Util {
       return myAllowPlainHttpUpload;
     }
 
+    public boolean isFailFast() {
+      return myFailFast;
+    }
+
+    public boolean isAdaptiveTuning() {
+      return myAdaptiveTuning;
+    }
+
+    public boolean isDirectBufferUpload() {
+      return myDirectBufferUpload;
+    }
+
+    @Nullable
+    public File getCheckpointDirectory() {
+      return myCheckpointDirectory;
+    }
+
     @NotNull
     public CannedAccessControlList getAcl() {
       return myAcl;
@@ -359,9 +848,14 @@ public final class S3Util {
              ", myRetryDelayOnErrorMs=" + myRetryDelayOnErrorMs +
              ", myTtlSeconds=" + myTtlSeconds +
              ", myNThreads=" + myNThreads +
+             ", myVirtualThreads=" + myVirtualThreads +
              ", myConsistencyCheckEnabled=" + myConsistencyCheckEnabled +
              ", myAcl=" + myAcl +
              ", myAllowPlainHttpUpload=" + myAllowPlainHttpUpload +
+             ", myFailFast=" + myFailFast +
+             ", myAdaptiveTuning=" + myAdaptiveTuning +
+             ", myDirectBufferUpload=" + myDirectBufferUpload +
+             ", myCheckpointDirectory=" + myCheckpointDirectory +
              '}';
     }
   }
@@ -0,0 +1,135 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.transfer.Transfer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Hands out submitted transfers in the order they finish, similar to {@link java.util.concurrent.ExecutorCompletionService}.
+ * <p>
+ * Completion is detected through transfer progress events, with a periodic {@link Transfer#isDone()} check
+ * as a fallback for transfers which don't publish them.
+ */
+final class TransferCompletionService<T extends Transfer> {
+  private static final long DONE_CHECK_INTERVAL_MS = 1000;
+
+  @NotNull
+  private final BlockingQueue<T> myCompleted = new LinkedBlockingQueue<>();
+  @NotNull
+  private final Map<T, ProgressListener> myPending = new IdentityHashMap<>();
+  private int myNotTaken = 0;
+
+  TransferCompletionService(@NotNull final Collection<T> transfers) {
+    for (T transfer : transfers) {
+      submit(transfer);
+    }
+  }
+
+  /**
+   * @param transfer transfer to hand out once it finishes, ignored if it's submitted and not finished yet
+   */
+  void submit(@NotNull final T transfer) {
+    final ProgressListener listener = event -> {
+      final ProgressEventType type = event.getEventType();
+      if (type == ProgressEventType.TRANSFER_COMPLETED_EVENT || type == ProgressEventType.TRANSFER_FAILED_EVENT || type == ProgressEventType.TRANSFER_CANCELED_EVENT) {
+        complete(transfer);
+      }
+    };
+    synchronized (myPending) {
+      if (myPending.containsKey(transfer)) return;
+      myPending.put(transfer, listener);
+      myNotTaken++;
+    }
+    transfer.addProgressListener(listener);
+    if (transfer.isDone()) {
+      complete(transfer);
+    }
+  }
+
+  /**
+   * @return true if some of the submitted transfers were not taken yet
+   */
+  boolean hasNext() {
+    synchronized (myPending) {
+      return myNotTaken > 0;
+    }
+  }
+
+  /**
+   * Waits for the next finished transfer. The transfer may still be finalizing its state,
+   * so {@link Transfer#waitForCompletion()} should be used to get its outcome.
+   */
+  @NotNull
+  T take() throws InterruptedException {
+    while (true) {
+      final T transfer = poll(DONE_CHECK_INTERVAL_MS);
+      if (transfer != null) {
+        return transfer;
+      }
+    }
+  }
+
+  /**
+   * Same as {@link #take()}, but waits for at most the given time
+   *
+   * @return finished transfer or null if none finished in time
+   */
+  @Nullable
+  T poll(final long timeoutMs) throws InterruptedException {
+    synchronized (myPending) {
+      if (myNotTaken == 0) {
+        throw new IllegalStateException("All submitted transfers were already taken");
+      }
+    }
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true) {
+      final long remaining = deadline - System.currentTimeMillis();
+      final T transfer = myCompleted.poll(Math.max(0, Math.min(remaining, DONE_CHECK_INTERVAL_MS)), TimeUnit.MILLISECONDS);
+      if (transfer != null) {
+        synchronized (myPending) {
+          myNotTaken--;
+        }
+        return transfer;
+      }
+      for (T pending : getPending()) {
+        if (pending.isDone()) {
+          complete(pending);
+        }
+      }
+      if (remaining <= 0 && myCompleted.isEmpty()) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * @return transfers which are not finished yet
+   */
+  @NotNull
+  List<T> getPending() {
+    synchronized (myPending) {
+      return new ArrayList<>(myPending.keySet());
+    }
+  }
+
+  private void complete(@NotNull final T transfer) {
+    final ProgressListener listener;
+    synchronized (myPending) {
+      listener = myPending.remove(transfer);
+    }
+    if (listener != null) {
+      transfer.removeProgressListener(listener);
+      myCompleted.add(transfer);
+    }
+  }
+}
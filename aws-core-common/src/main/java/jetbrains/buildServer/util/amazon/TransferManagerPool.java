@@ -0,0 +1,211 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps {@link TransferManager} instances together with their worker pools between
+ * {@link S3Util#withTransferManager} calls, so consecutive transfers through the same
+ * S3 client reuse already started threads and warm HTTP connections.
+ * <p>
+ * Only the clients shared through {@link AWSClientCache}, e.g. leased with {@link AWSClients#leaseS3Client()}, are pooled,
+ * a client created for a single call would never be passed again. A client created with {@link AWSClients#createS3Client()}
+ * is the exception: its transfers are made with the cached client of the same settings, so callers creating a client for every
+ * call share the managers too. Changes made to such a client after it was created don't apply to the transfers.
+ * Managers are keyed by the S3 client identity and the parts
+ * of {@link S3Util.S3AdvancedConfiguration} which affect the manager itself, are handed out as ref-counted leases and shut down
+ * after staying unused for {@link #IDLE_TIMEOUT_SEC} seconds or as soon as their client is shut down.
+ */
+final class TransferManagerPool {
+  @NotNull
+  static final String POOL_ENABLED = "amazon.s3.transferManager.pool.enabled";
+  @NotNull
+  static final String IDLE_TIMEOUT_SEC = "amazon.s3.transferManager.pool.idleTimeoutSec";
+  static final int DEFAULT_IDLE_TIMEOUT_SEC = 60;
+  @NotNull
+  private static final TransferManagerPool INSTANCE = new TransferManagerPool();
+
+  @NotNull
+  private final RefCountedPool<Key, Pooled> myPool = new RefCountedPool<>("pooled transfer manager", "amazon-util-s3-transfer-manager-pool-evictor",
+                                                                          IDLE_TIMEOUT_SEC, DEFAULT_IDLE_TIMEOUT_SEC,
+                                                                          // a manager shut down by the caller can't be reused
+                                                                          pooled -> !pooled.myExecutor.isShutdown());
+  /**
+   * leases of the cached clients with the settings of the clients created by {@link AWSClients#createS3Client()}
+   */
+  @NotNull
+  private final Map<AmazonS3, Supplier<AWSClientCache.Lease<AmazonS3>>> mySharedClients = Collections.synchronizedMap(new WeakHashMap<>());
+
+  private TransferManagerPool() {
+  }
+
+  @NotNull
+  static TransferManagerPool getInstance() {
+    return INSTANCE;
+  }
+
+  static boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(POOL_ENABLED);
+  }
+
+  /**
+   * @return true if the client is shared with other callers, so a pooled manager of it may be reused
+   */
+  static boolean isPoolable(@NotNull final AmazonS3 s3Client) {
+    return isEnabled() && (AWSClientCache.getInstance().isCached(s3Client) ||
+                           AWSClientCache.isEnabled() && INSTANCE.mySharedClients.containsKey(s3Client));
+  }
+
+  /**
+   * Makes the client poolable, its transfers are made with the client the cache hands out for the same settings
+   *
+   * @param sharedClient leases the cached client with the settings of the given one
+   */
+  void registerSharedClient(@NotNull final AmazonS3 s3Client, @NotNull final Supplier<AWSClientCache.Lease<AmazonS3>> sharedClient) {
+    mySharedClients.put(s3Client, sharedClient);
+  }
+
+  @NotNull
+  Lease acquire(@NotNull final AmazonS3 s3Client, @NotNull final S3Util.S3AdvancedConfiguration configuration) {
+    final Supplier<AWSClientCache.Lease<AmazonS3>> sharedClient = AWSClientCache.getInstance().isCached(s3Client) ? null : mySharedClients.get(s3Client);
+    final AWSClientCache.Lease<AmazonS3> clientLease = sharedClient != null ? sharedClient.get() : null;
+    final AmazonS3 client = clientLease != null ? clientLease.getClient() : s3Client;
+    try {
+      return new Lease(myPool.acquire(new Key(client, configuration), () -> {
+        final ExecutorService executor = S3Util.createExecutorService(configuration);
+        return new Pooled(client, S3Util.createTransferManager(client, configuration, executor), executor);
+      }, pooled -> pooled.myManager.shutdownNow(false)), clientLease);
+    } catch (RuntimeException e) {
+      if (clientLease != null) {
+        clientLease.close();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Shuts down the idle managers of the client at once, leased ones are shut down when released
+   */
+  void evict(@NotNull final AmazonS3 s3Client) {
+    myPool.evict(pooled -> pooled.myS3Client == s3Client);
+  }
+
+  /**
+   * Shuts down all idle managers immediately, leased ones are shut down when released
+   */
+  void clear() {
+    myPool.clear();
+  }
+
+  static final class Lease implements AutoCloseable {
+    @NotNull
+    private final RefCountedPool.Lease<Pooled> myLease;
+    /**
+     * lease of the cached client the manager was built with in place of the client of the caller, keeps the client from being evicted
+     */
+    @Nullable
+    private final AWSClientCache.Lease<AmazonS3> myClientLease;
+
+    private Lease(@NotNull final RefCountedPool.Lease<Pooled> lease, @Nullable final AWSClientCache.Lease<AmazonS3> clientLease) {
+      myLease = lease;
+      myClientLease = clientLease;
+    }
+
+    @NotNull
+    TransferManager getManager() {
+      return myLease.get().myManager;
+    }
+
+    @NotNull
+    ExecutorService getExecutor() {
+      return myLease.get().myExecutor;
+    }
+
+    /**
+     * Stops handing the manager out, it's shut down together with its running transfers when the last lease of it is closed
+     */
+    void discard() {
+      myLease.discard();
+    }
+
+    @Override
+    public void close() {
+      myLease.close();
+      if (myClientLease != null) {
+        myClientLease.close();
+      }
+    }
+  }
+
+  private static final class Pooled {
+    @NotNull
+    private final AmazonS3 myS3Client;
+    @NotNull
+    private final TransferManager myManager;
+    @NotNull
+    private final ExecutorService myExecutor;
+
+    private Pooled(@NotNull final AmazonS3 s3Client, @NotNull final TransferManager manager, @NotNull final ExecutorService executor) {
+      myS3Client = s3Client;
+      myManager = manager;
+      myExecutor = executor;
+    }
+  }
+
+  private static final class Key {
+    @NotNull
+    private final AmazonS3 myS3Client;
+    private final long myMinimumUploadPartSize;
+    private final long myMultipartUploadThreshold;
+    private final int myNThreads;
+    private final boolean myVirtualThreads;
+
+    private Key(@NotNull final AmazonS3 s3Client, @NotNull final S3Util.S3AdvancedConfiguration configuration) {
+      myS3Client = s3Client;
+      myMinimumUploadPartSize = configuration.getMinimumUploadPartSize();
+      myMultipartUploadThreshold = configuration.getMultipartUploadThreshold();
+      myNThreads = configuration.getNThreads();
+      myVirtualThreads = configuration.isVirtualThreads();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final Key key = (Key)o;
+      return myS3Client == key.myS3Client &&
+             myMinimumUploadPartSize == key.myMinimumUploadPartSize &&
+             myMultipartUploadThreshold == key.myMultipartUploadThreshold &&
+             myNThreads == key.myNThreads &&
+             myVirtualThreads == key.myVirtualThreads;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = System.identityHashCode(myS3Client);
+      result = 31 * result + Long.hashCode(myMinimumUploadPartSize);
+      result = 31 * result + Long.hashCode(myMultipartUploadThreshold);
+      result = 31 * result + myNThreads;
+      result = 31 * result + Boolean.hashCode(myVirtualThreads);
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "s3Client@" + Integer.toHexString(System.identityHashCode(myS3Client)) +
+             "{minimumUploadPartSize=" + myMinimumUploadPartSize +
+             ", multipartUploadThreshold=" + myMultipartUploadThreshold +
+             ", nThreads=" + myNThreads +
+             ", virtualThreads=" + myVirtualThreads +
+             '}';
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Runs every task on a new virtual thread, while at most the given number of tasks run at once.
+ * <p>
+ * Virtual threads are available since JDK 21, the API is reached through reflection as the module targets Java 8.
+ * Tasks get the permits in the submission order, so the executor behaves like a fixed thread pool
+ * of the same size, but a waiting task costs no platform thread.
+ * <p>
+ * Only the tasks are bounded, not the HTTP requests they make. A transfer runs as several tasks, e.g. an upload submits every part
+ * as a task of its own, and the requests in flight are bounded by the max connections of the S3 client rather than by this executor.
+ */
+final class VirtualThreadExecutor extends AbstractExecutorService {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(VirtualThreadExecutor.class.getName());
+  @Nullable
+  private static final Method OF_VIRTUAL;
+  @Nullable
+  private static final Method NAME;
+  @Nullable
+  private static final Method FACTORY;
+  @Nullable
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+  static {
+    Method ofVirtual = null, name = null, factory = null, newThreadPerTaskExecutor = null;
+    try {
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builderClass.getMethod("name", String.class, long.class);
+      factory = builderClass.getMethod("factory");
+      newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+    } catch (Exception e) {
+      LOG.debug("Virtual threads are not available: " + e);
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    FACTORY = factory;
+    NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+  }
+
+  @NotNull
+  private final ExecutorService myDelegate;
+  @NotNull
+  private final Semaphore myPermits;
+
+  private VirtualThreadExecutor(@NotNull final ExecutorService delegate, final int maxConcurrency) {
+    myDelegate = delegate;
+    myPermits = new Semaphore(maxConcurrency, true);
+  }
+
+  static boolean isSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * @param threadNamePrefix prefix of the thread names, followed by the thread number
+   * @param classLoader      context class loader of the threads
+   * @param maxConcurrency   maximum number of tasks running at once, nested tasks included
+   * @return executor or null if virtual threads aren't supported by the JVM
+   */
+  @Nullable
+  static ExecutorService create(@NotNull final String threadNamePrefix, @Nullable final ClassLoader classLoader, final int maxConcurrency) {
+    if (OF_VIRTUAL == null || NAME == null || FACTORY == null || NEW_THREAD_PER_TASK_EXECUTOR == null) {
+      return null;
+    }
+    try {
+      final ThreadFactory virtualFactory = (ThreadFactory)FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), threadNamePrefix, 1L));
+      final ThreadFactory threadFactory = r -> {
+        final Thread thread = virtualFactory.newThread(r);
+        thread.setContextClassLoader(classLoader);
+        return thread;
+      };
+      return new VirtualThreadExecutor((ExecutorService)NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory), maxConcurrency);
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Failed to create virtual thread executor", e);
+      return null;
+    }
+  }
+
+  @Override
+  public void execute(@NotNull final Runnable command) {
+    myDelegate.execute(() -> {
+      try {
+        myPermits.acquire();
+      } catch (InterruptedException e) {
+        // shut down before the task got its turn, same as a task left in the queue of a thread pool
+        Thread.currentThread().interrupt();
+        return;
+      }
+      try {
+        command.run();
+      } finally {
+        myPermits.release();
+      }
+    });
+  }
+
+  @Override
+  public void shutdown() {
+    myDelegate.shutdown();
+  }
+
+  @NotNull
+  @Override
+  public List<Runnable> shutdownNow() {
+    return myDelegate.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return myDelegate.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return myDelegate.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException {
+    return myDelegate.awaitTermination(timeout, unit);
+  }
+}
@@ -0,0 +1,282 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.Request;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Client-side rate limits of AWS calls, adapted to the throttling errors of the services (AIMD).
+ * <p>
+ * Requests are counted per endpoint and operation. Until the first throttling error, e.g. {@code SlowDown},
+ * {@code Throttling} or {@code RequestLimitExceeded}, they aren't limited. After it the allowed rate is halved
+ * relative to the rate the requests were sent with (at most once per second, as a burst of errors is one signal)
+ * and then grows by {@link #INCREASE_PER_SEC} requests per second for every second of successful requests,
+ * so the throughput settles just below the limit of the service. The rate never drops below {@link #MIN_RATE}.
+ * The limit is lifted once the rate has grown back to the one the requests were throttled at and no request
+ * was throttled for {@link #LIFT_AFTER_MS} since then.
+ * <p>
+ * The limiter sits in the request pipeline of the clients built with {@link #newRequestHandler()}, so every attempt,
+ * both the SDK retries and the {@link AmazonRetrier} ones, waits for its turn. A request which would wait longer than
+ * {@link #MAX_WAIT_MS} fails at once with {@link RateLimitExceededException}, a throttling error the callers retry with
+ * their back-off, so the waiting requests don't pile up in the request handlers. Set {@link #LIMITER_ENABLED} to false
+ * to send the requests without waiting.
+ */
+public final class AdaptiveRateLimiter {
+  public static final String LIMITER_ENABLED = "amazon.rateLimiter.enabled";
+  public static final String MIN_RATE = "amazon.rateLimiter.minRate";
+  public static final String LIFT_AFTER_MS = "amazon.rateLimiter.liftAfterMs";
+  public static final String INCREASE_PER_SEC = "amazon.rateLimiter.increasePerSec";
+  public static final String MAX_WAIT_MS = "amazon.rateLimiter.maxWaitMs";
+  static final int DEFAULT_MIN_RATE = 1;
+  static final int DEFAULT_LIFT_AFTER_MS = 60 * 1000;
+  static final int DEFAULT_INCREASE_PER_SEC = 1;
+  static final int DEFAULT_MAX_WAIT_MS = 5 * 1000;
+  static final double DECREASE_FACTOR = 0.5;
+  static final int MAX_LIMITERS = 1000;
+  private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+  private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AdaptiveRateLimiter.class.getName());
+  @NotNull
+  private static final AdaptiveRateLimiter INSTANCE = new AdaptiveRateLimiter();
+
+  @NotNull
+  private final Map<String, Limiter> myLimiters = new ConcurrentHashMap<>();
+  @NotNull
+  private final RequestHandler2 myRequestHandler = new RequestHandler2() {
+    @Override
+    public void beforeAttempt(final HandlerBeforeAttemptContext context) {
+      if (!isEnabled()) return;
+      try {
+        acquire(getKey(context.getRequest()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AbortedException(e);
+      }
+    }
+
+    @Override
+    public void afterAttempt(final HandlerAfterAttemptContext context) {
+      if (!isEnabled()) return;
+      final Exception exception = context.getException();
+      // a request rejected by the limiter itself wasn't sent
+      if (exception instanceof RateLimitExceededException) return;
+      if (exception instanceof SdkBaseException && RetryUtils.isThrottlingException((SdkBaseException)exception)) {
+        throttled(getKey(context.getRequest()));
+      } else if (exception == null) {
+        succeeded(getKey(context.getRequest()));
+      }
+    }
+  };
+
+  AdaptiveRateLimiter() {
+  }
+
+  @NotNull
+  public static AdaptiveRateLimiter getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return handler to build the clients with, shared by all clients
+   */
+  @NotNull
+  public static RequestHandler2 newRequestHandler() {
+    return INSTANCE.myRequestHandler;
+  }
+
+  private static boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(LIMITER_ENABLED);
+  }
+
+  @NotNull
+  static String getKey(@NotNull final Request<?> request) {
+    final String operation = request.getHandlerContext(HandlerContextKey.OPERATION_NAME);
+    return request.getEndpoint().getHost() + "/" + (operation != null ? operation : request.getOriginalRequest().getClass().getSimpleName());
+  }
+
+  /**
+   * Waits until a request may be sent
+   *
+   * @throws RateLimitExceededException if the request would wait longer than {@link #MAX_WAIT_MS}
+   */
+  void acquire(@NotNull final String key) throws InterruptedException {
+    final Limiter limiter = getLimiter(key);
+    final long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, TeamCityProperties.getInteger(MAX_WAIT_MS, DEFAULT_MAX_WAIT_MS)));
+    final long waitNanos = limiter.reserve(System.nanoTime(), maxWaitNanos);
+    if (waitNanos < 0) {
+      throw new RateLimitExceededException(key);
+    }
+    if (waitNanos == 0) return;
+    try {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    } catch (InterruptedException e) {
+      // the request isn't sent, its turn is given to the next one
+      limiter.cancel();
+      throw e;
+    }
+  }
+
+  void throttled(@NotNull final String key) {
+    final Limiter limiter = getLimiter(key);
+    final double rate = limiter.decrease(System.nanoTime(), Math.max(1, TeamCityProperties.getInteger(MIN_RATE, DEFAULT_MIN_RATE)));
+    if (rate > 0) {
+      LOG.info("Requests to " + key + " are throttled, limiting them to " + String.format("%.2f", rate) + " per second");
+    }
+  }
+
+  void succeeded(@NotNull final String key) {
+    final Limiter limiter = myLimiters.get(key);
+    if (limiter != null && limiter.increase(System.nanoTime(),
+                                            Math.max(0, TeamCityProperties.getInteger(INCREASE_PER_SEC, DEFAULT_INCREASE_PER_SEC)),
+                                            TimeUnit.MILLISECONDS.toNanos(Math.max(0, TeamCityProperties.getInteger(LIFT_AFTER_MS, DEFAULT_LIFT_AFTER_MS))))) {
+      LOG.info("Requests to " + key + " are not limited anymore");
+    }
+  }
+
+  /**
+   * @return allowed requests per second of the limited endpoints and operations
+   */
+  @NotNull
+  public SortedMap<String, Double> getRates() {
+    final SortedMap<String, Double> result = new TreeMap<>();
+    for (Map.Entry<String, Limiter> entry : myLimiters.entrySet()) {
+      final double rate = entry.getValue().getRate();
+      if (rate > 0) {
+        result.put(entry.getKey(), rate);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private Limiter getLimiter(@NotNull final String key) {
+    final Limiter limiter = myLimiters.get(key);
+    if (limiter != null) return limiter;
+    if (myLimiters.size() >= MAX_LIMITERS) {
+      removeIdle(System.nanoTime());
+    }
+    return myLimiters.computeIfAbsent(key, k -> new Limiter());
+  }
+
+  private void removeIdle(final long now) {
+    for (Iterator<Limiter> it = myLimiters.values().iterator(); it.hasNext(); ) {
+      if (it.next().isIdle(now)) {
+        it.remove();
+      }
+    }
+  }
+
+  void clear() {
+    myLimiters.clear();
+  }
+
+  private static final class Limiter {
+    /**
+     * allowed requests per second, 0 if not limited
+     */
+    private double myRate = 0;
+    /**
+     * rate the requests were sent with when they were throttled the last time
+     */
+    private double myThrottledRate = 0;
+    /**
+     * when the rate grew back to the throttled one, 0 if it's below it
+     */
+    private long myRecoveredAt = 0;
+    private long myNextFreeAt = 0;
+    private long myLastDecreaseAt = 0;
+    private long myLastIncreaseAt = 0;
+    private long myWindowStart = System.nanoTime();
+    private int myWindowCount = 0;
+    private double myMeasuredRate = 0;
+    private long myLastUsedAt = System.nanoTime();
+
+    /**
+     * @return nanoseconds to wait before sending the request, -1 if it would wait longer than allowed and isn't reserved
+     */
+    private synchronized long reserve(final long now, final long maxWaitNanos) {
+      myLastUsedAt = now;
+      final long windowNanos = now - myWindowStart;
+      if (windowNanos >= SECOND_NANOS) {
+        myMeasuredRate = myWindowCount * (double)SECOND_NANOS / windowNanos;
+        myWindowStart = now;
+        myWindowCount = 0;
+      }
+      myWindowCount++;
+      if (myRate <= 0) return 0;
+
+      final long sendAt = Math.max(now, myNextFreeAt);
+      if (sendAt - now > maxWaitNanos) return -1;
+      myNextFreeAt = sendAt + (long)(SECOND_NANOS / myRate);
+      return sendAt - now;
+    }
+
+    /**
+     * Releases the turn of a reserved request which won't be sent
+     */
+    private synchronized void cancel() {
+      if (myRate <= 0) return;
+      myNextFreeAt -= (long)(SECOND_NANOS / myRate);
+    }
+
+    /**
+     * @return the new rate or 0 if it wasn't changed
+     */
+    private synchronized double decrease(final long now, final double minRate) {
+      if (myLastDecreaseAt != 0 && now - myLastDecreaseAt < SECOND_NANOS) return 0;
+      final double sentRate = myRate > 0 ? myRate : Math.max(myMeasuredRate, myWindowCount * (double)SECOND_NANOS / Math.max(SECOND_NANOS, now - myWindowStart));
+      myRate = Math.max(minRate, sentRate * DECREASE_FACTOR);
+      myThrottledRate = sentRate;
+      myRecoveredAt = 0;
+      myLastDecreaseAt = now;
+      myLastIncreaseAt = now;
+      return myRate;
+    }
+
+    /**
+     * @return true if the limit was lifted
+     */
+    private synchronized boolean increase(final long now, final double increasePerSec, final long liftAfterNanos) {
+      if (myRate <= 0) return false;
+      myRate += increasePerSec * (now - myLastIncreaseAt) / SECOND_NANOS;
+      myLastIncreaseAt = now;
+      if (myRate < myThrottledRate) {
+        myRecoveredAt = 0;
+        return false;
+      }
+      if (myRecoveredAt == 0) {
+        myRecoveredAt = now;
+      }
+      if (now - myRecoveredAt < liftAfterNanos) return false;
+      myRate = 0;
+      myThrottledRate = 0;
+      myRecoveredAt = 0;
+      myNextFreeAt = 0;
+      myLastDecreaseAt = 0;
+      return true;
+    }
+
+    private synchronized double getRate() {
+      return myRate;
+    }
+
+    private synchronized boolean isIdle(final long now) {
+      return now - myLastUsedAt > IDLE_NANOS;
+    }
+  }
+}
@@ -10,6 +10,7 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.concurrent.Callable;
 import javax.net.ssl.SSLException;
+import jetbrains.buildServer.util.retry.AbortRetriesException;
 import jetbrains.buildServer.util.retry.RecoverableException;
 import jetbrains.buildServer.util.retry.Retrier;
 import jetbrains.buildServer.util.retry.RetrierEventListener;
@@ -18,14 +19,30 @@ import jetbrains.buildServer.util.retry.impl.LoggingRetrierListener;
 import org.jetbrains.annotations.NotNull;
 
 /**
+ * Retries of AWS calls, configured with the internal properties:
+ * <ul>
+ *   <li>{@code amazon.retry.backOff.strategy}: {@code linear} (default), {@code fullJitter} or {@code decorrelatedJitter}, see {@link BackOff}</li>
+ *   <li>{@code amazon.retry.backOff.maxDelayMs}: cap of the jittered delays, 20000 by default</li>
+ *   <li>{@code amazon.retry.budget.enabled}: limits the retries of the process by the {@link RetryBudget}, false by default</li>
+ *   <li>{@code amazon.retry.budget.capacity}: retries the budget allows at once, 100 by default</li>
+ *   <li>{@code amazon.retry.budget.refillPerSec}: retries added to the budget per second, 10 by default</li>
+ *   <li>{@code amazon.retry.policy.rules}: retry rules for particular errors, none by default, see {@link RetryPolicy}</li>
+ * </ul>
+ *
  * @author Dmitrii Bogdanov
  */
 public interface AmazonRetrier extends RetrierEventListener {
 
+  /**
+   * Retries transient errors with the {@link BackOff#getStrategy() configured back-off} based on the retry delay.
+   * When the process-wide {@link RetryBudget} is enabled, every retry takes a token from it and without one the retrier
+   * fails with {@link RetryBudgetExhaustedException}. Calls rejected by the {@link CircuitBreaker} aren't retried.
+   * The rules of the {@link RetryPolicy} take precedence over the built-in classification of the errors.
+   */
   @NotNull
   static Retrier defaultAwsRetrier(final int retriesNum, final int retryDelay, @NotNull final Logger logger) {
-    return Retrier.withRetries(retriesNum, Retrier.DelayStrategy.linearBackOff(retryDelay))
-                  .registerListener(new LoggingRetrierListener(logger))
+    // the failure is logged as retried only after it passed the aborting listener and the retry budget
+    return Retrier.withRetries(retriesNum, Retrier.DelayStrategy.linearBackOff(0))
                   .registerListener(
                     new AbortingListener(SSLException.class, UnknownHostException.class, SocketException.class, IOException.class, InterruptedException.class) {
                       @Override
@@ -34,6 +51,13 @@ public interface AmazonRetrier extends RetrierEventListener {
                           Thread.currentThread().interrupt();
                           return;
                         }
+                        final RetryPolicy.Action action = RetryPolicy.getInstance().getAction(e);
+                        if (action == RetryPolicy.Action.ABORT) {
+                          throw new AbortRetriesException(e);
+                        }
+                        if (action == RetryPolicy.Action.RETRY) {
+                          return;
+                        }
                         if (e instanceof RecoverableException && ((RecoverableException)e).isRecoverable()) {
                           return;
                         }
@@ -42,6 +66,38 @@ public interface AmazonRetrier extends RetrierEventListener {
                         }
                         super.onFailure(callable, retry, e);
                       }
-                    });
+                    })
+                  .registerListener(new BackOffListener(retriesNum, retryDelay, BackOff.getStrategy(), RetryBudget.getInstance()))
+                  .registerListener(new LoggingRetrierListener(logger));
+  }
+
+  /**
+   * Tells whether the {@link #defaultAwsRetrier} would keep retrying after the given error
+   *
+   * @param e error thrown by an attempt or by the retrier itself
+   * @return true if the error is considered transient
+   */
+  static boolean isRetryable(@NotNull final Throwable e) {
+    if (e instanceof RetryBudgetExhaustedException) {
+      return false;
+    }
+    Throwable cause = e;
+    while (cause instanceof AbortRetriesException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof InterruptedException || cause instanceof CircuitOpenException) {
+      return false;
+    }
+    final RetryPolicy.Action action = RetryPolicy.getInstance().getAction(cause);
+    if (action != null) {
+      return action == RetryPolicy.Action.RETRY;
+    }
+    if (cause instanceof RecoverableException && ((RecoverableException)cause).isRecoverable()) {
+      return true;
+    }
+    if (cause instanceof SdkClientException && RetryUtils.isRetryableServiceException((SdkClientException)cause)) {
+      return true;
+    }
+    return cause instanceof IOException;
   }
 }
\ No newline at end of file
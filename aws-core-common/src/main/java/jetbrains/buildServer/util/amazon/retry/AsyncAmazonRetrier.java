@@ -0,0 +1,144 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import jetbrains.buildServer.util.retry.AbortRetriesException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Non-blocking variant of {@link AmazonRetrier#defaultAwsRetrier}: attempts are started from a shared scheduler
+ * after the {@link BackOff} delay (or the one of the {@link RetryPolicy} rule), so no thread waits between them.
+ * <p>
+ * Errors are classified by {@link AmazonRetrier#isRetryable}, the same way the default retrier does it. A non-retryable
+ * error fails the future with {@link AbortRetriesException}, the last error is passed as is once the retries are used up.
+ * Every retry takes a token from the {@link RetryBudget} if it's enabled, without one the future fails with
+ * {@link RetryBudgetExhaustedException}. Cancelling the returned future stops the retries.
+ */
+public final class AsyncAmazonRetrier {
+  @NotNull
+  private static final ScheduledExecutorService SCHEDULER;
+
+  static {
+    final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+      final Thread thread = new Thread(r, "amazon-util-async-retrier");
+      thread.setDaemon(true);
+      thread.setContextClassLoader(AsyncAmazonRetrier.class.getClassLoader());
+      return thread;
+    });
+    scheduler.setRemoveOnCancelPolicy(true);
+    SCHEDULER = scheduler;
+  }
+
+  private final int myRetriesNum;
+  private final int myRetryDelay;
+  @NotNull
+  private final Logger myLogger;
+  @NotNull
+  private final BackOff.Strategy myStrategy;
+  @NotNull
+  private final RetryBudget myBudget;
+
+  AsyncAmazonRetrier(final int retriesNum, final int retryDelay, @NotNull final Logger logger, @NotNull final BackOff.Strategy strategy, @NotNull final RetryBudget budget) {
+    myRetriesNum = retriesNum;
+    myRetryDelay = retryDelay;
+    myLogger = logger;
+    myStrategy = strategy;
+    myBudget = budget;
+  }
+
+  @NotNull
+  public static AsyncAmazonRetrier defaultAwsRetrier(final int retriesNum, final int retryDelay, @NotNull final Logger logger) {
+    return new AsyncAmazonRetrier(retriesNum, retryDelay, logger, BackOff.getStrategy(), RetryBudget.getInstance());
+  }
+
+  /**
+   * @param attempt  blocking call to make
+   * @param executor executor to make every attempt on
+   */
+  @NotNull
+  public <T> CompletableFuture<T> execute(@NotNull final Callable<T> attempt, @NotNull final Executor executor) {
+    return executeAsync(() -> CompletableFuture.supplyAsync(() -> {
+      try {
+        return attempt.call();
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    }, executor));
+  }
+
+  /**
+   * @param attempt starts an attempt, must not block as it's called from the shared scheduler for the retries
+   */
+  @NotNull
+  public <T> CompletableFuture<T> executeAsync(@NotNull final Supplier<? extends CompletionStage<T>> attempt) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    new Execution<>(attempt, result).start(0, 0);
+    return result;
+  }
+
+  private final class Execution<T> {
+    @NotNull
+    private final Supplier<? extends CompletionStage<T>> myAttempt;
+    @NotNull
+    private final CompletableFuture<T> myResult;
+    @Nullable
+    private volatile Future<?> myScheduled;
+
+    private Execution(@NotNull final Supplier<? extends CompletionStage<T>> attempt, @NotNull final CompletableFuture<T> result) {
+      myAttempt = attempt;
+      myResult = result;
+      myResult.whenComplete((r, e) -> {
+        final Future<?> scheduled = myScheduled;
+        if (myResult.isCancelled() && scheduled != null) {
+          scheduled.cancel(false);
+        }
+      });
+    }
+
+    private void start(final int retry, final long delayMs) {
+      if (myResult.isDone()) return;
+      final CompletionStage<T> stage;
+      try {
+        stage = myAttempt.get();
+      } catch (Throwable e) {
+        onFailure(retry, delayMs, e);
+        return;
+      }
+      stage.whenComplete((value, e) -> {
+        if (e == null) {
+          myResult.complete(value);
+        } else {
+          onFailure(retry, delayMs, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+        }
+      });
+    }
+
+    private void onFailure(final int retry, final long previousDelayMs, @NotNull final Throwable e) {
+      if (myResult.isDone()) return;
+      if (!AmazonRetrier.isRetryable(e)) {
+        myResult.completeExceptionally(e instanceof AbortRetriesException ? e : new AbortRetriesException(e));
+        return;
+      }
+      if (retry >= myRetriesNum) {
+        myResult.completeExceptionally(e);
+        return;
+      }
+      if (!myBudget.tryAcquire()) {
+        myResult.completeExceptionally(new RetryBudgetExhaustedException(e));
+        return;
+      }
+      final int nextRetry = retry + 1;
+      final long delayMs = RetryPolicy.getInstance().getDelayMs(e, BackOff.getDelayMs(myStrategy, nextRetry, myRetryDelay, previousDelayMs));
+      myLogger.info("Attempt " + nextRetry + " of " + (myRetriesNum + 1) + " failed, retrying in " + delayMs + " ms: " + e.getMessage());
+      try {
+        myScheduled = SCHEDULER.schedule(() -> start(nextRetry, delayMs), delayMs, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException rejected) {
+        myResult.completeExceptionally(e);
+      }
+    }
+  }
+}
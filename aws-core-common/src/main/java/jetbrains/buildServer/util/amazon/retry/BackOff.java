@@ -0,0 +1,70 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Delays between the attempts of {@link AmazonRetrier#defaultAwsRetrier} and of the resubmitted transfers.
+ * <p>
+ * The {@link #STRATEGY} internal property selects the strategy by its name, case and underscores aside (e.g. {@code fullJitter}),
+ * {@link Strategy#LINEAR} by default, so the callers keep the delays they were configured with until the jittered strategies
+ * are chosen. Jittered delays spread the retries of the clients which failed at the same moment, so they don't hit the service
+ * again in waves. They are capped by {@link #MAX_DELAY_MS}, 20 seconds by default.
+ */
+public final class BackOff {
+  public static final String STRATEGY = "amazon.retry.backOff.strategy";
+  public static final String MAX_DELAY_MS = "amazon.retry.backOff.maxDelayMs";
+  static final long DEFAULT_MAX_DELAY_MS = 20 * 1000;
+
+  public enum Strategy {
+    /**
+     * base * retry, the delays of the earlier versions
+     */
+    LINEAR,
+    /**
+     * random between 0 and base * 2^(retry - 1)
+     */
+    FULL_JITTER,
+    /**
+     * random between base and 3 * the previous delay
+     */
+    DECORRELATED_JITTER
+  }
+
+  private BackOff() {
+  }
+
+  @NotNull
+  public static Strategy getStrategy() {
+    final String value = TeamCityProperties.getProperty(STRATEGY, Strategy.LINEAR.name());
+    for (Strategy strategy : Strategy.values()) {
+      if (strategy.name().replace("_", "").equalsIgnoreCase(value.replace("_", "").trim())) {
+        return strategy;
+      }
+    }
+    return Strategy.LINEAR;
+  }
+
+  /**
+   * @param retry           number of the retry, starting from 1
+   * @param baseDelayMs     configured retry delay
+   * @param previousDelayMs delay before the previous retry, 0 for the first one
+   * @return delay before the retry
+   */
+  public static long getDelayMs(@NotNull final Strategy strategy, final int retry, final long baseDelayMs, final long previousDelayMs) {
+    if (baseDelayMs <= 0) return 0;
+    if (strategy == Strategy.LINEAR) {
+      return baseDelayMs * retry;
+    }
+    final long maxDelayMs = Math.max(baseDelayMs, TeamCityProperties.getLong(MAX_DELAY_MS, DEFAULT_MAX_DELAY_MS));
+    switch (strategy) {
+      case DECORRELATED_JITTER:
+        final long upper = Math.min(maxDelayMs, Math.max(baseDelayMs, previousDelayMs) * 3);
+        return upper <= baseDelayMs ? baseDelayMs : ThreadLocalRandom.current().nextLong(baseDelayMs, upper + 1);
+      default:
+        final long ceiling = retry > 30 ? maxDelayMs : Math.min(maxDelayMs, baseDelayMs << (retry - 1));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import jetbrains.buildServer.util.retry.AbortRetriesException;
+import jetbrains.buildServer.util.retry.RetrierEventListener;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Waits before every retry according to the {@link BackOff} strategy or the {@link RetryPolicy} rule of the error and takes a token from the {@link RetryBudget}.
+ * The retrier itself is created without delays.
+ * <p>
+ * The token is taken when an attempt fails. Without one all listeners are still told about the failure, and the retrier fails
+ * with {@link RetryBudgetExhaustedException} instead of the retry. Executions nested in the same thread, e.g. a retried call
+ * made by a retried call, keep their own state.
+ */
+class BackOffListener implements RetrierEventListener {
+  private final int myRetriesNum;
+  private final long myBaseDelayMs;
+  @NotNull
+  private final BackOff.Strategy myStrategy;
+  @NotNull
+  private final RetryBudget myBudget;
+  @NotNull
+  private final ThreadLocal<Deque<Attempts>> myExecutions = ThreadLocal.withInitial(ArrayDeque::new);
+
+  BackOffListener(final int retriesNum, final long baseDelayMs, @NotNull final BackOff.Strategy strategy, @NotNull final RetryBudget budget) {
+    myRetriesNum = retriesNum;
+    myBaseDelayMs = baseDelayMs;
+    myStrategy = strategy;
+    myBudget = budget;
+  }
+
+  @Override
+  public <T> void beforeExecution(@NotNull final Callable<T> callable) {
+    myExecutions.get().push(new Attempts());
+  }
+
+  @Override
+  public <T> void onFailure(@NotNull final Callable<T> callable, final int retry, @NotNull final Exception e) {
+    final Attempts attempts = getAttempts();
+    attempts.myLastError = e;
+    // the last attempt isn't retried, an interrupted one is aborted before the retry
+    attempts.myBudgetExhausted = retry < myRetriesNum && !(e instanceof InterruptedException) && !myBudget.tryAcquire();
+  }
+
+  @Override
+  public <T> void beforeRetry(@NotNull final Callable<T> callable, final int retry) {
+    final Attempts attempts = getAttempts();
+    if (attempts.myBudgetExhausted) {
+      throw new RetryBudgetExhaustedException(attempts.myLastError);
+    }
+    final long delayMs = RetryPolicy.getInstance().getDelayMs(attempts.myLastError, BackOff.getDelayMs(myStrategy, retry, myBaseDelayMs, attempts.myPreviousDelayMs));
+    attempts.myPreviousDelayMs = delayMs;
+    if (delayMs <= 0) return;
+    try {
+      Thread.sleep(delayMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AbortRetriesException(e);
+    }
+  }
+
+  @Override
+  public <T> void afterExecution(@NotNull final Callable<T> callable) {
+    final Deque<Attempts> executions = myExecutions.get();
+    executions.poll();
+    if (executions.isEmpty()) {
+      myExecutions.remove();
+    }
+  }
+
+  @NotNull
+  private Attempts getAttempts() {
+    final Deque<Attempts> executions = myExecutions.get();
+    if (executions.isEmpty()) {
+      // the retrier didn't report the start of the execution
+      executions.push(new Attempts());
+    }
+    return executions.peek();
+  }
+
+  private static final class Attempts {
+    private long myPreviousDelayMs = 0;
+    private Exception myLastError = null;
+    private boolean myBudgetExhausted = false;
+  }
+}
@@ -0,0 +1,306 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stops calling AWS endpoints which keep failing, so the callers fail at once instead of working through their retries.
+ * <p>
+ * Attempts are counted per endpoint host and access key in a sliding window of {@link #WINDOW_SEC} seconds.
+ * Server errors (5xx except throttling) and I/O errors are failures, any other response shows the endpoint works.
+ * Once at least {@link #MINIMUM_CALLS} attempts were made in the window and {@link #FAILURE_RATE_PERCENT} of them failed
+ * the circuit opens and the attempts are rejected with {@link CircuitOpenException} for {@link #OPEN_DURATION_SEC}
+ * seconds. Then it's half-open: a single probe is let through, its success closes the circuit and its failure opens it
+ * again. {@link AmazonRetrier} doesn't retry the rejected calls. Attempts rejected by the {@link AdaptiveRateLimiter} aren't counted.
+ * <p>
+ * The breaker sits in the request pipeline of the clients built with {@link #newRequestHandler()}. It's off by default,
+ * set {@link #BREAKER_ENABLED} to true to turn it on. With it on, calls to an endpoint with an open circuit fail with
+ * {@link CircuitOpenException} without reaching the endpoint, even if it has already recovered, until a probe succeeds.
+ */
+public final class CircuitBreaker {
+  public static final String BREAKER_ENABLED = "amazon.circuitBreaker.enabled";
+  public static final String FAILURE_RATE_PERCENT = "amazon.circuitBreaker.failureRatePercent";
+  public static final String MINIMUM_CALLS = "amazon.circuitBreaker.minimumCalls";
+  public static final String WINDOW_SEC = "amazon.circuitBreaker.windowSec";
+  public static final String OPEN_DURATION_SEC = "amazon.circuitBreaker.openDurationSec";
+  static final int DEFAULT_FAILURE_RATE_PERCENT = 50;
+  static final int DEFAULT_MINIMUM_CALLS = 20;
+  static final int DEFAULT_WINDOW_SEC = 60;
+  static final int DEFAULT_OPEN_DURATION_SEC = 30;
+  static final int MAX_CIRCUITS = 1000;
+  private static final int BUCKETS = 10;
+  private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(CircuitBreaker.class.getName());
+  @NotNull
+  private static final CircuitBreaker INSTANCE = new CircuitBreaker();
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  @NotNull
+  private final Map<String, Circuit> myCircuits = new ConcurrentHashMap<>();
+  @NotNull
+  private final RequestHandler2 myRequestHandler = new RequestHandler2() {
+    @Override
+    public void beforeAttempt(final HandlerBeforeAttemptContext context) {
+      if (!isEnabled()) return;
+      final String key = getKey(context.getRequest());
+      if (!allow(key)) {
+        throw new CircuitOpenException(key);
+      }
+    }
+
+    @Override
+    public void afterAttempt(final HandlerAfterAttemptContext context) {
+      if (!isEnabled()) return;
+      final Exception exception = context.getException();
+      if (exception instanceof CircuitOpenException) return;
+      if (exception instanceof RateLimitExceededException) {
+        // the attempt was rejected locally and tells nothing about the endpoint, a probe it took is given back
+        release(getKey(context.getRequest()));
+        return;
+      }
+      final Boolean failed = isFailure(exception);
+      if (failed != null) {
+        record(getKey(context.getRequest()), failed);
+      }
+    }
+  };
+
+  CircuitBreaker() {
+  }
+
+  @NotNull
+  public static CircuitBreaker getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return handler to build the clients with, shared by all clients
+   */
+  @NotNull
+  public static RequestHandler2 newRequestHandler() {
+    return INSTANCE.getRequestHandler();
+  }
+
+  @NotNull
+  RequestHandler2 getRequestHandler() {
+    return myRequestHandler;
+  }
+
+  private static boolean isEnabled() {
+    return TeamCityProperties.getBoolean(BREAKER_ENABLED);
+  }
+
+  @NotNull
+  static String getKey(@NotNull final Request<?> request) {
+    final AWSCredentials credentials = request.getHandlerContext(HandlerContextKey.AWS_CREDENTIALS);
+    final String accessKeyId = credentials != null ? credentials.getAWSAccessKeyId() : null;
+    return request.getEndpoint().getHost() + (accessKeyId != null ? " (" + accessKeyId + ")" : "");
+  }
+
+  /**
+   * @return true if the attempt failed because of the endpoint, false if it works, null if it's unknown
+   */
+  @Nullable
+  static Boolean isFailure(@Nullable final Exception e) {
+    if (e == null) return false;
+    if (e instanceof AmazonServiceException) {
+      final AmazonServiceException serviceException = (AmazonServiceException)e;
+      return serviceException.getStatusCode() >= 500 && !RetryUtils.isThrottlingException(serviceException);
+    }
+    if (e instanceof IOException || e instanceof SdkClientException && e.getCause() instanceof IOException) return true;
+    return null;
+  }
+
+  /**
+   * @return true if an attempt may be made, a half-open circuit lets a single one through
+   */
+  boolean allow(@NotNull final String key) {
+    final Circuit circuit = myCircuits.get(key);
+    return circuit == null || circuit.allow(System.nanoTime());
+  }
+
+  /**
+   * Lets the next attempt probe a half-open circuit, the probe made no call
+   */
+  void release(@NotNull final String key) {
+    final Circuit circuit = myCircuits.get(key);
+    if (circuit != null) {
+      circuit.release();
+    }
+  }
+
+  void record(@NotNull final String key, final boolean failed) {
+    final State before, after;
+    final Circuit circuit = getCircuit(key);
+    synchronized (circuit) {
+      before = circuit.getState(System.nanoTime());
+      circuit.record(System.nanoTime(), failed);
+      after = circuit.getState(System.nanoTime());
+    }
+    if (before != State.OPEN && after == State.OPEN) {
+      LOG.warn("Calls to " + key + " keep failing, rejecting them for " + getOpenDurationSec() + " seconds");
+    } else if (before != State.CLOSED && after == State.CLOSED) {
+      LOG.info("Calls to " + key + " succeed again");
+    }
+  }
+
+  @NotNull
+  public State getState(@NotNull final String key) {
+    final Circuit circuit = myCircuits.get(key);
+    return circuit == null ? State.CLOSED : circuit.getState(System.nanoTime());
+  }
+
+  /**
+   * @return states of the circuits which are not closed, sorted by the endpoint
+   */
+  @NotNull
+  public SortedMap<String, State> getStates() {
+    final long now = System.nanoTime();
+    final SortedMap<String, State> result = new TreeMap<>();
+    for (Map.Entry<String, Circuit> entry : myCircuits.entrySet()) {
+      final State state = entry.getValue().getState(now);
+      if (state != State.CLOSED) {
+        result.put(entry.getKey(), state);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private Circuit getCircuit(@NotNull final String key) {
+    final Circuit circuit = myCircuits.get(key);
+    if (circuit != null) return circuit;
+    if (myCircuits.size() >= MAX_CIRCUITS) {
+      final long now = System.nanoTime();
+      for (Iterator<Circuit> it = myCircuits.values().iterator(); it.hasNext(); ) {
+        if (it.next().isIdle(now)) {
+          it.remove();
+        }
+      }
+    }
+    return myCircuits.computeIfAbsent(key, k -> new Circuit());
+  }
+
+  void clear() {
+    myCircuits.clear();
+  }
+
+  private static long getOpenDurationSec() {
+    return Math.max(1, TeamCityProperties.getInteger(OPEN_DURATION_SEC, DEFAULT_OPEN_DURATION_SEC));
+  }
+
+  private static final class Circuit {
+    private final int[] myCalls = new int[BUCKETS];
+    private final int[] myFailures = new int[BUCKETS];
+    private final long[] myBucketStarts = new long[BUCKETS];
+    /**
+     * time the circuit gets half-open, 0 if it's closed
+     */
+    private long myHalfOpenAt = 0;
+    /**
+     * time the probe of the half-open circuit was let through, 0 if there is none
+     */
+    private long myProbeAt = 0;
+    private long myLastUsedAt = System.nanoTime();
+
+    private synchronized boolean allow(final long now) {
+      final State state = getState(now);
+      if (state == State.CLOSED) return true;
+      if (state == State.OPEN) return false;
+      // a probe which got no response is replaced after the open duration
+      if (myProbeAt != 0 && now - myProbeAt < TimeUnit.SECONDS.toNanos(getOpenDurationSec())) return false;
+      myProbeAt = now;
+      return true;
+    }
+
+    private synchronized void release() {
+      myProbeAt = 0;
+    }
+
+    private synchronized void record(final long now, final boolean failed) {
+      myLastUsedAt = now;
+      final State state = getState(now);
+      if (state == State.OPEN) return;
+      if (state == State.HALF_OPEN) {
+        myProbeAt = 0;
+        if (failed) {
+          open(now);
+        } else {
+          close();
+        }
+        return;
+      }
+
+      final long windowNanos = TimeUnit.SECONDS.toNanos(Math.max(1, TeamCityProperties.getInteger(WINDOW_SEC, DEFAULT_WINDOW_SEC)));
+      final long bucketNanos = Math.max(1, windowNanos / BUCKETS);
+      final long bucketNumber = Math.floorDiv(now, bucketNanos);
+      final int bucket = (int)Math.floorMod(bucketNumber, (long)BUCKETS);
+      final long bucketStart = bucketNumber * bucketNanos;
+      if (myBucketStarts[bucket] != bucketStart) {
+        myBucketStarts[bucket] = bucketStart;
+        myCalls[bucket] = 0;
+        myFailures[bucket] = 0;
+      }
+      myCalls[bucket]++;
+      if (failed) myFailures[bucket]++;
+      if (!failed) return;
+
+      int calls = 0, failures = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        if (now - myBucketStarts[i] < windowNanos) {
+          calls += myCalls[i];
+          failures += myFailures[i];
+        }
+      }
+      final int minimumCalls = Math.max(1, TeamCityProperties.getInteger(MINIMUM_CALLS, DEFAULT_MINIMUM_CALLS));
+      final int failureRatePercent = TeamCityProperties.getInteger(FAILURE_RATE_PERCENT, DEFAULT_FAILURE_RATE_PERCENT);
+      if (calls >= minimumCalls && failures * 100L >= (long)failureRatePercent * calls) {
+        open(now);
+      }
+    }
+
+    private void open(final long now) {
+      myHalfOpenAt = now + TimeUnit.SECONDS.toNanos(getOpenDurationSec());
+    }
+
+    private void close() {
+      myHalfOpenAt = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        myCalls[i] = 0;
+        myFailures[i] = 0;
+      }
+    }
+
+    @NotNull
+    private synchronized State getState(final long now) {
+      if (myHalfOpenAt == 0) return State.CLOSED;
+      return now - myHalfOpenAt < 0 ? State.OPEN : State.HALF_OPEN;
+    }
+
+    private synchronized boolean isIdle(final long now) {
+      return myHalfOpenAt == 0 && now - myLastUsedAt > IDLE_NANOS;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.amazonaws.SdkClientException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown instead of calling an endpoint while its {@link CircuitBreaker circuit} is open, is never retried
+ */
+public class CircuitOpenException extends SdkClientException {
+  @NotNull
+  private final String myCircuit;
+
+  public CircuitOpenException(@NotNull final String circuit) {
+    super("Calls to " + circuit + " are rejected as they keep failing, try again later");
+    myCircuit = circuit;
+  }
+
+  @NotNull
+  public String getCircuit() {
+    return myCircuit;
+  }
+
+  @Override
+  public boolean isRetryable() {
+    return false;
+  }
+}
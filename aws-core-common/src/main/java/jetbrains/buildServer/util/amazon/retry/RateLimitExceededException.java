@@ -0,0 +1,19 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.amazonaws.AmazonServiceException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown instead of sending a request which would wait for its turn longer than {@link AdaptiveRateLimiter#MAX_WAIT_MS}.
+ * It's reported as a throttling error of the service, so the callers retry it with their back-off.
+ */
+public class RateLimitExceededException extends AmazonServiceException {
+  public static final String ERROR_CODE = "Throttling";
+
+  public RateLimitExceededException(@NotNull final String key) {
+    super("Requests to " + key + " are limited after throttling, too many of them are waiting for their turn");
+    setErrorCode(ERROR_CODE);
+    setErrorType(ErrorType.Client);
+    setStatusCode(503);
+  }
+}
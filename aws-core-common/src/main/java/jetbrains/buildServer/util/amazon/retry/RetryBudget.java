@@ -0,0 +1,77 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Process-wide token bucket limiting the retries of AWS calls.
+ * <p>
+ * Every retry takes a token and the bucket is refilled at a constant rate, so occasional retries always pass, while
+ * during an outage the callers fail once the bucket is empty instead of retrying all together and prolonging it.
+ * The bucket holds {@link #CAPACITY} tokens (100 by default) and gets {@link #REFILL_PER_SEC} tokens per second (10 by default).
+ * It's shared by all retries of AWS calls, including the retries of the upload parts, so it's off unless {@link #BUDGET_ENABLED}
+ * is set to true.
+ */
+public final class RetryBudget {
+  public static final String BUDGET_ENABLED = "amazon.retry.budget.enabled";
+  public static final String CAPACITY = "amazon.retry.budget.capacity";
+  public static final String REFILL_PER_SEC = "amazon.retry.budget.refillPerSec";
+  static final int DEFAULT_CAPACITY = 100;
+  static final int DEFAULT_REFILL_PER_SEC = 10;
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(RetryBudget.class.getName());
+  @NotNull
+  private static final RetryBudget INSTANCE = new RetryBudget();
+
+  private double myTokens = -1;
+  private long myRefilledAt = System.nanoTime();
+  @NotNull
+  private final AtomicLong myExhausted = new AtomicLong();
+
+  RetryBudget() {
+  }
+
+  @NotNull
+  public static RetryBudget getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return true if a retry may be made
+   */
+  public boolean tryAcquire() {
+    if (!TeamCityProperties.getBoolean(BUDGET_ENABLED)) {
+      return true;
+    }
+    final int capacity = Math.max(1, TeamCityProperties.getInteger(CAPACITY, DEFAULT_CAPACITY));
+    final int refillPerSec = Math.max(0, TeamCityProperties.getInteger(REFILL_PER_SEC, DEFAULT_REFILL_PER_SEC));
+    final boolean acquired;
+    synchronized (this) {
+      final long now = System.nanoTime();
+      if (myTokens < 0) {
+        myTokens = capacity;
+      } else {
+        myTokens = Math.min(capacity, myTokens + refillPerSec * (double)(now - myRefilledAt) / TimeUnit.SECONDS.toNanos(1));
+      }
+      myRefilledAt = now;
+      acquired = myTokens >= 1;
+      if (acquired) {
+        myTokens -= 1;
+      }
+    }
+    if (!acquired && myExhausted.getAndIncrement() % 100 == 0) {
+      LOG.warn("Retry budget of AWS calls is exhausted, failing without retries (" + myExhausted.get() + " time(s) so far)");
+    }
+    return acquired;
+  }
+
+  /**
+   * @return number of retries denied so far
+   */
+  public long getExhaustedCount() {
+    return myExhausted.get();
+  }
+}
@@ -0,0 +1,18 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import jetbrains.buildServer.util.retry.AbortRetriesException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown instead of a retry when the {@link RetryBudget} is exhausted, the cause is the error of the last attempt
+ */
+public class RetryBudgetExhaustedException extends AbortRetriesException {
+  public RetryBudgetExhaustedException(@NotNull final Throwable cause) {
+    super(cause);
+  }
+
+  @Override
+  public String getMessage() {
+    return "Retry budget is exhausted: " + getCause().getMessage();
+  }
+}
@@ -0,0 +1,220 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.amazonaws.AmazonServiceException;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Retry rules for particular AWS errors, which take precedence over the built-in classification of {@link AmazonRetrier}.
+ * <p>
+ * Rules are set with {@link #RULES} separated by {@code ;} or line breaks, e.g.
+ * {@code AmazonEC2:InvalidSnapshot.InUse=retry:5000; AmazonIdentityManagement:EntityAlreadyExists=abort; *:java.net.SocketTimeoutException=retry}.
+ * The left side is the service name of {@link AmazonServiceException#getServiceName()} or {@code *} for any service
+ * (errors which don't come from a service match only {@code *}) and then an AWS error code, an HTTP status code
+ * or a fully qualified exception class, which matches its subclasses and the causes of the error too.
+ * The right side is {@code abort}, {@code retry} or {@code retry:<delay ms>} to wait the given delay instead of
+ * the {@link BackOff} one. The error code is matched first, then the exception classes and then the status code,
+ * a rule of the service first and then the one of any service.
+ * <p>
+ * The rules are parsed into a lookup table once per property value. Without rules the errors are classified as before.
+ */
+public final class RetryPolicy {
+  public static final String RULES = "amazon.retry.policy.rules";
+  private static final String ANY_SERVICE = "*";
+  private static final int MAX_CAUSES = 10;
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(RetryPolicy.class.getName());
+  @NotNull
+  private static final RetryPolicy INSTANCE = new RetryPolicy();
+
+  public enum Action {
+    RETRY, ABORT
+  }
+
+  @NotNull
+  private volatile Table myTable = new Table("", Collections.emptyMap());
+
+  RetryPolicy() {
+  }
+
+  @NotNull
+  public static RetryPolicy getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return action of the rule matching the error or null if there is none
+   */
+  @Nullable
+  public Action getAction(@NotNull final Throwable e) {
+    final Rule rule = resolve(e);
+    return rule != null ? rule.myAction : null;
+  }
+
+  /**
+   * @param e              error of the failed attempt
+   * @param defaultDelayMs delay before the retry by the back-off strategy
+   * @return delay of the rule matching the error or the default one
+   */
+  public long getDelayMs(@Nullable final Throwable e, final long defaultDelayMs) {
+    final Rule rule = e != null ? resolve(e) : null;
+    return rule != null && rule.myDelayMs >= 0 ? rule.myDelayMs : defaultDelayMs;
+  }
+
+  @Nullable
+  Rule resolve(@NotNull final Throwable e) {
+    final Map<String, Rule> rules = getTable().myRules;
+    if (rules.isEmpty()) return null;
+
+    final AmazonServiceException serviceException = findServiceException(e);
+    final String service = serviceException != null ? normalizeService(serviceException.getServiceName()) : null;
+    if (serviceException != null && serviceException.getErrorCode() != null) {
+      final Rule rule = lookup(rules, service, serviceException.getErrorCode());
+      if (rule != null) return rule;
+    }
+    Throwable cause = e;
+    for (int i = 0; cause != null && i < MAX_CAUSES; i++, cause = cause.getCause()) {
+      for (Class<?> c = cause.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+        final Rule rule = lookup(rules, service, c.getName());
+        if (rule != null) return rule;
+      }
+    }
+    if (serviceException != null && serviceException.getStatusCode() > 0) {
+      return lookup(rules, service, String.valueOf(serviceException.getStatusCode()));
+    }
+    return null;
+  }
+
+  @Nullable
+  private static Rule lookup(@NotNull final Map<String, Rule> rules, @Nullable final String service, @NotNull final String match) {
+    if (service != null) {
+      final Rule rule = rules.get(key(service, match));
+      if (rule != null) return rule;
+    }
+    return rules.get(key(ANY_SERVICE, match));
+  }
+
+  @Nullable
+  private static AmazonServiceException findServiceException(@NotNull final Throwable e) {
+    Throwable cause = e;
+    for (int i = 0; cause != null && i < MAX_CAUSES; i++, cause = cause.getCause()) {
+      if (cause instanceof AmazonServiceException) return (AmazonServiceException)cause;
+    }
+    return null;
+  }
+
+  @NotNull
+  private Table getTable() {
+    final String source = StringUtil.emptyIfNull(TeamCityProperties.getProperty(RULES));
+    final Table table = myTable;
+    if (table.mySource.equals(source)) return table;
+    final Table parsed = new Table(source, parse(source));
+    myTable = parsed;
+    return parsed;
+  }
+
+  @NotNull
+  static Map<String, Rule> parse(@NotNull final String source) {
+    final Map<String, Rule> rules = new HashMap<>();
+    for (String line : source.split("[;\\n]")) {
+      final String text = line.trim();
+      if (text.isEmpty()) continue;
+      final Rule rule = parseRule(text);
+      if (rule == null) {
+        LOG.warn("Ignoring invalid retry rule \"" + text + "\" of " + RULES + ", expected <service or *>:<error code, HTTP status or exception class>=<retry[:delay ms] or abort>");
+        continue;
+      }
+      rules.put(key(rule.myService, rule.myMatch), rule);
+    }
+    return rules;
+  }
+
+  @Nullable
+  private static Rule parseRule(@NotNull final String text) {
+    final int eq = text.indexOf('=');
+    final int colon = eq > 0 ? text.lastIndexOf(':', eq) : -1;
+    if (colon <= 0) return null;
+    final String service = text.substring(0, colon).trim();
+    final String match = text.substring(colon + 1, eq).trim();
+    final String[] action = text.substring(eq + 1).trim().split("\\s*:\\s*", 2);
+    if (service.isEmpty() || match.isEmpty()) return null;
+
+    final String normalizedService = ANY_SERVICE.equals(service) ? ANY_SERVICE : normalizeService(service);
+    if ("abort".equalsIgnoreCase(action[0]) && action.length == 1) {
+      return new Rule(normalizedService, match, Action.ABORT, -1);
+    }
+    if (!"retry".equalsIgnoreCase(action[0])) return null;
+    if (action.length == 1) {
+      return new Rule(normalizedService, match, Action.RETRY, -1);
+    }
+    try {
+      final long delayMs = Long.parseLong(action[1]);
+      return delayMs >= 0 ? new Rule(normalizedService, match, Action.RETRY, delayMs) : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private static String normalizeService(@Nullable final String service) {
+    return StringUtil.emptyIfNull(service).replace(" ", "").toLowerCase(Locale.ENGLISH);
+  }
+
+  @NotNull
+  private static String key(@NotNull final String service, @NotNull final String match) {
+    return service + ":" + match;
+  }
+
+  static final class Rule {
+    @NotNull
+    private final String myService;
+    @NotNull
+    private final String myMatch;
+    @NotNull
+    private final Action myAction;
+    /**
+     * delay before the retry, -1 for the back-off one
+     */
+    private final long myDelayMs;
+
+    private Rule(@NotNull final String service, @NotNull final String match, @NotNull final Action action, final long delayMs) {
+      myService = service;
+      myMatch = match;
+      myAction = action;
+      myDelayMs = delayMs;
+    }
+
+    @NotNull
+    Action getAction() {
+      return myAction;
+    }
+
+    long getDelayMs() {
+      return myDelayMs;
+    }
+
+    @Override
+    public String toString() {
+      return myService + ":" + myMatch + "=" + myAction + (myDelayMs >= 0 ? ":" + myDelayMs : "");
+    }
+  }
+
+  private static final class Table {
+    @NotNull
+    private final String mySource;
+    @NotNull
+    private final Map<String, Rule> myRules;
+
+    private Table(@NotNull final String source, @NotNull final Map<String, Rule> rules) {
+      mySource = source;
+      myRules = rules;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Number of parts of a single upload allowed to be in flight, tuned from the measured throughput.
+ * <p>
+ * Throughput is measured over rounds of as many parts as the current limit. While a round is notably faster
+ * than the best one seen so far the limit grows by one, once it stops improving the limit goes back to the best one
+ * and is kept for {@link #PROBE_INTERVAL_ROUNDS} rounds, then a higher one is probed again as the conditions may have changed.
+ * A throttling error halves the limit and starts the search over.
+ */
+final class AdaptiveConcurrency {
+  static final int INITIAL_LIMIT = 2;
+  /**
+   * Throughput gain of a round needed to keep growing the limit
+   */
+  private static final double MIN_GAIN = 1.1;
+  /**
+   * Rounds at the plateau before a higher limit is probed
+   */
+  static final int PROBE_INTERVAL_ROUNDS = 10;
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AdaptiveConcurrency.class.getName());
+
+  @NotNull
+  private final String myDescription;
+  private final int myMaxLimit;
+  private int myLimit;
+  private boolean myIsGrowing = true;
+  private double myBestThroughput = 0;
+  private int myBestLimit;
+  private int myPlateauRounds = 0;
+
+  private int myRoundParts = 0;
+  private long myRoundBytes = 0;
+  private long myRoundLatencyNanos = 0;
+  private long myRoundStartNanos;
+
+  /**
+   * @param description transfer description for the log
+   * @param maxLimit    upper bound of the limit, the number of parts the executor can upload at once
+   */
+  AdaptiveConcurrency(@NotNull final String description, final int maxLimit) {
+    this(description, maxLimit, System.nanoTime());
+  }
+
+  AdaptiveConcurrency(@NotNull final String description, final int maxLimit, final long nowNanos) {
+    myDescription = description;
+    myMaxLimit = Math.max(1, maxLimit);
+    myLimit = Math.min(INITIAL_LIMIT, myMaxLimit);
+    myBestLimit = myLimit;
+    myRoundStartNanos = nowNanos;
+  }
+
+  synchronized int getLimit() {
+    return myLimit;
+  }
+
+  void partCompleted(final long bytes, final long latencyNanos) {
+    partCompleted(bytes, latencyNanos, System.nanoTime());
+  }
+
+  synchronized void partCompleted(final long bytes, final long latencyNanos, final long nowNanos) {
+    myRoundParts++;
+    myRoundBytes += bytes;
+    myRoundLatencyNanos += latencyNanos;
+    if (myRoundParts < myLimit) {
+      return;
+    }
+
+    final long elapsedNanos = Math.max(1, nowNanos - myRoundStartNanos);
+    final double throughput = myRoundBytes * 1e9 / elapsedNanos;
+    final long averageLatencyMs = myRoundLatencyNanos / myRoundParts / 1_000_000;
+    if (myIsGrowing) {
+      if (throughput >= myBestThroughput * MIN_GAIN) {
+        myBestThroughput = throughput;
+        myBestLimit = myLimit;
+        if (myLimit < myMaxLimit) {
+          myLimit++;
+          LOG.debug(() -> myDescription + ": " + formatThroughput(throughput) + ", average part latency " + averageLatencyMs + " ms, increasing concurrency to " + myLimit);
+        }
+      } else {
+        myIsGrowing = false;
+        myPlateauRounds = 0;
+        myLimit = myBestLimit;
+        LOG.debug(() -> myDescription + ": throughput plateaued at " + formatThroughput(throughput) + ", average part latency " + averageLatencyMs + " ms, keeping concurrency " + myLimit);
+      }
+    } else if (++myPlateauRounds >= PROBE_INTERVAL_ROUNDS && myLimit < myMaxLimit) {
+      myIsGrowing = true;
+      myBestThroughput = throughput;
+      myBestLimit = myLimit;
+      myLimit++;
+      LOG.debug(() -> myDescription + ": " + formatThroughput(throughput) + ", average part latency " + averageLatencyMs + " ms, probing concurrency " + myLimit);
+    }
+    startRound(nowNanos);
+  }
+
+  synchronized void throttled() {
+    final int limit = Math.max(1, myLimit / 2);
+    LOG.debug(() -> myDescription + ": request was throttled, decreasing concurrency from " + myLimit + " to " + limit);
+    myLimit = limit;
+    myIsGrowing = true;
+    myBestThroughput = 0;
+    myBestLimit = limit;
+    startRound(System.nanoTime());
+  }
+
+  @NotNull
+  synchronized String getSummary() {
+    return "concurrency " + myLimit + " of " + myMaxLimit + ", best throughput " + formatThroughput(myBestThroughput);
+  }
+
+  private void startRound(final long nowNanos) {
+    myRoundParts = 0;
+    myRoundBytes = 0;
+    myRoundLatencyNanos = 0;
+    myRoundStartNanos = nowNanos;
+  }
+
+  @NotNull
+  private static String formatThroughput(final double bytesPerSecond) {
+    return String.format("%.1f MB/s", bytesPerSecond / (1024 * 1024));
+  }
+}
@@ -0,0 +1,67 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads the remaining content of a buffer without copying it to the heap first.
+ * <p>
+ * Supports {@link #mark(int)} with any read limit, so the SDK can reset the stream on a retry
+ * instead of wrapping it into its own buffering stream.
+ */
+final class ByteBufferInputStream extends InputStream {
+  @NotNull
+  private final ByteBuffer myBuffer;
+  private int myMark;
+
+  ByteBufferInputStream(@NotNull final ByteBuffer buffer) {
+    myBuffer = buffer.duplicate();
+    myMark = myBuffer.position();
+  }
+
+  @Override
+  public int read() {
+    return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+  }
+
+  @Override
+  public int read(@NotNull final byte[] b, final int off, final int len) {
+    if (len == 0) {
+      return 0;
+    }
+    if (!myBuffer.hasRemaining()) {
+      return -1;
+    }
+    final int n = Math.min(len, myBuffer.remaining());
+    myBuffer.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(final long n) {
+    final int skipped = (int)Math.max(0, Math.min(n, myBuffer.remaining()));
+    myBuffer.position(myBuffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return myBuffer.remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(final int readLimit) {
+    myMark = myBuffer.position();
+  }
+
+  @Override
+  public synchronized void reset() {
+    myBuffer.position(myMark);
+  }
+}
@@ -0,0 +1,146 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Direct buffers shared by all uploads, so the parts read from files stay off-heap and the buffers aren't allocated for every part.
+ * <p>
+ * The total size of the direct buffers handed out and kept for reuse is limited by {@link #MAX_ALLOCATED_MB}, the size of the idle
+ * ones by {@link #MAX_POOLED_MB}. A buffer is reused if it's the smallest idle one fitting the requested size, when the limit is reached
+ * the idle buffers are dropped to make room for the next requests and no buffer is returned, the callers read the data another way.
+ * The memory of a dropped buffer is freed only when it's garbage collected, so it counts towards the limit until then.
+ */
+final class DirectBufferPool {
+  static final String MAX_POOLED_MB = "amazon.s3.upload.directBufferPool.maxSizeMb";
+  static final String MAX_ALLOCATED_MB = "amazon.s3.upload.directBufferPool.maxAllocatedMb";
+  private static final int DEFAULT_MAX_POOLED_MB = 256;
+  private static final int DEFAULT_MAX_ALLOCATED_MB = 512;
+  @NotNull
+  private static final DirectBufferPool INSTANCE = new DirectBufferPool();
+
+  @NotNull
+  private final List<ByteBuffer> myIdle = new ArrayList<>();
+  private long myIdleBytes = 0;
+  /**
+   * size of the direct buffers in use, idle ones and dropped ones which aren't collected yet
+   */
+  private long myAllocatedBytes = 0;
+  @NotNull
+  private final ReferenceQueue<ByteBuffer> myCollected = new ReferenceQueue<>();
+  /**
+   * sizes of the dropped buffers by their references, which are enqueued to {@link #myCollected} once the buffers are collected
+   */
+  @NotNull
+  private final Map<Reference<ByteBuffer>, Integer> myDropped = new HashMap<>();
+
+  @NotNull
+  static DirectBufferPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return cleared buffer with the limit set to the given size, null if the direct buffers limit is reached
+   */
+  @Nullable
+  ByteBuffer acquire(final int size) {
+    final long maxAllocatedBytes = TeamCityProperties.getInteger(MAX_ALLOCATED_MB, DEFAULT_MAX_ALLOCATED_MB) * 1024L * 1024L;
+    synchronized (myIdle) {
+      final ByteBuffer buffer = takeBestFit(size);
+      if (buffer != null) {
+        buffer.clear().limit(size);
+        return buffer;
+      }
+      reclaimCollected();
+      if (myAllocatedBytes + size > maxAllocatedBytes) {
+        // idle buffers are too small for the request, they give way to the next ones
+        long excess = myAllocatedBytes + size - maxAllocatedBytes;
+        for (Iterator<ByteBuffer> it = myIdle.iterator(); it.hasNext() && excess > 0; ) {
+          final ByteBuffer idle = it.next();
+          it.remove();
+          myIdleBytes -= idle.capacity();
+          excess -= idle.capacity();
+          drop(idle);
+        }
+        return null;
+      }
+      myAllocatedBytes += size;
+    }
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  @Nullable
+  private ByteBuffer takeBestFit(final int size) {
+    int best = -1;
+    for (int i = 0; i < myIdle.size(); i++) {
+      final int capacity = myIdle.get(i).capacity();
+      if (capacity >= size && (best < 0 || capacity < myIdle.get(best).capacity())) {
+        best = i;
+      }
+    }
+    if (best < 0) {
+      return null;
+    }
+    final ByteBuffer buffer = myIdle.remove(best);
+    myIdleBytes -= buffer.capacity();
+    return buffer;
+  }
+
+  /**
+   * @param buffer buffer returned by {@link #acquire}, must not be used afterwards
+   */
+  void release(@NotNull final ByteBuffer buffer) {
+    if (!buffer.isDirect()) {
+      return;
+    }
+    final long maxIdleBytes = TeamCityProperties.getInteger(MAX_POOLED_MB, DEFAULT_MAX_POOLED_MB) * 1024L * 1024L;
+    synchronized (myIdle) {
+      if (myIdleBytes + buffer.capacity() <= maxIdleBytes) {
+        myIdle.add(buffer);
+        myIdleBytes += buffer.capacity();
+      } else {
+        drop(buffer);
+      }
+    }
+  }
+
+  /**
+   * Keeps the buffer counted until it's collected
+   */
+  private void drop(@NotNull final ByteBuffer buffer) {
+    myDropped.put(new PhantomReference<>(buffer, myCollected), buffer.capacity());
+  }
+
+  private void reclaimCollected() {
+    Reference<? extends ByteBuffer> collected;
+    while ((collected = myCollected.poll()) != null) {
+      final Integer size = myDropped.remove(collected);
+      if (size != null) {
+        myAllocatedBytes -= size;
+      }
+    }
+  }
+
+  long getAllocatedBytes() {
+    synchronized (myIdle) {
+      reclaimCollected();
+      return myAllocatedBytes;
+    }
+  }
+
+  void clear() {
+    synchronized (myIdle) {
+      for (ByteBuffer buffer : myIdle) {
+        drop(buffer);
+      }
+      myIdle.clear();
+      myIdleBytes = 0;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.util.BinaryUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Remembers SHA-256 digests of files by their path, size and modification time, so a file which wasn't
+ * changed since the previous upload isn't read again to find out its content key.
+ * <p>
+ * Keeps at most {@link #MAX_ENTRIES} recently used entries.
+ */
+final class FileHashCache {
+  static final String MAX_ENTRIES = "amazon.s3.contentAddressed.hashCache.maxEntries";
+  private static final int DEFAULT_MAX_ENTRIES = 100000;
+  private static final int BUFFER_SIZE = 256 * 1024;
+  @NotNull
+  private static final FileHashCache INSTANCE = new FileHashCache();
+
+  @NotNull
+  private final Map<String, CachedDigest> myEntries = new LinkedHashMap<String, CachedDigest>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, CachedDigest> eldest) {
+      return size() > Math.max(0, TeamCityProperties.getInteger(MAX_ENTRIES, DEFAULT_MAX_ENTRIES));
+    }
+  };
+
+  @NotNull
+  static FileHashCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return hex encoded SHA-256 of the file content
+   */
+  @NotNull
+  String getSha256(@NotNull final File file) throws IOException {
+    final String path = file.getAbsolutePath();
+    final long length = file.length();
+    final long lastModified = file.lastModified();
+    final String cached = get(path, length, lastModified);
+    if (cached != null) {
+      return cached;
+    }
+    final String sha256 = computeSha256(file);
+    // the file could be modified while it was read, then the next call reads it again
+    if (file.length() == length && file.lastModified() == lastModified) {
+      synchronized (this) {
+        myEntries.put(path, new CachedDigest(length, lastModified, sha256));
+      }
+    }
+    return sha256;
+  }
+
+  @Nullable
+  private synchronized String get(@NotNull final String path, final long length, final long lastModified) {
+    final CachedDigest entry = myEntries.get(path);
+    return entry != null && entry.myLength == length && entry.myLastModified == lastModified ? entry.mySha256 : null;
+  }
+
+  synchronized void clear() {
+    myEntries.clear();
+  }
+
+  @NotNull
+  private static String computeSha256(@NotNull final File file) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+    return BinaryUtils.toHex(digest.digest());
+  }
+
+  private static final class CachedDigest {
+    private final long myLength;
+    private final long myLastModified;
+    @NotNull
+    private final String mySha256;
+
+    private CachedDigest(final long length, final long lastModified, @NotNull final String sha256) {
+      myLength = length;
+      myLastModified = lastModified;
+      mySha256 = sha256;
+    }
+  }
+}
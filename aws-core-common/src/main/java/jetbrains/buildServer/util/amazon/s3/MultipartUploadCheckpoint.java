@@ -0,0 +1,176 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.util.BinaryUtils;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Ledger of a multipart upload kept on disk, so an upload interrupted by an agent restart
+ * can be continued by the next attempt instead of being started over.
+ * <p>
+ * The file is append-only: the header with the upload id is written when the upload is initiated
+ * and every completed part adds one line, so a crash can leave at most a truncated last line.
+ */
+final class MultipartUploadCheckpoint {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(MultipartUploadCheckpoint.class.getName());
+  private static final String UPLOAD_ID = "uploadId";
+  private static final String LENGTH = "length";
+  private static final String LAST_MODIFIED = "lastModified";
+  private static final String PART_SIZE = "partSize";
+  private static final String PART = "part";
+
+  @NotNull
+  private final File myCheckpointFile;
+  @NotNull
+  private final File myFile;
+  @Nullable
+  private String myUploadId;
+  private long myPartSize;
+  private boolean myIsValid;
+  @NotNull
+  private final Map<Integer, String> myCompletedParts = new HashMap<>();
+
+  private MultipartUploadCheckpoint(@NotNull final File checkpointFile, @NotNull final File file) {
+    myCheckpointFile = checkpointFile;
+    myFile = file;
+  }
+
+  /**
+   * Reads the checkpoint of a previous attempt to upload the file to the given location, if there is one
+   *
+   * @param directory directory to keep checkpoints in
+   */
+  @NotNull
+  static MultipartUploadCheckpoint load(@NotNull final File directory, @NotNull final String bucketName, @NotNull final String key, @NotNull final File file) {
+    final MultipartUploadCheckpoint checkpoint = new MultipartUploadCheckpoint(new File(directory, getCheckpointName(bucketName, key, file)), file);
+    if (checkpoint.myCheckpointFile.isFile()) {
+      try {
+        checkpoint.read();
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Failed to read multipart upload checkpoint " + checkpoint.myCheckpointFile, e);
+      }
+    }
+    return checkpoint;
+  }
+
+  /**
+   * @return id of the previously started upload, null if there was none
+   */
+  @Nullable
+  String getUploadId() {
+    return myUploadId;
+  }
+
+  /**
+   * @return true if the previously started upload can be continued, i.e. the file wasn't changed since then
+   */
+  boolean isResumable() {
+    return myUploadId != null && myIsValid;
+  }
+
+  long getPartSize() {
+    return myPartSize;
+  }
+
+  /**
+   * @return part numbers mapped to ETags of parts completed by the previous attempt
+   */
+  @NotNull
+  Map<Integer, String> getCompletedParts() {
+    return Collections.unmodifiableMap(myCompletedParts);
+  }
+
+  synchronized void start(@NotNull final String uploadId, final long partSize) throws IOException {
+    myUploadId = uploadId;
+    myPartSize = partSize;
+    myIsValid = true;
+    myCompletedParts.clear();
+    final File parent = myCheckpointFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Failed to create directory " + parent);
+    }
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(myCheckpointFile, false), StandardCharsets.UTF_8)) {
+      writer.write(UPLOAD_ID + "=" + uploadId + "\n" +
+                   LENGTH + "=" + myFile.length() + "\n" +
+                   LAST_MODIFIED + "=" + myFile.lastModified() + "\n" +
+                   PART_SIZE + "=" + partSize + "\n");
+    }
+  }
+
+  synchronized void partCompleted(@NotNull final PartETag partETag) {
+    myCompletedParts.put(partETag.getPartNumber(), partETag.getETag());
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(myCheckpointFile, true), StandardCharsets.UTF_8)) {
+      writer.write(PART + "=" + partETag.getPartNumber() + ":" + partETag.getETag() + "\n");
+    } catch (IOException e) {
+      // the part will be uploaded again if the upload is resumed
+      LOG.warnAndDebugDetails("Failed to update multipart upload checkpoint " + myCheckpointFile, e);
+    }
+  }
+
+  synchronized void delete() {
+    myUploadId = null;
+    myCompletedParts.clear();
+    if (myCheckpointFile.exists() && !myCheckpointFile.delete()) {
+      LOG.warn("Failed to delete multipart upload checkpoint " + myCheckpointFile);
+    }
+  }
+
+  private void read() throws IOException {
+    long length = -1;
+    long lastModified = -1;
+    for (String line : Files.readAllLines(myCheckpointFile.toPath(), StandardCharsets.UTF_8)) {
+      final int separator = line.indexOf('=');
+      if (separator <= 0) continue;
+      final String name = line.substring(0, separator);
+      final String value = line.substring(separator + 1);
+      try {
+        switch (name) {
+          case UPLOAD_ID:
+            myUploadId = value;
+            break;
+          case LENGTH:
+            length = Long.parseLong(value);
+            break;
+          case LAST_MODIFIED:
+            lastModified = Long.parseLong(value);
+            break;
+          case PART_SIZE:
+            myPartSize = Long.parseLong(value);
+            break;
+          case PART:
+            final int colon = value.indexOf(':');
+            if (colon > 0 && colon < value.length() - 1) {
+              myCompletedParts.put(Integer.parseInt(value.substring(0, colon)), value.substring(colon + 1));
+            }
+            break;
+          default:
+        }
+      } catch (NumberFormatException ignored) {
+        // a truncated line
+      }
+    }
+    myIsValid = myPartSize > 0 && length == myFile.length() && lastModified == myFile.lastModified();
+  }
+
+  @NotNull
+  private static String getCheckpointName(@NotNull final String bucketName, @NotNull final String key, @NotNull final File file) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update((bucketName + "\n" + key + "\n" + file.getAbsolutePath()).getBytes(StandardCharsets.UTF_8));
+      return "s3-upload-" + BinaryUtils.toHex(digest.digest()) + ".checkpoint";
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Deletes all objects under the given prefixes, listing and deleting at the same time.
+ * <p>
+ * Keys are listed page by page and packed into {@link #MAX_KEYS_PER_REQUEST}-key multi-object delete requests,
+ * at most {@link S3Util.S3AdvancedConfiguration#getNThreads()} of them are in flight while the listing goes on.
+ * Keys S3 fails to delete with a transient error are sent again, the rest of per-key failures are collected into
+ * the {@link Result} instead of failing the whole deletion.
+ * <p>
+ * Only the current versions are deleted, in a versioned bucket the objects get delete markers.
+ *
+ * @see S3Util#deletePrefixes
+ */
+public class S3BulkDeleter {
+  public static final int MAX_KEYS_PER_REQUEST = 1000;
+  /**
+   * Failures kept in the result, the rest are only counted
+   */
+  static final int MAX_REPORTED_ERRORS = 1000;
+  @NotNull
+  private static final Set<String> RETRYABLE_ERROR_CODES = new HashSet<>(Arrays.asList("InternalError", "SlowDown", "ServiceUnavailable", "RequestTimeout"));
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(S3BulkDeleter.class.getName());
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final ExecutorService myExecutor;
+  @NotNull
+  private final S3Util.S3AdvancedConfiguration myConfiguration;
+
+  /**
+   * @param executor executor to send delete requests with
+   */
+  public S3BulkDeleter(@NotNull final AmazonS3 s3Client,
+                       @NotNull final ExecutorService executor,
+                       @NotNull final S3Util.S3AdvancedConfiguration configuration) {
+    myS3Client = s3Client;
+    myExecutor = executor;
+    myConfiguration = configuration;
+  }
+
+  /**
+   * @param prefixes key prefixes to delete objects under, an empty prefix stands for the whole bucket
+   * @return number of deleted objects and failures
+   */
+  @NotNull
+  public Result deletePrefixes(@NotNull final String bucketName, @NotNull final Collection<String> prefixes) throws InterruptedException {
+    final Result result = new Result();
+    final CompletionService<BatchResult> completionService = new ExecutorCompletionService<>(myExecutor);
+    final List<Future<BatchResult>> futures = new ArrayList<>();
+    final int limit = Math.max(1, myConfiguration.getNThreads());
+    int inFlight = 0;
+    try {
+      for (String prefix : prefixes) {
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix).withMaxKeys(MAX_KEYS_PER_REQUEST);
+        ListObjectsV2Result listing;
+        do {
+          final ListObjectsV2Request currentRequest = request;
+          listing = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.listObjectsV2(currentRequest));
+          final List<String> keys = new ArrayList<>(listing.getObjectSummaries().size());
+          for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+            keys.add(summary.getKey());
+          }
+          // a page holds at most as many keys as a request takes
+          if (!keys.isEmpty()) {
+            while (inFlight >= limit) {
+              result.add(completionService.take().get());
+              inFlight--;
+            }
+            futures.add(completionService.submit(() -> deleteBatch(bucketName, keys)));
+            inFlight++;
+          }
+          request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix).withMaxKeys(MAX_KEYS_PER_REQUEST)
+                                              .withContinuationToken(listing.getNextContinuationToken());
+        } while (listing.isTruncated());
+      }
+      while (inFlight > 0) {
+        result.add(completionService.take().get());
+        inFlight--;
+      }
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new SdkClientException("Failed to delete objects from " + bucketName + ": " + cause.getMessage(), cause);
+    } finally {
+      for (Future<BatchResult> future : futures) {
+        future.cancel(true);
+      }
+    }
+    LOG.debug(() -> "Deleted objects under " + prefixes + " in " + bucketName + ": " + result);
+    return result;
+  }
+
+  /**
+   * Deletes the given keys on the calling thread, {@link #MAX_KEYS_PER_REQUEST} keys per request
+   */
+  @NotNull
+  public Result deleteKeys(@NotNull final String bucketName, @NotNull final List<String> keys) throws InterruptedException {
+    final Result result = new Result();
+    for (int start = 0; start < keys.size(); start += MAX_KEYS_PER_REQUEST) {
+      result.add(deleteBatch(bucketName, keys.subList(start, Math.min(keys.size(), start + MAX_KEYS_PER_REQUEST))));
+    }
+    return result;
+  }
+
+  /**
+   * Sends the keys S3 failed to delete with a transient error again, through the same retrier as the failed requests,
+   * so they wait for the {@link jetbrains.buildServer.util.amazon.retry.BackOff} and take tokens from the retry budget
+   */
+  @NotNull
+  private BatchResult deleteBatch(@NotNull final String bucketName, @NotNull final List<String> keys) throws InterruptedException {
+    final BatchResult result = new BatchResult();
+    final List<String> pending = new ArrayList<>(keys);
+    final List<MultiObjectDeleteException.DeleteError> transientErrors = new ArrayList<>();
+    try {
+      S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> {
+        transientErrors.clear();
+        final DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName).withQuiet(true).withKeys(pending.toArray(new String[0]));
+        List<MultiObjectDeleteException.DeleteError> errors;
+        try {
+          myS3Client.deleteObjects(request);
+          errors = Collections.emptyList();
+        } catch (MultiObjectDeleteException e) {
+          // the request itself succeeded, some of the keys weren't deleted
+          errors = e.getErrors();
+        }
+        result.myDeleted += pending.size() - errors.size();
+        pending.clear();
+        for (MultiObjectDeleteException.DeleteError error : errors) {
+          if (RETRYABLE_ERROR_CODES.contains(error.getCode())) {
+            pending.add(error.getKey());
+            transientErrors.add(error);
+          } else {
+            result.myErrors.add(error);
+          }
+        }
+        if (!transientErrors.isEmpty()) {
+          throw transientFailure(bucketName, transientErrors);
+        }
+        return null;
+      });
+    } catch (RuntimeException e) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException("Deletion of objects from " + bucketName + " was interrupted");
+      }
+      if (!transientErrors.isEmpty()) {
+        // the last attempt reached S3, the keys keep the errors it reported
+        result.myErrors.addAll(transientErrors);
+        return result;
+      }
+      LOG.warnAndDebugDetails("Failed to delete " + pending.size() + " object(s) from " + bucketName, e);
+      final String code = getErrorCode(e);
+      for (String key : pending) {
+        final MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+        error.setKey(key);
+        error.setCode(code);
+        error.setMessage(e.getMessage());
+        result.myErrors.add(error);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return error the retrier treats as the transient one S3 reported for the keys
+   */
+  @NotNull
+  private static AmazonS3Exception transientFailure(@NotNull final String bucketName, @NotNull final List<MultiObjectDeleteException.DeleteError> errors) {
+    final MultiObjectDeleteException.DeleteError first = errors.get(0);
+    final AmazonS3Exception exception = new AmazonS3Exception("Failed to delete " + errors.size() + " object(s) from " + bucketName + ": " + first.getMessage());
+    exception.setServiceName("Amazon S3");
+    exception.setErrorCode(first.getCode());
+    exception.setStatusCode(503);
+    return exception;
+  }
+
+  @NotNull
+  private static String getErrorCode(@NotNull final Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof AmazonS3Exception && ((AmazonS3Exception)cause).getErrorCode() != null) {
+        return ((AmazonS3Exception)cause).getErrorCode();
+      }
+    }
+    return e.getClass().getSimpleName();
+  }
+
+  private static final class BatchResult {
+    private long myDeleted = 0;
+    @NotNull
+    private final List<MultiObjectDeleteException.DeleteError> myErrors = new ArrayList<>();
+  }
+
+  /**
+   * Outcome of a bulk deletion, failures beyond {@link #MAX_REPORTED_ERRORS} are counted but not kept
+   */
+  public static final class Result {
+    private long myDeletedCount = 0;
+    private long myFailedCount = 0;
+    @NotNull
+    private final List<MultiObjectDeleteException.DeleteError> myErrors = new ArrayList<>();
+    @NotNull
+    private final Map<String, Long> myFailuresByCode = new TreeMap<>();
+
+    private void add(@NotNull final BatchResult batch) {
+      myDeletedCount += batch.myDeleted;
+      myFailedCount += batch.myErrors.size();
+      for (MultiObjectDeleteException.DeleteError error : batch.myErrors) {
+        myFailuresByCode.merge(String.valueOf(error.getCode()), 1L, Long::sum);
+        if (myErrors.size() < MAX_REPORTED_ERRORS) {
+          myErrors.add(error);
+        }
+      }
+    }
+
+    public long getDeletedCount() {
+      return myDeletedCount;
+    }
+
+    public long getFailedCount() {
+      return myFailedCount;
+    }
+
+    public boolean isSuccessful() {
+      return myFailedCount == 0;
+    }
+
+    /**
+     * @return first {@link #MAX_REPORTED_ERRORS} failures
+     */
+    @NotNull
+    public List<MultiObjectDeleteException.DeleteError> getErrors() {
+      return Collections.unmodifiableList(myErrors);
+    }
+
+    /**
+     * @return number of failed keys by the S3 error code
+     */
+    @NotNull
+    public Map<String, Long> getFailuresByCode() {
+      return Collections.unmodifiableMap(myFailuresByCode);
+    }
+
+    @Override
+    public String toString() {
+      return "deleted " + myDeletedCount + " object(s)" + (myFailedCount == 0 ? "" : ", failed to delete " + myFailedCount + " " + myFailuresByCode);
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Uploads files to keys derived from the SHA-256 of their content, skipping the content which is already stored.
+ * <p>
+ * Files are hashed with the digests cached by path, size and modification time, then the content keys are checked
+ * with HEAD requests, at most {@link S3Util.S3AdvancedConfiguration#getNThreads()} at once. Only the content which
+ * is missing is uploaded, once per digest, with {@link S3MultipartUploader}: files below the multipart threshold
+ * are uploaded in parallel on the executor, larger ones one by one with their parts in parallel. The returned {@link Manifest} maps the
+ * file names to the content keys and is what the caller stores instead of the file copies.
+ * <p>
+ * A content key is {@code <prefix><first two digits>/<digest>}, the digest is also saved as the
+ * {@link #SHA256_METADATA} user metadata. Existing objects are trusted if their size matches, the content
+ * under a key is never overwritten with anything else.
+ *
+ * @see S3Util#uploadContentAddressed
+ */
+public class S3ContentAddressedUploader {
+  public static final String SHA256_METADATA = "sha256";
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(S3ContentAddressedUploader.class.getName());
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final ExecutorService myExecutor;
+  @NotNull
+  private final S3Util.S3AdvancedConfiguration myConfiguration;
+
+  /**
+   * @param executor executor to hash files, check content keys and upload parts with
+   */
+  public S3ContentAddressedUploader(@NotNull final AmazonS3 s3Client,
+                                    @NotNull final ExecutorService executor,
+                                    @NotNull final S3Util.S3AdvancedConfiguration configuration) {
+    myS3Client = s3Client;
+    myExecutor = executor;
+    myConfiguration = configuration;
+  }
+
+  /**
+   * @param prefix prefix of the content keys, usually ending with a slash
+   * @param files  files to upload by the names they are referred to in the manifest
+   */
+  @NotNull
+  public Manifest upload(@NotNull final String bucketName, @NotNull final String prefix, @NotNull final Map<String, File> files) throws IOException, InterruptedException {
+    // hashing and existence checks are independent for every file
+    final CompletionService<Entry> completionService = new ExecutorCompletionService<>(myExecutor);
+    final List<Future<Entry>> futures = new ArrayList<>(files.size());
+    final Queue<Map.Entry<String, File>> pending = new ArrayDeque<>(files.entrySet());
+    final ConcurrentMap<String, FutureTask<Boolean>> existing = new ConcurrentHashMap<>();
+    final List<Entry> entries = new ArrayList<>(files.size());
+    final int limit = Math.max(1, myConfiguration.getNThreads());
+    try {
+      int inFlight = 0;
+      while (inFlight > 0 || !pending.isEmpty()) {
+        while (inFlight < limit && !pending.isEmpty()) {
+          final Map.Entry<String, File> file = pending.poll();
+          futures.add(completionService.submit(() -> check(bucketName, prefix, file.getKey(), file.getValue(), existing)));
+          inFlight++;
+        }
+        entries.add(completionService.take().get());
+        inFlight--;
+      }
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new SdkClientException("Failed to check content of files in " + bucketName + ": " + cause.getMessage(), cause);
+    } finally {
+      for (Future<Entry> future : futures) {
+        future.cancel(true);
+      }
+    }
+
+    uploadMissing(bucketName, entries);
+    entries.sort(Comparator.comparing(e -> e.myName));
+    final Manifest manifest = new Manifest(entries);
+    LOG.debug(() -> "Uploaded " + files.size() + " file(s) to " + bucketName + "/" + prefix + ": " + manifest);
+    return manifest;
+  }
+
+  private void uploadMissing(@NotNull final String bucketName, @NotNull final List<Entry> entries) throws InterruptedException {
+    final S3MultipartUploader uploader = new S3MultipartUploader(myS3Client, myExecutor, myConfiguration);
+    final CompletionService<Entry> completionService = new ExecutorCompletionService<>(myExecutor);
+    final List<Future<Entry>> futures = new ArrayList<>();
+    final Set<String> uploaded = new HashSet<>();
+    final int limit = Math.max(1, myConfiguration.getNThreads());
+    int inFlight = 0;
+    try {
+      for (Entry entry : entries) {
+        if (entry.myIsStored || !uploaded.add(entry.myKey)) {
+          continue;
+        }
+        if (entry.mySize < uploader.getMultipartUploadThreshold(entry.mySize)) {
+          // a single request doesn't use the executor itself, so it can run there
+          while (inFlight >= limit) {
+            completionService.take().get().myIsUploaded = true;
+            inFlight--;
+          }
+          futures.add(completionService.submit(() -> upload(uploader, bucketName, entry)));
+          inFlight++;
+        } else {
+          upload(uploader, bucketName, entry).myIsUploaded = true;
+        }
+      }
+      while (inFlight > 0) {
+        completionService.take().get().myIsUploaded = true;
+        inFlight--;
+      }
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new SdkClientException("Failed to upload content to " + bucketName + ": " + cause.getMessage(), cause);
+    } finally {
+      for (Future<Entry> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  @NotNull
+  private Entry upload(@NotNull final S3MultipartUploader uploader, @NotNull final String bucketName, @NotNull final Entry entry) throws InterruptedException {
+    final ObjectMetadata metadata = new ObjectMetadata();
+    metadata.addUserMetadata(SHA256_METADATA, entry.mySha256);
+    uploader.upload(bucketName, entry.myKey, entry.myFile, metadata);
+    return entry;
+  }
+
+  @NotNull
+  private Entry check(@NotNull final String bucketName,
+                      @NotNull final String prefix,
+                      @NotNull final String name,
+                      @NotNull final File file,
+                      @NotNull final ConcurrentMap<String, FutureTask<Boolean>> existing) throws Exception {
+    final String sha256 = FileHashCache.getInstance().getSha256(file);
+    final String key = getContentKey(prefix, sha256);
+    final long length = file.length();
+    // files with the same content share a single request
+    final FutureTask<Boolean> check = new FutureTask<>(() -> isStored(bucketName, key, length));
+    FutureTask<Boolean> existingCheck = existing.putIfAbsent(key, check);
+    if (existingCheck == null) {
+      check.run();
+      existingCheck = check;
+    }
+    return new Entry(name, file, key, sha256, length, existingCheck.get());
+  }
+
+  private boolean isStored(@NotNull final String bucketName, @NotNull final String key, final long length) {
+    final ObjectMetadata metadata;
+    try {
+      metadata = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> {
+        try {
+          return myS3Client.getObjectMetadata(bucketName, key);
+        } catch (AmazonS3Exception e) {
+          if (e.getStatusCode() == 404) {
+            return null;
+          }
+          throw e;
+        }
+      });
+    } catch (RuntimeException e) {
+      LOG.warnAndDebugDetails("Failed to check " + key + " in " + bucketName + ", the content will be uploaded", e);
+      return false;
+    }
+    if (metadata == null) {
+      return false;
+    }
+    if (metadata.getContentLength() != length) {
+      LOG.warn("Object " + bucketName + "/" + key + " has size " + metadata.getContentLength() + " instead of " + length + ", replacing it");
+      return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  public static String getContentKey(@NotNull final String prefix, @NotNull final String sha256) {
+    return prefix + sha256.substring(0, 2) + "/" + sha256;
+  }
+
+  public static final class Entry {
+    @NotNull
+    private final String myName;
+    @NotNull
+    private final File myFile;
+    @NotNull
+    private final String myKey;
+    @NotNull
+    private final String mySha256;
+    private final long mySize;
+    private final boolean myIsStored;
+    private boolean myIsUploaded = false;
+
+    private Entry(@NotNull final String name, @NotNull final File file, @NotNull final String key, @NotNull final String sha256, final long size, final boolean isStored) {
+      myName = name;
+      myFile = file;
+      myKey = key;
+      mySha256 = sha256;
+      mySize = size;
+      myIsStored = isStored;
+    }
+
+    @NotNull
+    public String getName() {
+      return myName;
+    }
+
+    @NotNull
+    public String getKey() {
+      return myKey;
+    }
+
+    @NotNull
+    public String getSha256() {
+      return mySha256;
+    }
+
+    public long getSize() {
+      return mySize;
+    }
+
+    /**
+     * @return true if the content was uploaded by this call, false if it was stored already or uploaded for another file
+     */
+    public boolean isUploaded() {
+      return myIsUploaded;
+    }
+  }
+
+  /**
+   * File names mapped to the content keys, sorted by name
+   */
+  public static final class Manifest {
+    @NotNull
+    private final List<Entry> myEntries;
+
+    private Manifest(@NotNull final List<Entry> entries) {
+      myEntries = Collections.unmodifiableList(entries);
+    }
+
+    @NotNull
+    public List<Entry> getEntries() {
+      return myEntries;
+    }
+
+    @Nullable
+    public Entry getEntry(@NotNull final String name) {
+      for (Entry entry : myEntries) {
+        if (entry.myName.equals(name)) return entry;
+      }
+      return null;
+    }
+
+    public long getUploadedBytes() {
+      long result = 0;
+      for (Entry entry : myEntries) {
+        if (entry.myIsUploaded) result += entry.mySize;
+      }
+      return result;
+    }
+
+    public long getReusedBytes() {
+      long result = 0;
+      for (Entry entry : myEntries) {
+        if (!entry.myIsUploaded) result += entry.mySize;
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return myEntries.size() + " file(s), uploaded " + getUploadedBytes() + " bytes, reused " + getReusedBytes() + " bytes";
+    }
+  }
+}
@@ -0,0 +1,355 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.BinaryUtils;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Makes the objects under a prefix match a local directory, uploading only new and changed files.
+ * <p>
+ * The directory is walked in the key order while the prefix is listed page by page, with the next page fetched
+ * in the background, and both sequences are merged by key, so neither side is collected in memory.
+ * A file is uploaded if the object is missing or has another size. An object of the same size is kept if it is
+ * not older than the file, or if its ETag is an MD5 digest equal to the digest of the file.
+ * <p>
+ * Files uploaded with a single request are sent concurrently, at most {@link S3Util.S3AdvancedConfiguration#getNThreads()}
+ * at once, bigger files are uploaded one by one in parts. With {@code deleteOrphans} objects without a local file
+ * are deleted in batches as they are found. Symbolic links to directories are not followed.
+ *
+ * @see S3Util#syncDirectory
+ */
+public class S3DirectorySync {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(S3DirectorySync.class.getName());
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final ExecutorService myExecutor;
+  @NotNull
+  private final S3Util.S3AdvancedConfiguration myConfiguration;
+
+  /**
+   * @param executor executor to list the prefix, upload files and their parts with
+   */
+  public S3DirectorySync(@NotNull final AmazonS3 s3Client,
+                         @NotNull final ExecutorService executor,
+                         @NotNull final S3Util.S3AdvancedConfiguration configuration) {
+    myS3Client = s3Client;
+    myExecutor = executor;
+    myConfiguration = configuration;
+  }
+
+  /**
+   * @param prefix        prefix the relative paths of the files are appended to, usually ending with a slash
+   * @param deleteOrphans whether to delete objects under the prefix which have no local file, the prefix must then be empty
+   *                      or end with a slash, otherwise the objects of the sibling prefixes, e.g. {@code builds/10/} for
+   *                      {@code builds/1}, would be deleted too
+   */
+  @NotNull
+  public Result sync(@NotNull final String bucketName,
+                     @NotNull final String prefix,
+                     @NotNull final File directory,
+                     final boolean deleteOrphans) throws IOException, InterruptedException {
+    if (deleteOrphans && !prefix.isEmpty() && !prefix.endsWith("/")) {
+      throw new IllegalArgumentException("Prefix " + prefix + " must end with a slash to delete the objects without a local file");
+    }
+    if (!directory.isDirectory()) {
+      throw new IOException("Directory " + directory + " doesn't exist");
+    }
+    final Result result = new Result();
+    final S3MultipartUploader uploader = new S3MultipartUploader(myS3Client, myExecutor, myConfiguration);
+    final S3BulkDeleter deleter = new S3BulkDeleter(myS3Client, myExecutor, myConfiguration);
+    final LocalFiles localFiles = new LocalFiles(directory, prefix);
+    final RemoteObjects remoteObjects = new RemoteObjects(bucketName, prefix);
+    final CompletionService<Long> completionService = new ExecutorCompletionService<>(myExecutor);
+    final List<Future<Long>> futures = new ArrayList<>();
+    final List<String> orphans = new ArrayList<>();
+    final int limit = Math.max(1, myConfiguration.getNThreads());
+    int inFlight = 0;
+    try {
+      LocalFile local = localFiles.next();
+      S3ObjectSummary remote = remoteObjects.next();
+      while (local != null || remote != null) {
+        final int order = local == null ? 1 : remote == null ? -1 : compareKeys(local.myKey, remote.getKey());
+        if (order > 0) {
+          if (deleteOrphans) {
+            orphans.add(remote.getKey());
+            if (orphans.size() == S3BulkDeleter.MAX_KEYS_PER_REQUEST) {
+              result.addDeleted(deleter.deleteKeys(bucketName, orphans));
+              orphans.clear();
+            }
+          }
+          remote = remoteObjects.next();
+          continue;
+        }
+        if (order == 0 && isUpToDate(local, remote)) {
+          result.myUnchangedCount++;
+        } else {
+          final LocalFile file = local;
+          final long length = file.myFile.length();
+          if (length < uploader.getMultipartUploadThreshold(length)) {
+            // a single request doesn't use the executor itself, so it can run there
+            while (inFlight >= limit) {
+              result.addUploaded(completionService.take().get());
+              inFlight--;
+            }
+            futures.add(completionService.submit(() -> upload(uploader, bucketName, file)));
+            inFlight++;
+          } else {
+            result.addUploaded(upload(uploader, bucketName, file));
+          }
+        }
+        if (order == 0) {
+          remote = remoteObjects.next();
+        }
+        local = localFiles.next();
+      }
+      while (inFlight > 0) {
+        result.addUploaded(completionService.take().get());
+        inFlight--;
+      }
+      if (!orphans.isEmpty()) {
+        result.addDeleted(deleter.deleteKeys(bucketName, orphans));
+      }
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new SdkClientException("Failed to upload files to " + bucketName + ": " + cause.getMessage(), cause);
+    } finally {
+      for (Future<Long> future : futures) {
+        future.cancel(true);
+      }
+      remoteObjects.close();
+    }
+    LOG.debug(() -> "Synchronized " + directory + " with " + bucketName + "/" + prefix + ": " + result);
+    return result;
+  }
+
+  /**
+   * Compares keys in the order S3 lists them, i.e. by their UTF-8 bytes, which is the order of the code points
+   * and not the one of {@link String#compareTo} for keys with supplementary characters
+   */
+  static int compareKeys(@NotNull final String a, @NotNull final String b) {
+    int i = 0, j = 0;
+    while (i < a.length() && j < b.length()) {
+      final int ca = a.codePointAt(i);
+      final int cb = b.codePointAt(j);
+      if (ca != cb) {
+        return Integer.compare(ca, cb);
+      }
+      i += Character.charCount(ca);
+      j += Character.charCount(cb);
+    }
+    return Integer.compare(a.length() - i, b.length() - j);
+  }
+
+  private long upload(@NotNull final S3MultipartUploader uploader, @NotNull final String bucketName, @NotNull final LocalFile file) throws InterruptedException {
+    uploader.upload(bucketName, file.myKey, file.myFile, null);
+    return file.myLength;
+  }
+
+  private boolean isUpToDate(@NotNull final LocalFile local, @NotNull final S3ObjectSummary remote) throws IOException {
+    if (local.myLength != remote.getSize()) {
+      return false;
+    }
+    if (remote.getLastModified() != null && local.myLastModified <= remote.getLastModified().getTime()) {
+      return true;
+    }
+    // the file was touched after the upload, its content could still be the same
+    final String eTag = remote.getETag();
+    return eTag != null && S3TransferUtil.MD5_ETAG.matcher(eTag).matches() && eTag.equalsIgnoreCase(BinaryUtils.toHex(S3TransferUtil.md5(local.myFile)));
+  }
+
+  private static final class LocalFile {
+    @NotNull
+    private final String myKey;
+    @NotNull
+    private final File myFile;
+    private final long myLength;
+    private final long myLastModified;
+
+    private LocalFile(@NotNull final String key, @NotNull final File file) {
+      myKey = key;
+      myFile = file;
+      myLength = file.length();
+      myLastModified = file.lastModified();
+    }
+  }
+
+  /**
+   * Walks the directory depth first in the order S3 lists the keys: children of every directory are sorted
+   * by their names with {@link #compareKeys}, with a slash appended to the names of directories.
+   */
+  private static final class LocalFiles {
+    @NotNull
+    private final Deque<Iterator<String>> myStack = new ArrayDeque<>();
+    @NotNull
+    private final Deque<String> myPaths = new ArrayDeque<>();
+    @NotNull
+    private final File myRoot;
+    @NotNull
+    private final String myPrefix;
+
+    private LocalFiles(@NotNull final File root, @NotNull final String prefix) throws IOException {
+      myRoot = root;
+      myPrefix = prefix;
+      push(root, "");
+    }
+
+    @Nullable
+    private LocalFile next() throws IOException {
+      while (!myStack.isEmpty()) {
+        final Iterator<String> children = myStack.peek();
+        if (!children.hasNext()) {
+          myStack.pop();
+          myPaths.pop();
+          continue;
+        }
+        final String child = children.next();
+        final String path = myPaths.peek() + child;
+        final File file = new File(myRoot, path);
+        if (child.endsWith("/")) {
+          push(file, path);
+        } else if (file.isFile()) {
+          return new LocalFile(myPrefix + path, file);
+        }
+      }
+      return null;
+    }
+
+    private void push(@NotNull final File directory, @NotNull final String path) throws IOException {
+      final File[] files = directory.listFiles();
+      if (files == null) {
+        throw new IOException("Failed to list files in " + directory);
+      }
+      final List<String> children = new ArrayList<>(files.length);
+      for (File file : files) {
+        if (file.isDirectory()) {
+          if (!Files.isSymbolicLink(file.toPath())) {
+            children.add(file.getName() + "/");
+          }
+        } else {
+          children.add(file.getName());
+        }
+      }
+      children.sort(S3DirectorySync::compareKeys);
+      myStack.push(children.iterator());
+      myPaths.push(path);
+    }
+  }
+
+  /**
+   * Lists the prefix page by page, the next page is requested in the background while the current one is merged
+   */
+  private final class RemoteObjects {
+    @NotNull
+    private final String myBucketName;
+    @NotNull
+    private final String myPrefix;
+    @NotNull
+    private Iterator<S3ObjectSummary> myPage = Collections.emptyIterator();
+    @Nullable
+    private Future<ListObjectsV2Result> myNextPage;
+
+    private RemoteObjects(@NotNull final String bucketName, @NotNull final String prefix) {
+      myBucketName = bucketName;
+      myPrefix = prefix;
+      myNextPage = request(null);
+    }
+
+    @Nullable
+    private S3ObjectSummary next() throws InterruptedException {
+      while (!myPage.hasNext()) {
+        if (myNextPage == null) {
+          return null;
+        }
+        final ListObjectsV2Result listing;
+        try {
+          listing = myNextPage.get();
+        } catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+          throw new SdkClientException("Failed to list " + myBucketName + "/" + myPrefix + ": " + cause.getMessage(), cause);
+        }
+        myNextPage = listing.isTruncated() ? request(listing.getNextContinuationToken()) : null;
+        myPage = listing.getObjectSummaries().iterator();
+      }
+      return myPage.next();
+    }
+
+    @NotNull
+    private Future<ListObjectsV2Result> request(@Nullable final String continuationToken) {
+      final ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(myBucketName).withPrefix(myPrefix).withContinuationToken(continuationToken);
+      return myExecutor.submit(() -> S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.listObjectsV2(request)));
+    }
+
+    private void close() {
+      if (myNextPage != null) {
+        myNextPage.cancel(true);
+      }
+    }
+  }
+
+  public static final class Result {
+    private long myUploadedCount = 0;
+    private long myUploadedBytes = 0;
+    private long myUnchangedCount = 0;
+    private long myDeletedCount = 0;
+    @NotNull
+    private final List<S3BulkDeleter.Result> myDeleteResults = new ArrayList<>();
+
+    private void addUploaded(final long bytes) {
+      myUploadedCount++;
+      myUploadedBytes += bytes;
+    }
+
+    private void addDeleted(@NotNull final S3BulkDeleter.Result result) {
+      myDeletedCount += result.getDeletedCount();
+      if (!result.isSuccessful()) {
+        myDeleteResults.add(result);
+      }
+    }
+
+    public long getUploadedCount() {
+      return myUploadedCount;
+    }
+
+    public long getUploadedBytes() {
+      return myUploadedBytes;
+    }
+
+    public long getUnchangedCount() {
+      return myUnchangedCount;
+    }
+
+    public long getDeletedCount() {
+      return myDeletedCount;
+    }
+
+    /**
+     * @return results of the orphan deletions which had failures
+     */
+    @NotNull
+    public List<S3BulkDeleter.Result> getFailedDeletions() {
+      return Collections.unmodifiableList(myDeleteResults);
+    }
+
+    @Override
+    public String toString() {
+      return "uploaded " + myUploadedCount + " file(s) (" + myUploadedBytes + " bytes), " + myUnchangedCount + " unchanged, deleted " + myDeletedCount + " object(s)";
+    }
+  }
+}
@@ -0,0 +1,393 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Uploads data of unknown length as it is written, cutting it into parts of
+ * {@link S3Util.S3AdvancedConfiguration#getMinimumUploadPartSize()} bytes.
+ * <p>
+ * At most {@link S3Util.S3AdvancedConfiguration#getNThreads()} + 1 part buffers are used: one being filled and the rest in flight.
+ * The buffers are taken from the {@link DirectBufferPool}, when it has no room for more the stream makes do with the ones it has,
+ * or with a heap buffer if it has none yet. When all of them are taken, writes block until one of the parts is uploaded.
+ * The object is created on {@link #close()}, a producer which fails half way should call {@link #abort()} instead, so the partial data isn't stored.
+ * <p>
+ * Data which fits into a single part is uploaded with a single request. As S3 allows at most {@link S3MultipartUploader#MAX_PARTS}
+ * parts, the part size limits the size of the object.
+ * <p>
+ * With the consistency check enabled every part is sent with the MD5 of its buffer, see {@link UploadIntegrity}.
+ *
+ * @see S3Util#uploadStream
+ */
+public class S3MultipartOutputStream extends OutputStream {
+  private static final long BUFFER_WAIT_MS = 1000;
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(S3MultipartOutputStream.class.getName());
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final ExecutorService myExecutor;
+  @NotNull
+  private final S3Util.S3AdvancedConfiguration myConfiguration;
+  @NotNull
+  private final String myBucketName;
+  @NotNull
+  private final String myKey;
+  @Nullable
+  private final ObjectMetadata myMetadata;
+  private final int myPartSize;
+  private final int myMaxBuffers;
+
+  @NotNull
+  private final BlockingQueue<ByteBuffer> myFreeBuffers = new LinkedBlockingQueue<>();
+  /**
+   * buffers of the submitted parts which haven't started uploading yet, taken back if the parts are cancelled
+   */
+  @NotNull
+  private final Set<ByteBuffer> myQueuedBuffers = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+  private int myAllocatedBuffers = 0;
+  @Nullable
+  private ByteBuffer myCurrentBuffer;
+  @Nullable
+  private String myUploadId;
+  private int myNextPartNumber = 1;
+  @NotNull
+  private final List<Future<PartETag>> myParts = new ArrayList<>();
+  @Nullable
+  private volatile Throwable myFailure;
+  private volatile boolean myIsClosed = false;
+  @Nullable
+  private UploadResult myResult;
+
+  /**
+   * @param executor executor to upload parts with
+   */
+  public S3MultipartOutputStream(@NotNull final AmazonS3 s3Client,
+                                 @NotNull final ExecutorService executor,
+                                 @NotNull final S3Util.S3AdvancedConfiguration configuration,
+                                 @NotNull final String bucketName,
+                                 @NotNull final String key,
+                                 @Nullable final ObjectMetadata metadata) {
+    if (configuration.getMinimumUploadPartSize() > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Part size " + configuration.getMinimumUploadPartSize() + " is too big for a streaming upload");
+    }
+    myS3Client = s3Client;
+    myExecutor = executor;
+    myConfiguration = configuration;
+    myBucketName = bucketName;
+    myKey = key;
+    myMetadata = metadata;
+    myPartSize = (int)configuration.getMinimumUploadPartSize();
+    myMaxBuffers = configuration.getNThreads() + 1;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    final ByteBuffer buffer = getCurrentBuffer();
+    buffer.put((byte)b);
+    if (!buffer.hasRemaining()) {
+      submitPart(false);
+    }
+  }
+
+  @Override
+  public void write(@NotNull final byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      final ByteBuffer buffer = getCurrentBuffer();
+      final int n = Math.min(len, buffer.remaining());
+      buffer.put(b, off, n);
+      off += n;
+      len -= n;
+      if (!buffer.hasRemaining()) {
+        submitPart(false);
+      }
+    }
+  }
+
+  /**
+   * Reads the channel till its end right into the part buffers
+   *
+   * @return number of bytes read
+   */
+  public long writeFrom(@NotNull final ReadableByteChannel channel) throws IOException {
+    long total = 0;
+    while (true) {
+      final ByteBuffer buffer = getCurrentBuffer();
+      final int read = channel.read(buffer);
+      if (read < 0) {
+        return total;
+      }
+      total += read;
+      if (!buffer.hasRemaining()) {
+        submitPart(false);
+      }
+    }
+  }
+
+  /**
+   * Uploads the rest of the data and waits for the object to be created
+   */
+  @Override
+  public void close() throws IOException {
+    if (myIsClosed) {
+      return;
+    }
+    myIsClosed = true;
+    boolean isCompleted = false;
+    try {
+      checkFailure();
+      if (myUploadId == null) {
+        myResult = putObject();
+      } else {
+        if (myCurrentBuffer != null && myCurrentBuffer.position() > 0) {
+          submitPart(true);
+        }
+        myResult = completeUpload(waitForParts());
+      }
+      isCompleted = true;
+    } finally {
+      if (!isCompleted) {
+        cancelParts();
+        abortUpload();
+      }
+      releaseBuffers();
+    }
+  }
+
+  /**
+   * Discards the written data, no object is created
+   */
+  public void abort() {
+    if (myIsClosed) {
+      return;
+    }
+    myIsClosed = true;
+    cancelParts();
+    abortUpload();
+    releaseBuffers();
+  }
+
+  /**
+   * @return result of the upload, null until the stream is successfully closed
+   */
+  @Nullable
+  public UploadResult getResult() {
+    return myResult;
+  }
+
+  @NotNull
+  private ByteBuffer getCurrentBuffer() throws IOException {
+    if (myIsClosed) {
+      throw new IOException("Upload of " + myKey + " to " + myBucketName + " is already closed");
+    }
+    checkFailure();
+    if (myCurrentBuffer == null) {
+      myCurrentBuffer = takeBuffer();
+    }
+    return myCurrentBuffer;
+  }
+
+  @NotNull
+  private ByteBuffer takeBuffer() throws IOException {
+    ByteBuffer buffer = myFreeBuffers.poll();
+    if (buffer != null) {
+      return buffer;
+    }
+    if (myAllocatedBuffers < myMaxBuffers) {
+      buffer = DirectBufferPool.getInstance().acquire(myPartSize);
+      if (buffer == null && myAllocatedBuffers == 0) {
+        // the pool has no room, the parts of the stream take turns with a single heap buffer
+        buffer = ByteBuffer.allocate(myPartSize);
+      }
+      if (buffer != null) {
+        myAllocatedBuffers++;
+        return buffer;
+      }
+    }
+    // all buffers are in flight, the producer waits for one of the parts to be uploaded
+    try {
+      while ((buffer = myFreeBuffers.poll(BUFFER_WAIT_MS, TimeUnit.MILLISECONDS)) == null) {
+        checkFailure();
+      }
+      return buffer;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a part of " + myKey + " to be uploaded to " + myBucketName);
+    }
+  }
+
+  private void submitPart(final boolean isLastPart) throws IOException {
+    final ByteBuffer buffer = myCurrentBuffer;
+    if (buffer == null) {
+      return;
+    }
+    if (myNextPartNumber > S3MultipartUploader.MAX_PARTS) {
+      throw new IOException("Upload of " + myKey + " to " + myBucketName + " exceeds " + S3MultipartUploader.MAX_PARTS + " parts of " + myPartSize + " bytes");
+    }
+    if (myUploadId == null) {
+      final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(myBucketName, myKey, myMetadata != null ? myMetadata.clone() : new ObjectMetadata())
+        .withCannedACL(myConfiguration.getAcl());
+      myUploadId = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.initiateMultipartUpload(initiateRequest)).getUploadId();
+    }
+    myCurrentBuffer = null;
+    buffer.flip();
+
+    final UploadPartRequest partRequest = new UploadPartRequest()
+      .withBucketName(myBucketName)
+      .withKey(myKey)
+      .withUploadId(myUploadId)
+      .withPartNumber(myNextPartNumber++)
+      .withPartSize(buffer.remaining())
+      .withLastPart(isLastPart);
+    myQueuedBuffers.add(buffer);
+    myParts.add(myExecutor.submit(() -> {
+      if (!myQueuedBuffers.remove(buffer)) {
+        // the stream was closed and took the buffer back
+        throw new CancellationException();
+      }
+      try {
+        if (myConfiguration.isConsistencyCheckEnabled()) {
+          partRequest.setMd5Digest(UploadIntegrity.md5Base64(buffer));
+        }
+        final String description = "part " + partRequest.getPartNumber() + " of " + myKey;
+        // every attempt reads the buffer from the start
+        return S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> UploadIntegrity.check(description, () -> myS3Client.uploadPart(copy(partRequest).withInputStream(new ByteBufferInputStream(buffer)))))
+                                                              .getPartETag();
+      } catch (Throwable e) {
+        myFailure = e;
+        throw e;
+      } finally {
+        // pooled buffers can be bigger than the part
+        buffer.clear().limit(myPartSize);
+        myFreeBuffers.add(buffer);
+        if (myIsClosed) {
+          releaseFreeBuffers();
+        }
+      }
+    }));
+  }
+
+  @NotNull
+  private List<PartETag> waitForParts() throws IOException {
+    final List<PartETag> partETags = new ArrayList<>(myParts.size());
+    try {
+      for (Future<PartETag> part : myParts) {
+        partETags.add(part.get());
+      }
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to upload " + myKey + " to " + myBucketName + ": " + e.getCause().getMessage(), e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + myKey + " to be uploaded to " + myBucketName);
+    }
+    return partETags;
+  }
+
+  @NotNull
+  private UploadResult completeUpload(@NotNull final List<PartETag> partETags) {
+    final CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(myBucketName, myKey, myUploadId, partETags);
+    final CompleteMultipartUploadResult completeResult = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.completeMultipartUpload(completeRequest));
+    final UploadResult result = new UploadResult();
+    result.setBucketName(myBucketName);
+    result.setKey(myKey);
+    result.setETag(completeResult.getETag());
+    result.setVersionId(completeResult.getVersionId());
+    return result;
+  }
+
+  @NotNull
+  private UploadResult putObject() {
+    final ByteBuffer buffer = myCurrentBuffer != null ? myCurrentBuffer : ByteBuffer.allocate(0);
+    buffer.flip();
+    final ObjectMetadata metadata = myMetadata != null ? myMetadata.clone() : new ObjectMetadata();
+    metadata.setContentLength(buffer.remaining());
+    if (myConfiguration.isConsistencyCheckEnabled()) {
+      metadata.setContentMD5(UploadIntegrity.md5Base64(buffer));
+    }
+    final PutObjectResult putResult = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> UploadIntegrity.check(myKey, () -> myS3Client.putObject(
+      new PutObjectRequest(myBucketName, myKey, new ByteBufferInputStream(buffer), metadata)
+        .withCannedAcl(myConfiguration.getAcl()))));
+
+    final UploadResult result = new UploadResult();
+    result.setBucketName(myBucketName);
+    result.setKey(myKey);
+    result.setETag(putResult.getETag());
+    result.setVersionId(putResult.getVersionId());
+    return result;
+  }
+
+  private void cancelParts() {
+    for (Future<PartETag> part : myParts) {
+      part.cancel(true);
+    }
+  }
+
+  private void abortUpload() {
+    if (myUploadId == null) {
+      return;
+    }
+    try {
+      myS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(myBucketName, myKey, myUploadId));
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Aborting multipart upload " + myUploadId + " of " + myKey + " to " + myBucketName + " failed.", e);
+    }
+  }
+
+  /**
+   * Returns the buffers which are not in flight to the pool, the ones in flight are returned when their parts are done
+   */
+  private void releaseBuffers() {
+    if (myCurrentBuffer != null) {
+      DirectBufferPool.getInstance().release(myCurrentBuffer);
+      myCurrentBuffer = null;
+    }
+    final List<ByteBuffer> queued;
+    synchronized (myQueuedBuffers) {
+      queued = new ArrayList<>(myQueuedBuffers);
+      myQueuedBuffers.clear();
+    }
+    for (ByteBuffer buffer : queued) {
+      DirectBufferPool.getInstance().release(buffer);
+    }
+    releaseFreeBuffers();
+  }
+
+  private void releaseFreeBuffers() {
+    ByteBuffer buffer;
+    while ((buffer = myFreeBuffers.poll()) != null) {
+      DirectBufferPool.getInstance().release(buffer);
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    final Throwable failure = myFailure;
+    if (failure != null) {
+      throw new IOException("Failed to upload " + myKey + " to " + myBucketName + ": " + failure.getMessage(), failure);
+    }
+  }
+
+  @NotNull
+  private static UploadPartRequest copy(@NotNull final UploadPartRequest request) {
+    return new UploadPartRequest()
+      .withBucketName(request.getBucketName())
+      .withKey(request.getKey())
+      .withUploadId(request.getUploadId())
+      .withPartNumber(request.getPartNumber())
+      .withPartSize(request.getPartSize())
+      .withLastPart(request.isLastPart())
+      .withMD5Digest(request.getMd5Digest());
+  }
+}
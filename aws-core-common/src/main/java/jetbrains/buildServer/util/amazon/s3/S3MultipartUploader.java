@@ -0,0 +1,421 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.amazon.S3Util;
+import jetbrains.buildServer.util.amazon.retry.AmazonRetrier;
+import jetbrains.buildServer.util.retry.AbortRetriesException;
+import jetbrains.buildServer.util.retry.Retrier;
+import jetbrains.buildServer.util.retry.RetrierEventListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Uploads files with the low-level multipart API, retrying every part on its own.
+ * <p>
+ * A {@link com.amazonaws.services.s3.transfer.TransferManager} upload aborts the whole multipart upload as soon as
+ * one part fails, so retrying it starts from the first byte again. Here a failed part is submitted again
+ * with the {@link AmazonRetrier#defaultAwsRetrier} back-off while the already uploaded parts are kept.
+ * <p>
+ * With {@link S3Util.S3AdvancedConfiguration#withCheckpointDirectory} the upload id and completed parts are also
+ * saved to disk, so an upload interrupted by a crash or a restart is continued by the next attempt.
+ * <p>
+ * At most {@link S3Util.S3AdvancedConfiguration#getNThreads()} parts are in flight at once. With
+ * {@link S3Util.S3AdvancedConfiguration#withAdaptiveTuning} the part size is derived from the file size and the number
+ * of parts in flight is tuned by {@link AdaptiveConcurrency}, up to the size of the executor if it's a bigger
+ * {@link ThreadPoolExecutor}, but not above {@link #MAX_ADAPTIVE_CONCURRENCY}.
+ * <p>
+ * With {@link S3Util.S3AdvancedConfiguration#withDirectBufferUpload} every part is read from the file channel into
+ * a buffer of the {@link DirectBufferPool} and retried from there, without going through heap buffers. When the pool
+ * has no room for it, the part region of the file is mapped instead.
+ * <p>
+ * A part S3 received corrupted is sent again on its own, see {@link UploadIntegrity}.
+ *
+ * @see S3Util#uploadFile
+ */
+public class S3MultipartUploader {
+  static final String MAX_ADAPTIVE_CONCURRENCY = "amazon.s3.upload.adaptive.maxConcurrency";
+  private static final int DEFAULT_MAX_ADAPTIVE_CONCURRENCY = 64;
+  public static final int MAX_PARTS = 10000;
+  public static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+  /**
+   * Number of parts adaptive tuning aims for, big enough to keep all threads busy and small enough to keep the per-request overhead low
+   */
+  private static final int ADAPTIVE_TARGET_PARTS = 1000;
+  private static final long MB = 1024 * 1024;
+  /**
+   * Bigger parts are read from the file by the SDK even with direct buffer upload enabled
+   */
+  private static final long MAX_DIRECT_BUFFER_PART_SIZE = 256 * MB;
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(S3MultipartUploader.class.getName());
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final ExecutorService myExecutor;
+  @NotNull
+  private final S3Util.S3AdvancedConfiguration myConfiguration;
+
+  /**
+   * @param executor executor to upload parts with, may be shared with other transfers
+   */
+  public S3MultipartUploader(@NotNull final AmazonS3 s3Client,
+                             @NotNull final ExecutorService executor,
+                             @NotNull final S3Util.S3AdvancedConfiguration configuration) {
+    myS3Client = s3Client;
+    myExecutor = executor;
+    myConfiguration = configuration;
+  }
+
+  @NotNull
+  public UploadResult upload(@NotNull final String bucketName,
+                             @NotNull final String key,
+                             @NotNull final File file,
+                             @Nullable final ObjectMetadata metadata) throws InterruptedException {
+    final long length = file.length();
+    if (length < getMultipartUploadThreshold(length)) {
+      if (myConfiguration.isAdaptiveTuning()) {
+        LOG.debug(() -> "Uploading " + file + " (" + length + " bytes) to " + bucketName + "/" + key + " with a single request");
+      }
+      return putObject(bucketName, key, file, metadata);
+    }
+
+    final File checkpointDirectory = myConfiguration.getCheckpointDirectory();
+    final MultipartUploadCheckpoint checkpoint = checkpointDirectory != null ? MultipartUploadCheckpoint.load(checkpointDirectory, bucketName, key, file) : null;
+
+    String uploadId = null;
+    long partSize = getPartSize(length);
+    Map<Integer, PartETag> uploadedParts = Collections.emptyMap();
+    if (checkpoint != null && checkpoint.getUploadId() != null) {
+      if (checkpoint.isResumable()) {
+        uploadedParts = listUploadedParts(bucketName, key, checkpoint, length);
+        if (uploadedParts != null) {
+          uploadId = checkpoint.getUploadId();
+          partSize = checkpoint.getPartSize();
+          LOG.info("Resuming multipart upload " + uploadId + " of " + file + " to " + bucketName + "/" + key + ", " + uploadedParts.size() + " part(s) are already uploaded");
+        } else {
+          uploadedParts = Collections.emptyMap();
+        }
+      } else {
+        LOG.info("File " + file + " was changed since the previous upload attempt, starting the upload to " + bucketName + "/" + key + " over");
+        abortQuietly(bucketName, key, checkpoint.getUploadId());
+      }
+    }
+
+    if (uploadId == null) {
+      final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(bucketName, key, metadata != null ? metadata.clone() : new ObjectMetadata())
+        .withCannedACL(myConfiguration.getAcl());
+      uploadId = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.initiateMultipartUpload(initiateRequest)).getUploadId();
+      if (checkpoint != null) {
+        try {
+          checkpoint.start(uploadId, partSize);
+        } catch (IOException e) {
+          LOG.warnAndDebugDetails("Failed to save multipart upload checkpoint, upload of " + file + " won't be resumable", e);
+        }
+      }
+    }
+
+    boolean isCompleted = false;
+    try {
+      final List<PartETag> partETags = uploadParts(bucketName, key, uploadId, file, partSize, uploadedParts, checkpoint);
+      final CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags);
+      final CompleteMultipartUploadResult completeResult = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.completeMultipartUpload(completeRequest));
+      isCompleted = true;
+
+      final UploadResult result = new UploadResult();
+      result.setBucketName(bucketName);
+      result.setKey(key);
+      result.setETag(completeResult.getETag());
+      result.setVersionId(completeResult.getVersionId());
+      return result;
+    } finally {
+      if (isCompleted) {
+        if (checkpoint != null) {
+          checkpoint.delete();
+        }
+      } else if (checkpoint != null && checkpoint.isResumable()) {
+        // uploaded parts are kept for the next attempt, they are removed by the bucket lifecycle rules if it never comes
+        LOG.info("Multipart upload " + uploadId + " of " + file + " is kept to be resumed by the next attempt");
+      } else {
+        abortQuietly(bucketName, key, uploadId);
+      }
+    }
+  }
+
+  /**
+   * @return parts of the previous attempt which are present in S3 and match the checkpoint, or null if the upload doesn't exist anymore
+   */
+  @Nullable
+  private Map<Integer, PartETag> listUploadedParts(@NotNull final String bucketName,
+                                                   @NotNull final String key,
+                                                   @NotNull final MultipartUploadCheckpoint checkpoint,
+                                                   final long length) {
+    final String uploadId = checkpoint.getUploadId();
+    final long partSize = checkpoint.getPartSize();
+    final Map<Integer, String> checkpointParts = checkpoint.getCompletedParts();
+    final Map<Integer, PartETag> result = new HashMap<>();
+    try {
+      ListPartsRequest request = new ListPartsRequest(bucketName, key, uploadId);
+      PartListing listing;
+      do {
+        final ListPartsRequest currentRequest = request;
+        listing = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.listParts(currentRequest));
+        for (PartSummary part : listing.getParts()) {
+          final int partNumber = part.getPartNumber();
+          final long expectedSize = Math.min(partSize, length - (partNumber - 1) * partSize);
+          final String checkpointETag = checkpointParts.get(partNumber);
+          if (part.getSize() == expectedSize && (checkpointETag == null || checkpointETag.equals(part.getETag()))) {
+            result.put(partNumber, new PartETag(partNumber, part.getETag()));
+          }
+        }
+        request = new ListPartsRequest(bucketName, key, uploadId).withPartNumberMarker(listing.getNextPartNumberMarker());
+      } while (listing.isTruncated());
+    } catch (AmazonS3Exception | AbortRetriesException e) {
+      // the retrier aborts on the non-retryable 404 with the S3 error as the cause
+      final Throwable cause = e instanceof AbortRetriesException ? e.getCause() : e;
+      if (cause instanceof AmazonS3Exception && ((AmazonS3Exception)cause).getStatusCode() == 404) {
+        LOG.info("Multipart upload " + uploadId + " of " + key + " to " + bucketName + " doesn't exist anymore, starting the upload over");
+        checkpoint.delete();
+        return null;
+      }
+      throw e;
+    }
+    return result;
+  }
+
+  /**
+   * @return part size not smaller than {@link S3Util.S3AdvancedConfiguration#getMinimumUploadPartSize()}
+   * which keeps the number of parts within the S3 limit
+   */
+  public long getPartSize(final long length) {
+    return getPartSize(myConfiguration, length);
+  }
+
+  static long getPartSize(@NotNull final S3Util.S3AdvancedConfiguration configuration, final long length) {
+    final long minPartSize = (length + MAX_PARTS - 1) / MAX_PARTS;
+    if (!configuration.isAdaptiveTuning()) {
+      return Math.max(configuration.getMinimumUploadPartSize(), minPartSize);
+    }
+    // whole megabytes around the target number of parts
+    final long targetPartSize = (length / ADAPTIVE_TARGET_PARTS + MB - 1) / MB * MB;
+    return Math.min(MAX_PART_SIZE, Math.max(configuration.getMinimumUploadPartSize(), Math.max(minPartSize, targetPartSize)));
+  }
+
+  /**
+   * @return size starting from which the file is uploaded in parts, with adaptive tuning files
+   * which would be split into only a couple of parts are uploaded with a single request
+   */
+  public long getMultipartUploadThreshold(final long length) {
+    if (!myConfiguration.isAdaptiveTuning()) {
+      return myConfiguration.getMultipartUploadThreshold();
+    }
+    return Math.max(myConfiguration.getMultipartUploadThreshold(), 2 * getPartSize(length));
+  }
+
+  @NotNull
+  private List<PartETag> uploadParts(@NotNull final String bucketName,
+                                     @NotNull final String key,
+                                     @NotNull final String uploadId,
+                                     @NotNull final File file,
+                                     final long partSize,
+                                     @NotNull final Map<Integer, PartETag> uploadedParts,
+                                     @Nullable final MultipartUploadCheckpoint checkpoint) throws InterruptedException {
+    final long length = file.length();
+    final int maxConcurrency = getMaxAdaptiveConcurrency();
+    final AdaptiveConcurrency concurrency = myConfiguration.isAdaptiveTuning() ? new AdaptiveConcurrency("Upload of " + file + " to " + bucketName + "/" + key, maxConcurrency) : null;
+    if (concurrency != null) {
+      LOG.info("Uploading " + file + " (" + length + " bytes) to " + bucketName + "/" + key + " in " + ((length + partSize - 1) / partSize) + " part(s) of " + partSize +
+               " bytes, initial concurrency " + concurrency.getLimit() + " of " + maxConcurrency);
+    }
+
+    final CompletionService<PartETag> completionService = new ExecutorCompletionService<>(myExecutor);
+    final List<Future<PartETag>> futures = new ArrayList<>();
+    final List<PartETag> partETags = new ArrayList<>();
+    final Deque<UploadPartRequest> partRequests = new ArrayDeque<>();
+    int partNumber = 1;
+    for (long offset = 0; offset < length; offset += partSize, partNumber++) {
+      final PartETag uploaded = uploadedParts.get(partNumber);
+      if (uploaded != null) {
+        partETags.add(uploaded);
+        if (checkpoint != null && !uploaded.getETag().equals(checkpoint.getCompletedParts().get(partNumber))) {
+          checkpoint.partCompleted(uploaded);
+        }
+        continue;
+      }
+      final UploadPartRequest partRequest = new UploadPartRequest()
+        .withBucketName(bucketName)
+        .withKey(key)
+        .withUploadId(uploadId)
+        .withPartNumber(partNumber)
+        .withFile(file)
+        .withFileOffset(offset)
+        .withPartSize(Math.min(partSize, length - offset))
+        .withLastPart(offset + partSize >= length);
+      partRequests.add(partRequest);
+    }
+
+    try {
+      int inFlight = 0;
+      while (inFlight > 0 || !partRequests.isEmpty()) {
+        // parts aren't queued on the executor, it may be shared with other transfers
+        final int limit = concurrency != null ? concurrency.getLimit() : myConfiguration.getNThreads();
+        while (inFlight < limit && !partRequests.isEmpty()) {
+          final UploadPartRequest partRequest = partRequests.poll();
+          futures.add(completionService.submit(() -> uploadPart(partRequest, concurrency)));
+          inFlight++;
+        }
+        final PartETag partETag = completionService.take().get();
+        inFlight--;
+        partETags.add(partETag);
+        if (checkpoint != null) {
+          checkpoint.partCompleted(partETag);
+        }
+      }
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new SdkClientException("Failed to upload " + key + " to " + bucketName + ": " + cause.getMessage(), cause);
+    } finally {
+      for (Future<PartETag> future : futures) {
+        future.cancel(true);
+      }
+    }
+    if (concurrency != null) {
+      LOG.info("All parts of " + file + " are uploaded to " + bucketName + "/" + key + ", " + concurrency.getSummary());
+    }
+    partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+    return partETags;
+  }
+
+  /**
+   * @return number of parts the executor can upload at once, capped by {@link #MAX_ADAPTIVE_CONCURRENCY}
+   */
+  private int getMaxAdaptiveConcurrency() {
+    final int nThreads = myConfiguration.getNThreads();
+    if (!(myExecutor instanceof ThreadPoolExecutor)) {
+      return nThreads;
+    }
+    final int cap = Math.max(nThreads, TeamCityProperties.getInteger(MAX_ADAPTIVE_CONCURRENCY, DEFAULT_MAX_ADAPTIVE_CONCURRENCY));
+    return Math.max(nThreads, Math.min(cap, ((ThreadPoolExecutor)myExecutor).getMaximumPoolSize()));
+  }
+
+  @NotNull
+  private PartETag uploadPart(@NotNull final UploadPartRequest partRequest, @Nullable final AdaptiveConcurrency concurrency) throws IOException {
+    final Retrier retrier = S3TransferUtil.newRetrier(myConfiguration, LOG);
+    if (concurrency != null) {
+      retrier.registerListener(new RetrierEventListener() {
+        @Override
+        public <T> void onFailure(@NotNull final Callable<T> callable, final int retry, @NotNull final Exception e) {
+          if (e instanceof SdkBaseException && RetryUtils.isThrottlingException((SdkBaseException)e)) {
+            concurrency.throttled();
+          }
+        }
+      });
+    }
+    final long start = System.nanoTime();
+    final boolean isDirect = myConfiguration.isDirectBufferUpload() && partRequest.getPartSize() <= MAX_DIRECT_BUFFER_PART_SIZE;
+    final ByteBuffer pooled = isDirect ? DirectBufferPool.getInstance().acquire((int)partRequest.getPartSize()) : null;
+    final String description = "part " + partRequest.getPartNumber() + " of " + partRequest.getKey();
+    final PartETag partETag;
+    try {
+      final ByteBuffer buffer = isDirect ? readPart(partRequest, pooled) : null;
+      final String md5 = buffer != null && myConfiguration.isConsistencyCheckEnabled() ? UploadIntegrity.md5Base64(buffer) : null;
+      // the request is copied for every attempt as the SDK keeps the state of the consumed stream in it
+      partETag = retrier.execute(() -> UploadIntegrity.check(description, () -> myS3Client.uploadPart(copy(partRequest, buffer, md5)))).getPartETag();
+    } finally {
+      if (pooled != null) {
+        DirectBufferPool.getInstance().release(pooled);
+      }
+    }
+    if (concurrency != null) {
+      concurrency.partCompleted(partRequest.getPartSize(), System.nanoTime() - start);
+    }
+    return partETag;
+  }
+
+  /**
+   * @param buffer buffer of the {@link DirectBufferPool} to read the part into, or null to map the part region of the file
+   * @return buffer with the part content
+   */
+  @NotNull
+  private static ByteBuffer readPart(@NotNull final UploadPartRequest partRequest, @Nullable final ByteBuffer buffer) throws IOException {
+    try (FileChannel channel = FileChannel.open(partRequest.getFile().toPath(), StandardOpenOption.READ)) {
+      long position = partRequest.getFileOffset();
+      if (buffer == null) {
+        if (channel.size() < position + partRequest.getPartSize()) {
+          throw new IOException("File " + partRequest.getFile() + " is shorter than expected, was it modified during the upload?");
+        }
+        // the mapping stays valid after the channel is closed
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, partRequest.getPartSize());
+      }
+      while (buffer.hasRemaining()) {
+        final int read = channel.read(buffer, position);
+        if (read < 0) {
+          throw new IOException("File " + partRequest.getFile() + " is shorter than expected, was it modified during the upload?");
+        }
+        position += read;
+      }
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  @NotNull
+  private UploadResult putObject(@NotNull final String bucketName, @NotNull final String key, @NotNull final File file, @Nullable final ObjectMetadata metadata) {
+    final PutObjectResult putResult = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> UploadIntegrity.check(key, () -> myS3Client.putObject(
+      new PutObjectRequest(bucketName, key, file)
+        .withMetadata(metadata != null ? metadata.clone() : null)
+        .withCannedAcl(myConfiguration.getAcl()))));
+
+    final UploadResult result = new UploadResult();
+    result.setBucketName(bucketName);
+    result.setKey(key);
+    result.setETag(putResult.getETag());
+    result.setVersionId(putResult.getVersionId());
+    return result;
+  }
+
+  private void abortQuietly(@NotNull final String bucketName, @NotNull final String key, @NotNull final String uploadId) {
+    try {
+      myS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Aborting multipart upload " + uploadId + " of " + key + " to " + bucketName + " failed.", e);
+    }
+  }
+
+  /**
+   * @param content content of the part, or null to read it from the file
+   * @param md5     base64 encoded MD5 of the content for S3 to verify it
+   */
+  @NotNull
+  private static UploadPartRequest copy(@NotNull final UploadPartRequest request, @Nullable final ByteBuffer content, @Nullable final String md5) {
+    final UploadPartRequest copy = new UploadPartRequest()
+      .withBucketName(request.getBucketName())
+      .withKey(request.getKey())
+      .withUploadId(request.getUploadId())
+      .withPartNumber(request.getPartNumber())
+      .withPartSize(request.getPartSize())
+      .withLastPart(request.isLastPart())
+      .withMD5Digest(md5);
+    if (content != null) {
+      return copy.withInputStream(new ByteBufferInputStream(content));
+    }
+    return copy
+      .withFile(request.getFile())
+      .withFileOffset(request.getFileOffset());
+  }
+}
@@ -0,0 +1,172 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Lists all objects under a prefix with concurrent requests.
+ * <p>
+ * A plain listing follows one continuation token after another. Here the sub-prefixes are discovered first with
+ * delimiter listings, level by level while there are fewer of them than {@link S3Util.S3AdvancedConfiguration#getNThreads()}
+ * and at most {@link #MAX_DISCOVERY_DEPTH} levels deep, then every sub-prefix is listed on its own in parallel.
+ * <p>
+ * Listed pages are passed through a queue of {@link #QUEUED_PAGES_PER_THREAD} pages per thread to the consumer,
+ * which is called on the calling thread only. Objects come in the key order within a sub-prefix, but sub-prefixes
+ * are interleaved.
+ *
+ * @see S3Util#listObjects
+ */
+public class S3ParallelLister {
+  public static final String DELIMITER = "/";
+  static final int MAX_DISCOVERY_DEPTH = 3;
+  private static final int QUEUED_PAGES_PER_THREAD = 2;
+  /**
+   * Put by a task after the last page of its partition, compared by identity
+   */
+  @NotNull
+  private static final List<S3ObjectSummary> PARTITION_DONE = new ArrayList<>(0);
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(S3ParallelLister.class.getName());
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final ExecutorService myExecutor;
+  @NotNull
+  private final S3Util.S3AdvancedConfiguration myConfiguration;
+
+  /**
+   * @param executor executor to list sub-prefixes with, at most {@link S3Util.S3AdvancedConfiguration#getNThreads()} of them are listed at once
+   */
+  public S3ParallelLister(@NotNull final AmazonS3 s3Client,
+                          @NotNull final ExecutorService executor,
+                          @NotNull final S3Util.S3AdvancedConfiguration configuration) {
+    myS3Client = s3Client;
+    myExecutor = executor;
+    myConfiguration = configuration;
+  }
+
+  /**
+   * @param prefix   prefix to list objects under, an empty prefix stands for the whole bucket
+   * @param consumer called for every object on the calling thread, an exception stops the listing
+   * @return number of listed objects
+   */
+  public long list(@NotNull final String bucketName, @NotNull final String prefix, @NotNull final ObjectSummaryConsumer consumer) throws IOException, InterruptedException {
+    final int parallelism = Math.max(1, myConfiguration.getNThreads());
+    long count = 0;
+
+    // objects found while discovering are consumed right away, the remaining sub-prefixes are partitions
+    List<String> partitions = Collections.singletonList(prefix);
+    for (int depth = 0; depth < MAX_DISCOVERY_DEPTH && partitions.size() < parallelism; depth++) {
+      final List<String> next = new ArrayList<>();
+      for (String partition : partitions) {
+        ListObjectsV2Request request = newRequest(bucketName, partition, null).withDelimiter(DELIMITER);
+        ListObjectsV2Result listing;
+        do {
+          final ListObjectsV2Request currentRequest = request;
+          listing = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.listObjectsV2(currentRequest));
+          for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+            consumer.accept(summary);
+            count++;
+          }
+          next.addAll(listing.getCommonPrefixes());
+          request = newRequest(bucketName, partition, listing.getNextContinuationToken()).withDelimiter(DELIMITER);
+        } while (listing.isTruncated());
+      }
+      partitions = next;
+      if (partitions.isEmpty()) {
+        return count;
+      }
+    }
+    final int partitionCount = partitions.size();
+    LOG.debug(() -> "Listing " + bucketName + "/" + prefix + " in " + partitionCount + " partition(s)");
+    return count + listPartitions(bucketName, partitions, parallelism, consumer);
+  }
+
+  private long listPartitions(@NotNull final String bucketName,
+                              @NotNull final List<String> partitions,
+                              final int parallelism,
+                              @NotNull final ObjectSummaryConsumer consumer) throws IOException, InterruptedException {
+    final BlockingQueue<List<S3ObjectSummary>> pages = new ArrayBlockingQueue<>(parallelism * QUEUED_PAGES_PER_THREAD);
+    final Queue<String> pending = new ArrayDeque<>(partitions);
+    final List<Future<?>> futures = new ArrayList<>();
+    final List<Throwable> failures = new CopyOnWriteArrayList<>();
+    long count = 0;
+    try {
+      int inFlight = 0;
+      while (inFlight > 0 || !pending.isEmpty()) {
+        while (inFlight < parallelism && !pending.isEmpty()) {
+          final String partition = pending.poll();
+          futures.add(myExecutor.submit(() -> listPartition(bucketName, partition, pages, failures)));
+          inFlight++;
+        }
+        final List<S3ObjectSummary> page = pages.take();
+        if (page == PARTITION_DONE) {
+          inFlight--;
+          if (!failures.isEmpty()) {
+            final Throwable failure = failures.get(0);
+            if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+            throw new SdkClientException("Failed to list objects in " + bucketName + ": " + failure.getMessage(), failure);
+          }
+          continue;
+        }
+        for (S3ObjectSummary summary : page) {
+          consumer.accept(summary);
+          count++;
+        }
+      }
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return count;
+  }
+
+  private void listPartition(@NotNull final String bucketName,
+                             @NotNull final String partition,
+                             @NotNull final BlockingQueue<List<S3ObjectSummary>> pages,
+                             @NotNull final List<Throwable> failures) {
+    try {
+      ListObjectsV2Request request = newRequest(bucketName, partition, null);
+      ListObjectsV2Result listing;
+      do {
+        final ListObjectsV2Request currentRequest = request;
+        listing = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.listObjectsV2(currentRequest));
+        if (!listing.getObjectSummaries().isEmpty()) {
+          pages.put(listing.getObjectSummaries());
+        }
+        request = newRequest(bucketName, partition, listing.getNextContinuationToken());
+      } while (listing.isTruncated());
+    } catch (InterruptedException e) {
+      // the listing was stopped, nobody waits for the rest of the partition
+      return;
+    } catch (Throwable e) {
+      failures.add(e);
+    }
+    try {
+      pages.put(PARTITION_DONE);
+    } catch (InterruptedException ignored) {
+    }
+  }
+
+  @NotNull
+  private static ListObjectsV2Request newRequest(@NotNull final String bucketName, @NotNull final String prefix, @Nullable final String continuationToken) {
+    return new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix).withContinuationToken(continuationToken);
+  }
+
+  @FunctionalInterface
+  public interface ObjectSummaryConsumer {
+    void accept(@NotNull S3ObjectSummary summary) throws IOException;
+  }
+}
@@ -0,0 +1,240 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.intellij.openapi.diagnostic.Logger;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Produces presigned URLs for uploads performed by someone who doesn't have the credentials, e.g. by an agent.
+ * <p>
+ * Part URLs of a multipart upload are signed in batches of at most {@link S3Util.S3AdvancedConfiguration#getPresignedUrlMaxChunkSize()}
+ * URLs and live for {@link S3Util.S3AdvancedConfiguration#getUrlTtlSeconds()}. Signing is local: the SigV4 signing key is derived
+ * once per credentials, region and day and cached by the SDK signer, so a batch costs one HMAC per URL. Signed URLs are cached
+ * and handed out again until shortly before they expire. The expired ones, e.g. of abandoned uploads, are dropped on the next request.
+ */
+public class S3PresignedUploadUrls {
+  /**
+   * Cached URL is signed again when less than this share of its lifetime is left
+   */
+  private static final int REFRESH_MARGIN_PERCENT = 20;
+  private static final long MAX_REFRESH_MARGIN_MS = TimeUnit.MINUTES.toMillis(1);
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(S3PresignedUploadUrls.class.getName());
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final S3Util.S3AdvancedConfiguration myConfiguration;
+  @NotNull
+  private final Map<PartKey, PresignedPartUrl> myCache = new ConcurrentHashMap<>();
+
+  public S3PresignedUploadUrls(@NotNull final AmazonS3 s3Client, @NotNull final S3Util.S3AdvancedConfiguration configuration) {
+    myS3Client = s3Client;
+    myConfiguration = configuration;
+  }
+
+  /**
+   * @return URL to upload the whole object with a single PUT request
+   */
+  @NotNull
+  public URL getUploadUrl(@NotNull final String bucketName, @NotNull final String key) {
+    return myS3Client.generatePresignedUrl(new GeneratePresignedUrlRequest(bucketName, key, HttpMethod.PUT).withExpiration(new Date(getExpirationTime())));
+  }
+
+  /**
+   * Initiates a multipart upload and signs URLs for the first batch of its parts
+   *
+   * @param nParts total number of parts in the upload
+   */
+  @NotNull
+  public PresignedMultipartUpload startMultipartUpload(@NotNull final String bucketName,
+                                                       @NotNull final String key,
+                                                       @Nullable final ObjectMetadata metadata,
+                                                       final int nParts) {
+    if (!myConfiguration.isPresignedMultipartUploadEnabled()) {
+      throw new IllegalStateException("Presigned multipart upload is disabled");
+    }
+    if (nParts < 1 || nParts > S3MultipartUploader.MAX_PARTS) {
+      throw new IllegalArgumentException("Number of parts should be between 1 and " + S3MultipartUploader.MAX_PARTS + ", got " + nParts);
+    }
+    final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, key, metadata != null ? metadata.clone() : new ObjectMetadata())
+      .withCannedACL(myConfiguration.getAcl());
+    final String uploadId = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.initiateMultipartUpload(request)).getUploadId();
+
+    final List<Integer> firstChunk = new ArrayList<>();
+    for (int partNumber = 1; partNumber <= Math.min(nParts, myConfiguration.getPresignedUrlMaxChunkSize()); partNumber++) {
+      firstChunk.add(partNumber);
+    }
+    return new PresignedMultipartUpload(uploadId, getPartUrls(bucketName, key, uploadId, firstChunk));
+  }
+
+  /**
+   * Signs URLs for the given parts of a multipart upload, URLs which are still valid for long enough are returned from the cache
+   *
+   * @param partNumbers at most {@link S3Util.S3AdvancedConfiguration#getPresignedUrlMaxChunkSize()} part numbers
+   */
+  @NotNull
+  public List<PresignedPartUrl> getPartUrls(@NotNull final String bucketName,
+                                            @NotNull final String key,
+                                            @NotNull final String uploadId,
+                                            @NotNull final Collection<Integer> partNumbers) {
+    if (partNumbers.size() > myConfiguration.getPresignedUrlMaxChunkSize()) {
+      throw new IllegalArgumentException("At most " + myConfiguration.getPresignedUrlMaxChunkSize() + " part URLs can be requested at once, got " + partNumbers.size());
+    }
+    purgeExpired();
+    final long now = System.currentTimeMillis();
+    // URLs signed for this request share one expiration, the cached ones keep their own
+    final long expirationTime = getExpirationTime();
+    final long refreshMargin = Math.min(MAX_REFRESH_MARGIN_MS, TimeUnit.SECONDS.toMillis(myConfiguration.getUrlTtlSeconds()) * REFRESH_MARGIN_PERCENT / 100);
+
+    final List<PresignedPartUrl> result = new ArrayList<>(partNumbers.size());
+    for (int partNumber : partNumbers) {
+      final PartKey partKey = new PartKey(bucketName, key, uploadId, partNumber);
+      PresignedPartUrl url = myCache.get(partKey);
+      if (url == null || url.getExpirationTime() - now < refreshMargin) {
+        url = new PresignedPartUrl(partNumber, signPart(bucketName, key, uploadId, partNumber, expirationTime), expirationTime);
+        myCache.put(partKey, url);
+      }
+      result.add(url);
+    }
+    return result;
+  }
+
+  public void completeMultipartUpload(@NotNull final String bucketName,
+                                      @NotNull final String key,
+                                      @NotNull final String uploadId,
+                                      @NotNull final List<PartETag> partETags) {
+    final CompleteMultipartUploadRequest request = new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags);
+    try {
+      S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.completeMultipartUpload(request));
+    } finally {
+      forget(bucketName, key, uploadId);
+    }
+  }
+
+  public void abortMultipartUpload(@NotNull final String bucketName, @NotNull final String key, @NotNull final String uploadId) {
+    try {
+      myS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+    } finally {
+      forget(bucketName, key, uploadId);
+    }
+  }
+
+  /**
+   * Drops expired URLs from the cache
+   */
+  public void purgeExpired() {
+    final long now = System.currentTimeMillis();
+    myCache.values().removeIf(url -> url.getExpirationTime() <= now);
+  }
+
+  int getCachedUrlsCount() {
+    return myCache.size();
+  }
+
+  private void forget(@NotNull final String bucketName, @NotNull final String key, @NotNull final String uploadId) {
+    myCache.keySet().removeIf(partKey -> partKey.myUploadId.equals(uploadId) && partKey.myKey.equals(key) && partKey.myBucketName.equals(bucketName));
+    purgeExpired();
+  }
+
+  @NotNull
+  private URL signPart(@NotNull final String bucketName, @NotNull final String key, @NotNull final String uploadId, final int partNumber, final long expirationTime) {
+    final GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucketName, key, HttpMethod.PUT).withExpiration(new Date(expirationTime));
+    request.addRequestParameter("uploadId", uploadId);
+    request.addRequestParameter("partNumber", String.valueOf(partNumber));
+    return myS3Client.generatePresignedUrl(request);
+  }
+
+  private long getExpirationTime() {
+    return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(myConfiguration.getUrlTtlSeconds());
+  }
+
+  public static final class PresignedMultipartUpload {
+    @NotNull
+    private final String myUploadId;
+    @NotNull
+    private final List<PresignedPartUrl> myPartUrls;
+
+    private PresignedMultipartUpload(@NotNull final String uploadId, @NotNull final List<PresignedPartUrl> partUrls) {
+      myUploadId = uploadId;
+      myPartUrls = partUrls;
+    }
+
+    @NotNull
+    public String getUploadId() {
+      return myUploadId;
+    }
+
+    /**
+     * @return URLs of the first parts, the rest should be requested with {@link #getPartUrls}
+     */
+    @NotNull
+    public List<PresignedPartUrl> getPartUrls() {
+      return myPartUrls;
+    }
+  }
+
+  public static final class PresignedPartUrl {
+    private final int myPartNumber;
+    @NotNull
+    private final URL myUrl;
+    private final long myExpirationTime;
+
+    private PresignedPartUrl(final int partNumber, @NotNull final URL url, final long expirationTime) {
+      myPartNumber = partNumber;
+      myUrl = url;
+      myExpirationTime = expirationTime;
+    }
+
+    public int getPartNumber() {
+      return myPartNumber;
+    }
+
+    @NotNull
+    public URL getUrl() {
+      return myUrl;
+    }
+
+    public long getExpirationTime() {
+      return myExpirationTime;
+    }
+  }
+
+  private static final class PartKey {
+    @NotNull
+    private final String myBucketName;
+    @NotNull
+    private final String myKey;
+    @NotNull
+    private final String myUploadId;
+    private final int myPartNumber;
+
+    private PartKey(@NotNull final String bucketName, @NotNull final String key, @NotNull final String uploadId, final int partNumber) {
+      myBucketName = bucketName;
+      myKey = key;
+      myUploadId = uploadId;
+      myPartNumber = partNumber;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final PartKey partKey = (PartKey)o;
+      return myPartNumber == partKey.myPartNumber && myUploadId.equals(partKey.myUploadId) && myKey.equals(partKey.myKey) && myBucketName.equals(partKey.myBucketName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myBucketName, myKey, myUploadId, myPartNumber);
+    }
+  }
+}
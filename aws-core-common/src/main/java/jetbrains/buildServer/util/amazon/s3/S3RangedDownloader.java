@@ -0,0 +1,284 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.util.BinaryUtils;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Downloads an object with concurrent ranged GET requests, every range is written at its offset and retried on its own.
+ * <p>
+ * Objects uploaded in parts are fetched part by part, so every range can be checked against the MD5 of its part and the
+ * multipart ETag. Other objects are split into ranges of the upload part size and checked against their MD5 ETag.
+ * The checksums are verified if {@link S3Util.S3AdvancedConfiguration#isConsistencyCheckEnabled()} and the ETag is
+ * an MD5 digest at all, which is not the case for objects encrypted with KMS or customer keys.
+ * <p>
+ * Data is written to a temporary file next to the target, which replaces the target only when every range is
+ * downloaded and the content is verified. All requests are bound to the ETag of the object, so a modification
+ * during the download fails it instead of producing a mix of versions.
+ *
+ * @see S3Util#downloadFile
+ */
+public class S3RangedDownloader {
+  private static final String TEMP_FILE_SUFFIX = ".download";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(S3RangedDownloader.class.getName());
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final ExecutorService myExecutor;
+  @NotNull
+  private final S3Util.S3AdvancedConfiguration myConfiguration;
+
+  /**
+   * @param executor executor to download ranges with, its size limits the number of ranges in flight
+   */
+  public S3RangedDownloader(@NotNull final AmazonS3 s3Client,
+                            @NotNull final ExecutorService executor,
+                            @NotNull final S3Util.S3AdvancedConfiguration configuration) {
+    myS3Client = s3Client;
+    myExecutor = executor;
+    myConfiguration = configuration;
+  }
+
+  /**
+   * @return metadata of the downloaded object
+   */
+  @NotNull
+  public ObjectMetadata download(@NotNull final String bucketName, @NotNull final String key, @NotNull final File target) throws IOException, InterruptedException {
+    // metadata of the first part tells whether the object was uploaded in parts and how big they are
+    final ObjectMetadata metadata = S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> myS3Client.getObjectMetadata(new GetObjectMetadataRequest(bucketName, key).withPartNumber(1)));
+    final long length = metadata.getInstanceLength();
+    final Integer partCount = metadata.getPartCount();
+    final boolean isByParts = partCount != null && partCount > 1;
+    final List<Range> ranges = isByParts ? getPartRanges(partCount) : getByteRanges(length);
+    LOG.debug(() -> "Downloading " + bucketName + "/" + key + " (" + length + " bytes) to " + target + " in " + ranges.size() + (isByParts ? " part(s)" : " range(s)"));
+
+    final File tempFile = new File(target.getAbsoluteFile().getParentFile(), target.getName() + TEMP_FILE_SUFFIX);
+    final File parent = tempFile.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Failed to create directory " + parent);
+    }
+    boolean isDownloaded = false;
+    try {
+      try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ)) {
+        final List<RangeResult> results = downloadRanges(bucketName, key, metadata.getETag(), ranges, channel);
+        verify(bucketName, key, metadata, length, results, isByParts, channel);
+        channel.force(false);
+      }
+      try {
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      isDownloaded = true;
+      return metadata;
+    } finally {
+      if (!isDownloaded && tempFile.exists() && !tempFile.delete()) {
+        LOG.warn("Failed to delete incomplete download " + tempFile);
+      }
+    }
+  }
+
+  @NotNull
+  private List<Range> getPartRanges(final int partCount) {
+    final List<Range> ranges = new ArrayList<>(partCount);
+    for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+      ranges.add(new Range(partNumber, -1, -1));
+    }
+    return ranges;
+  }
+
+  @NotNull
+  private List<Range> getByteRanges(final long length) {
+    if (length == 0) {
+      return Collections.singletonList(new Range(0, -1, -1));
+    }
+    final long rangeSize = S3MultipartUploader.getPartSize(myConfiguration, length);
+    final List<Range> ranges = new ArrayList<>();
+    for (long start = 0; start < length; start += rangeSize) {
+      ranges.add(new Range(0, start, Math.min(length, start + rangeSize) - 1));
+    }
+    return ranges;
+  }
+
+  @NotNull
+  private List<RangeResult> downloadRanges(@NotNull final String bucketName,
+                                           @NotNull final String key,
+                                           @NotNull final String eTag,
+                                           @NotNull final List<Range> ranges,
+                                           @NotNull final FileChannel channel) throws InterruptedException {
+    final CompletionService<RangeResult> completionService = new ExecutorCompletionService<>(myExecutor);
+    final List<Future<RangeResult>> futures = new ArrayList<>(ranges.size());
+    for (Range range : ranges) {
+      futures.add(completionService.submit(() -> downloadRange(bucketName, key, eTag, range, channel)));
+    }
+    final List<RangeResult> results = new ArrayList<>(ranges.size());
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        results.add(completionService.take().get());
+      }
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new SdkClientException("Failed to download " + key + " from " + bucketName + ": " + cause.getMessage(), cause);
+    } finally {
+      for (Future<RangeResult> future : futures) {
+        future.cancel(true);
+      }
+    }
+    results.sort(Comparator.comparingLong(r -> r.myStart));
+    return results;
+  }
+
+  @NotNull
+  private RangeResult downloadRange(@NotNull final String bucketName,
+                                    @NotNull final String key,
+                                    @NotNull final String eTag,
+                                    @NotNull final Range range,
+                                    @NotNull final FileChannel channel) {
+    // an attempt writes the whole range again, so a failed one leaves nothing to clean up
+    return S3TransferUtil.newRetrier(myConfiguration, LOG).execute(() -> {
+      final GetObjectRequest request = new GetObjectRequest(bucketName, key).withMatchingETagConstraint(eTag);
+      if (range.myPartNumber > 0) {
+        request.setPartNumber(range.myPartNumber);
+      } else if (range.myEnd >= 0) {
+        request.setRange(range.myStart, range.myEnd);
+      }
+      final S3Object object = myS3Client.getObject(request);
+      if (object == null) {
+        throw new SdkClientException("Object " + bucketName + "/" + key + " was modified during the download");
+      }
+      try (S3ObjectInputStream input = object.getObjectContent()) {
+        final Long[] contentRange = object.getObjectMetadata().getContentRange();
+        final long start = contentRange != null ? contentRange[0] : Math.max(0, range.myStart);
+        final long expectedLength = range.myPartNumber == 0 && range.myEnd >= 0 ? range.myEnd - range.myStart + 1 : object.getObjectMetadata().getContentLength();
+        final MessageDigest md5 = S3TransferUtil.md5();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long position = start;
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+          md5.update(buffer, 0, read);
+          final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+          while (byteBuffer.hasRemaining()) {
+            position += channel.write(byteBuffer, position);
+          }
+        }
+        if (position - start != expectedLength) {
+          throw new IOException("Range " + range + " of " + bucketName + "/" + key + " is incomplete: expected " + expectedLength + " bytes, got " + (position - start));
+        }
+        return new RangeResult(start, position - start, md5.digest());
+      }
+    });
+  }
+
+  private void verify(@NotNull final String bucketName,
+                      @NotNull final String key,
+                      @NotNull final ObjectMetadata metadata,
+                      final long length,
+                      @NotNull final List<RangeResult> results,
+                      final boolean isByParts,
+                      @NotNull final FileChannel channel) throws IOException {
+    long next = 0;
+    for (RangeResult result : results) {
+      if (result.myStart != next) {
+        throw new IOException("Downloaded ranges of " + bucketName + "/" + key + " don't cover the object: expected range starting at " + next + ", got " + result.myStart);
+      }
+      next += result.myLength;
+    }
+    if (next != length) {
+      throw new IOException("Downloaded " + next + " bytes of " + bucketName + "/" + key + " instead of " + length);
+    }
+
+    final String eTag = unquote(metadata.getETag());
+    if (!myConfiguration.isConsistencyCheckEnabled() || metadata.getSSEAwsKmsKeyId() != null || metadata.getSSECustomerAlgorithm() != null) {
+      return;
+    }
+    final String actual;
+    final int dash = eTag.indexOf('-');
+    final boolean isMultipartETag = dash > 0 && S3TransferUtil.MD5_ETAG.matcher(eTag.substring(0, dash)).matches();
+    if (isMultipartETag && isByParts) {
+      // MD5 of the concatenated part digests
+      final MessageDigest md5 = S3TransferUtil.md5();
+      for (RangeResult result : results) {
+        md5.update(result.myMd5);
+      }
+      actual = BinaryUtils.toHex(md5.digest()) + "-" + results.size();
+    } else if (isMultipartETag && eTag.endsWith("-1")) {
+      actual = BinaryUtils.toHex(S3TransferUtil.md5().digest(getContentMd5(results, channel, length))) + "-1";
+    } else if (S3TransferUtil.MD5_ETAG.matcher(eTag).matches()) {
+      actual = BinaryUtils.toHex(getContentMd5(results, channel, length));
+    } else {
+      LOG.debug(() -> "ETag " + eTag + " of " + bucketName + "/" + key + " is not a checksum, the content is not verified");
+      return;
+    }
+    if (!actual.equalsIgnoreCase(eTag)) {
+      throw new IOException("Checksum of downloaded " + bucketName + "/" + key + " " + actual + " doesn't match its ETag " + eTag);
+    }
+  }
+
+  @NotNull
+  private static byte[] getContentMd5(@NotNull final List<RangeResult> results, @NotNull final FileChannel channel, final long length) throws IOException {
+    return results.size() == 1 ? results.get(0).myMd5 : S3TransferUtil.md5(channel, length);
+  }
+
+  @NotNull
+  private static String unquote(@Nullable final String eTag) {
+    if (eTag == null) return "";
+    return eTag.length() > 1 && eTag.startsWith("\"") && eTag.endsWith("\"") ? eTag.substring(1, eTag.length() - 1) : eTag;
+  }
+
+  private static final class Range {
+    private final int myPartNumber;
+    private final long myStart;
+    private final long myEnd;
+
+    /**
+     * @param partNumber part to fetch or 0 to fetch the byte range
+     * @param end        last byte of the range, inclusive, or -1 for the whole object
+     */
+    private Range(final int partNumber, final long start, final long end) {
+      myPartNumber = partNumber;
+      myStart = start;
+      myEnd = end;
+    }
+
+    @Override
+    public String toString() {
+      return myPartNumber > 0 ? "part " + myPartNumber : "bytes " + myStart + "-" + myEnd;
+    }
+  }
+
+  private static final class RangeResult {
+    private final long myStart;
+    private final long myLength;
+    @NotNull
+    private final byte[] myMd5;
+
+    private RangeResult(final long start, final long length, @NotNull final byte[] md5) {
+      myStart = start;
+      myLength = length;
+      myMd5 = md5;
+    }
+  }
+}
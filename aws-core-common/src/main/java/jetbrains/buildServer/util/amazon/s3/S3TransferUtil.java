@@ -0,0 +1,70 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.util.amazon.S3Util;
+import jetbrains.buildServer.util.amazon.retry.AmazonRetrier;
+import jetbrains.buildServer.util.retry.Retrier;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Helpers shared by the transfers of the package
+ */
+final class S3TransferUtil {
+  /**
+   * Hex MD5 as it appears in ETags, the whole ETag of a single request upload or the part before the dash of a multipart one
+   */
+  @NotNull
+  static final Pattern MD5_ETAG = Pattern.compile("[0-9a-fA-F]{32}");
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  private S3TransferUtil() {
+  }
+
+  @NotNull
+  static Retrier newRetrier(@NotNull final S3Util.S3AdvancedConfiguration configuration, @NotNull final Logger logger) {
+    return AmazonRetrier.defaultAwsRetrier(configuration.getRetriesNum(), configuration.getRetryDelay(), logger);
+  }
+
+  @NotNull
+  static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return MD5 of the first bytes of the channel, its position isn't changed
+   */
+  @NotNull
+  static byte[] md5(@NotNull final FileChannel channel, final long length) throws IOException {
+    final MessageDigest md5 = md5();
+    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    long position = 0;
+    while (position < length) {
+      buffer.clear().limit((int)Math.min(BUFFER_SIZE, length - position));
+      final int read = channel.read(buffer, position);
+      if (read < 0) break;
+      buffer.flip();
+      md5.update(buffer);
+      position += read;
+    }
+    return md5.digest();
+  }
+
+  @NotNull
+  static byte[] md5(@NotNull final File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return md5(channel, Long.MAX_VALUE);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.util.Base64;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * End-to-end checks of uploaded content, see {@link S3Util.S3AdvancedConfiguration#isConsistencyCheckEnabled()}.
+ * <p>
+ * Content read from a file is hashed by the SDK while it streams to S3 and compared with the returned ETag.
+ * Content held in a buffer is hashed in memory before sending and passed as Content-MD5, so S3 rejects
+ * a corrupted body itself and the SDK doesn't hash the stream once more. In both cases a mismatch fails
+ * the request with a {@link ChecksumMismatchException}, which is retried like an I/O error, so only
+ * the affected part is sent again.
+ */
+final class UploadIntegrity {
+  /**
+   * Start of the message of the SDK exception thrown when the client side MD5 doesn't match the ETag
+   */
+  private static final String SDK_MISMATCH_MESSAGE = "Unable to verify integrity of data upload";
+  private static final String BAD_DIGEST = "BadDigest";
+
+  private UploadIntegrity() {
+  }
+
+  /**
+   * @return base64 encoded MD5 of the remaining content of the buffer, the buffer position isn't changed
+   */
+  @NotNull
+  static String md5Base64(@NotNull final ByteBuffer buffer) {
+    final MessageDigest md5 = S3TransferUtil.md5();
+    md5.update(buffer.duplicate());
+    return Base64.encodeAsString(md5.digest());
+  }
+
+  /**
+   * Runs an upload request, reporting content mismatches as retryable errors
+   *
+   * @param description what is uploaded, for the error message
+   */
+  static <T> T check(@NotNull final String description, @NotNull final Callable<T> upload) throws Exception {
+    try {
+      return upload.call();
+    } catch (AmazonS3Exception e) {
+      if (BAD_DIGEST.equals(e.getErrorCode())) {
+        throw new ChecksumMismatchException("Content of " + description + " received by S3 doesn't match its Content-MD5", e);
+      }
+      throw e;
+    } catch (SdkClientException e) {
+      if (e.getMessage() != null && e.getMessage().startsWith(SDK_MISMATCH_MESSAGE)) {
+        throw new ChecksumMismatchException("Checksum of " + description + " doesn't match the ETag returned by S3", e);
+      }
+      throw e;
+    }
+  }
+
+  static final class ChecksumMismatchException extends IOException {
+    ChecksumMismatchException(@NotNull final String message, @NotNull final Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import java.lang.management.ManagementFactory;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.TestNGUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the time and heap allocations of creating client configurations with and without the cached templates.
+ * <p>
+ * The suffixes cycle like the ones of EC2 clients created for different connections.
+ * Run with {@code -Daws.benchmark=true}.
+ */
+@Test
+public class ClientConfigurationBuilderBenchmark extends BaseTestCase {
+  private static final int SUFFIXES = 100;
+  private static final int CALLS = 200_000;
+  private static final int ITERATIONS = 5;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    if (!Boolean.getBoolean("aws.benchmark")) {
+      TestNGUtil.skip("Benchmark is disabled");
+    }
+    ClientConfigurationBuilder.clearTemplates();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    ClientConfigurationBuilder.clearTemplates();
+    super.tearDown();
+  }
+
+  @Test
+  public void compare_cached_and_built_configurations() {
+    // warm up both paths before measuring
+    create(false);
+    create(true);
+    for (int i = 0; i < ITERATIONS; i++) {
+      report("built", create(false));
+      report("cached", create(true));
+    }
+  }
+
+  @NotNull
+  private long[] create(final boolean cached) {
+    setInternalProperty(ClientConfigurationBuilder.TEMPLATE_TTL_SEC, cached ? "30" : "0");
+    ClientConfigurationBuilder.clearTemplates();
+    final long allocatedBefore = getAllocatedBytes();
+    final long start = System.nanoTime();
+    int timeouts = 0;
+    for (int i = 0; i < CALLS; i++) {
+      timeouts += ClientConfigurationBuilder.createClientConfigurationEx("ec2Client_" + (i % SUFFIXES)).getConnectionTimeout();
+    }
+    final long duration = System.nanoTime() - start;
+    assertTrue(timeouts != 0);
+    return new long[]{duration, getAllocatedBytes() - allocatedBefore};
+  }
+
+  private static void report(@NotNull final String name, @NotNull final long[] result) {
+    System.out.println(String.format("%-8s %8.0f ns/call %8.0f bytes/call", name, result[0] / (double)CALLS, result[1] / (double)CALLS));
+  }
+
+  private static long getAllocatedBytes() {
+    final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,78 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import com.amazonaws.ClientConfiguration;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class ClientConfigurationBuilderTest extends BaseTestCase {
+  private static final String PROXY_HOST = "teamcity.http.proxy.host.test";
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    ClientConfigurationBuilder.clearTemplates();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    ClientConfigurationBuilder.clearTemplates();
+    super.tearDown();
+  }
+
+  @Test
+  public void returns_independent_copies() {
+    final ClientConfiguration first = ClientConfigurationBuilder.createClientConfigurationEx("test");
+    first.setMaxConnections(7);
+    first.setSignerOverride("S3SignerType");
+
+    final ClientConfiguration second = ClientConfigurationBuilder.createClientConfigurationEx("test");
+    assertNotSame(first, second);
+    assertEquals(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, second.getMaxConnections());
+    assertNull(second.getSignerOverride());
+  }
+
+  @Test
+  public void reads_properties_again_after_templates_are_cleared() {
+    setInternalProperty(PROXY_HOST, "first");
+    assertEquals("first", ClientConfigurationBuilder.createClientConfigurationEx("test").getProxyHost());
+
+    setInternalProperty(PROXY_HOST, "second");
+    assertEquals("first", ClientConfigurationBuilder.createClientConfigurationEx("test").getProxyHost());
+
+    ClientConfigurationBuilder.clearTemplates();
+    assertEquals("second", ClientConfigurationBuilder.createClientConfigurationEx("test").getProxyHost());
+  }
+
+  @Test
+  public void applies_pool_settings_with_fallback_to_aws() {
+    setInternalProperty("teamcity.http.pool.maxConnections.aws", "200");
+    setInternalProperty("teamcity.http.pool.maxConnections.sts", "300");
+    setInternalProperty("teamcity.http.pool.tcpKeepAlive.test", "true");
+    setInternalProperty("teamcity.http.pool.validateAfterInactivityMs.aws", "1000");
+
+    final ClientConfiguration test = ClientConfigurationBuilder.createClientConfigurationEx("test");
+    assertEquals(200, test.getMaxConnections());
+    assertTrue(test.useTcpKeepAlive());
+    assertEquals(1000, test.getValidateAfterInactivityMillis());
+    assertEquals(ClientConfiguration.DEFAULT_CONNECTION_TTL, test.getConnectionTTL());
+
+    final ClientConfiguration sts = ClientConfigurationBuilder.createClientConfigurationEx("sts");
+    assertEquals(300, sts.getMaxConnections());
+    assertFalse(sts.useTcpKeepAlive());
+  }
+
+  @Test
+  public void reads_properties_every_time_without_ttl() {
+    setInternalProperty(ClientConfigurationBuilder.TEMPLATE_TTL_SEC, "0");
+    setInternalProperty(PROXY_HOST, "first");
+    assertEquals("first", ClientConfigurationBuilder.createClientConfigurationEx("test").getProxyHost());
+
+    setInternalProperty(PROXY_HOST, "second");
+    assertEquals("second", ClientConfigurationBuilder.createClientConfigurationEx("test").getProxyHost());
+  }
+}
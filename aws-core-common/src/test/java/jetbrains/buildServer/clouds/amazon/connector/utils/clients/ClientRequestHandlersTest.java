@@ -0,0 +1,35 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+@Test
+public class ClientRequestHandlersTest extends BaseTestCase {
+
+  @Test
+  public void keeps_handlers_and_collector_set_before() {
+    final RequestHandler2 handler = new RequestHandler2() {
+    };
+    final RequestMetricCollector collector = RequestMetricCollector.NONE;
+    final AWSSecurityTokenServiceClientBuilder builder = AWSSecurityTokenServiceClientBuilder.standard()
+                                                                                            .withRequestHandlers(handler)
+                                                                                            .withMetricsCollector(collector);
+
+    ClientRequestHandlers.withStandardHandlers(builder, "sts");
+
+    assertEquals(3, builder.getRequestHandlers().size());
+    assertSame(handler, builder.getRequestHandlers().get(0));
+    assertSame(collector, builder.getMetricsCollector());
+  }
+
+  @Test
+  public void adds_handlers_and_collector_to_new_builder() {
+    final AWSSecurityTokenServiceClientBuilder builder = ClientRequestHandlers.withStandardHandlers(AWSSecurityTokenServiceClientBuilder.standard(), "sts");
+
+    assertEquals(2, builder.getRequestHandlers().size());
+    assertNotNull(builder.getMetricsCollector());
+  }
+}
@@ -0,0 +1,70 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSRequestMetricsFullSupport;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+@Test
+public class ConnectionPoolMetricsTest extends BaseTestCase {
+
+  @Test
+  public void sums_latest_samples_of_clients_per_suffix() {
+    final RequestMetricCollector first = ConnectionPoolMetrics.newCollector("pool-test");
+    final RequestMetricCollector second = ConnectionPoolMetrics.newCollector("pool-test");
+    final RequestMetricCollector other = ConnectionPoolMetrics.newCollector("pool-test-other");
+
+    sample(first, 5, 1, 0);
+    sample(first, 2, 3, 1);
+    sample(second, 4, 0, 6);
+    sample(other, 9, 9, 9);
+
+    final ConnectionPoolMetrics.Stats stats = ConnectionPoolMetrics.getInstance().getStats("pool-test");
+    assertEquals(6, stats.getLeased());
+    assertEquals(3, stats.getAvailable());
+    assertEquals(7, stats.getPending());
+    assertEquals(2, stats.getClients());
+    assertEquals(9, ConnectionPoolMetrics.getInstance().getStats().get("pool-test-other").getLeased());
+  }
+
+  @Test
+  public void drops_suffix_when_last_client_is_shut_down() throws Exception {
+    final AmazonWebServiceClient client = new AmazonWebServiceClient(new ClientConfiguration(), ConnectionPoolMetrics.newCollector("pool-test-shutdown")) {
+    };
+    sample(client.getRequestMetricsCollector(), 3, 2, 1);
+    final ObjectName name = ConnectionPoolMetrics.getObjectName("pool-test-shutdown");
+    assertEquals(1, ConnectionPoolMetrics.getInstance().getStats("pool-test-shutdown").getClients());
+    assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+    ConnectionPoolMetrics.unregister(client);
+    client.shutdown();
+
+    assertEquals(0, ConnectionPoolMetrics.getInstance().getStats("pool-test-shutdown").getClients());
+    assertFalse(ConnectionPoolMetrics.getInstance().getStats().containsKey("pool-test-shutdown"));
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+  }
+
+  @Test
+  public void does_not_collect_when_disabled() {
+    setInternalProperty(ConnectionPoolMetrics.METRICS_ENABLED, "false");
+    assertSame(RequestMetricCollector.NONE, ConnectionPoolMetrics.newCollector("pool-test-disabled"));
+    assertEquals(0, ConnectionPoolMetrics.getInstance().getStats("pool-test-disabled").getClients());
+  }
+
+  private static void sample(@NotNull final RequestMetricCollector collector, final int leased, final int available, final int pending) {
+    final AWSRequestMetrics metrics = new AWSRequestMetricsFullSupport();
+    metrics.setCounter(AWSRequestMetrics.Field.HttpClientPoolLeasedCount, leased);
+    metrics.setCounter(AWSRequestMetrics.Field.HttpClientPoolAvailableCount, available);
+    metrics.setCounter(AWSRequestMetrics.Field.HttpClientPoolPendingCount, pending);
+    final DefaultRequest<Object> request = new DefaultRequest<>("s3");
+    request.setAWSRequestMetrics(metrics);
+    collector.collectMetrics(request, null);
+  }
+}
@@ -0,0 +1,160 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class AWSClientCacheTest extends BaseTestCase {
+  private final AWSClientCache myCache = AWSClientCache.getInstance();
+  private final AtomicInteger myShutdowns = new AtomicInteger();
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myCache.clear();
+    super.tearDown();
+  }
+
+  @Test
+  public void reuses_client_for_same_settings() {
+    final AWSClientCache.Lease<Object> first = acquire(key(new BasicAWSCredentials("key", "secret"), "eu-west-1", null));
+    final AWSClientCache.Lease<Object> second = acquire(key(new BasicAWSCredentials("key", "secret"), "eu-west-1", null));
+    first.close();
+    second.close();
+
+    assertSame(first.getClient(), second.getClient());
+    assertEquals(0, myShutdowns.get());
+  }
+
+  @Test
+  public void separates_clients_by_settings() {
+    final AWSCredentials credentials = new BasicAWSCredentials("key", "secret");
+    try (AWSClientCache.Lease<Object> lease = acquire(key(credentials, "eu-west-1", null));
+         AWSClientCache.Lease<Object> otherSecret = acquire(key(new BasicAWSCredentials("key", "other"), "eu-west-1", null));
+         AWSClientCache.Lease<Object> defaultChain = acquire(key(null, "eu-west-1", null));
+         AWSClientCache.Lease<Object> otherRegion = acquire(key(credentials, "us-east-1", null));
+         AWSClientCache.Lease<Object> otherSigner = acquire(key(credentials, "eu-west-1", "S3SignerType"))) {
+      assertNotSame(lease.getClient(), otherSecret.getClient());
+      assertNotSame(lease.getClient(), defaultChain.getClient());
+      assertNotSame(lease.getClient(), otherRegion.getClient());
+      assertNotSame(lease.getClient(), otherSigner.getClient());
+    }
+  }
+
+  @Test
+  public void separates_clients_by_every_client_configuration_setting() {
+    try (AWSClientCache.Lease<Object> lease = acquire(key(new ClientConfiguration()));
+         AWSClientCache.Lease<Object> same = acquire(key(new ClientConfiguration()));
+         AWSClientCache.Lease<Object> otherRetries = acquire(key(new ClientConfiguration().withMaxErrorRetry(7)));
+         AWSClientCache.Lease<Object> otherTimeout = acquire(key(new ClientConfiguration().withRequestTimeout(1234)));
+         AWSClientCache.Lease<Object> otherExecutionTimeout = acquire(key(new ClientConfiguration().withClientExecutionTimeout(1234)));
+         AWSClientCache.Lease<Object> otherHeader = acquire(key(new ClientConfiguration().withHeader("X-Custom", "value")));
+         AWSClientCache.Lease<Object> otherProxyProtocol = acquire(key(new ClientConfiguration().withProxyProtocol(Protocol.HTTPS)));
+         AWSClientCache.Lease<Object> otherNonProxyHosts = acquire(key(new ClientConfiguration().withNonProxyHosts("*.internal")));
+         AWSClientCache.Lease<Object> gzip = acquire(key(new ClientConfiguration().withGzip(true)))) {
+      assertSame(lease.getClient(), same.getClient());
+      assertNotSame(lease.getClient(), otherRetries.getClient());
+      assertNotSame(lease.getClient(), otherTimeout.getClient());
+      assertNotSame(lease.getClient(), otherExecutionTimeout.getClient());
+      assertNotSame(lease.getClient(), otherHeader.getClient());
+      assertNotSame(lease.getClient(), otherProxyProtocol.getClient());
+      assertNotSame(lease.getClient(), otherNonProxyHosts.getClient());
+      assertNotSame(lease.getClient(), gzip.getClient());
+    }
+  }
+
+  @Test
+  public void snapshots_client_configuration_at_acquire() {
+    final ClientConfiguration configuration = new ClientConfiguration();
+    final AWSClientCache.Key key = key(configuration);
+    configuration.withHeader("X-Custom", "value").withMaxErrorRetry(7);
+
+    try (AWSClientCache.Lease<Object> lease = acquire(key);
+         AWSClientCache.Lease<Object> changed = acquire(key(configuration))) {
+      assertNotSame(lease.getClient(), changed.getClient());
+    }
+  }
+
+  @Test
+  public void shuts_down_client_when_last_lease_released_after_clear() {
+    final AWSClientCache.Lease<Object> lease = acquire(key(null, "eu-west-1", null));
+    myCache.clear();
+    assertEquals(0, myShutdowns.get());
+
+    lease.close();
+    lease.close();
+    assertEquals(1, myShutdowns.get());
+  }
+
+  @Test
+  public void creates_client_per_lease_when_disabled() {
+    setInternalProperty(AWSClientCache.CACHE_ENABLED, "false");
+    final AWSClientCache.Lease<Object> first = acquire(key(null, "eu-west-1", null));
+    final AWSClientCache.Lease<Object> second = acquire(key(null, "eu-west-1", null));
+    assertNotSame(first.getClient(), second.getClient());
+
+    first.close();
+    second.close();
+    assertEquals(2, myShutdowns.get());
+  }
+
+  @Test(timeOut = 10000)
+  public void creates_clients_outside_of_cache_lock() throws Exception {
+    final CountDownLatch creating = new CountDownLatch(1);
+    final CountDownLatch created = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<AWSClientCache.Lease<Object>> slow = executor.submit(() -> myCache.acquire(key(null, "eu-west-1", null), () -> {
+        creating.countDown();
+        try {
+          created.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return new Object();
+      }, client -> myShutdowns.incrementAndGet()));
+      assertTrue(creating.await(5, TimeUnit.SECONDS));
+
+      try (AWSClientCache.Lease<Object> other = acquire(key(null, "us-east-1", null));
+           AWSClientCache.Lease<Object> same = acquire(key(null, "eu-west-1", null))) {
+        created.countDown();
+        try (AWSClientCache.Lease<Object> concurrent = slow.get()) {
+          // the client created later is dropped in favor of the pooled one
+          assertSame(same.getClient(), concurrent.getClient());
+          assertNotSame(other.getClient(), concurrent.getClient());
+          assertEquals(1, myShutdowns.get());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @NotNull
+  private AWSClientCache.Lease<Object> acquire(@NotNull final AWSClientCache.Key key) {
+    return myCache.acquire(key, Object::new, client -> myShutdowns.incrementAndGet());
+  }
+
+  @NotNull
+  private static AWSClientCache.Key key(@Nullable final AWSCredentials credentials, @NotNull final String region, @Nullable final String signer) {
+    return new AWSClientCache.Key("s3", credentials, region, null, true, false, new ClientConfiguration().withSignerOverride(signer));
+  }
+
+  @NotNull
+  private static AWSClientCache.Key key(@NotNull final ClientConfiguration configuration) {
+    return new AWSClientCache.Key("s3", null, "eu-west-1", null, true, false, configuration);
+  }
+}
@@ -0,0 +1,67 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.services.securitytoken.model.Credentials;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class AssumedRoleSessionCacheTest extends BaseTestCase {
+  private final AssumedRoleSessionCache myCache = AssumedRoleSessionCache.getInstance();
+  private final AtomicInteger myRequests = new AtomicInteger();
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myCache.clear();
+    super.tearDown();
+  }
+
+  @Test
+  public void reuses_session_for_same_connection() {
+    final RefreshingSessionCredentials first = myCache.get(key("secret", "external", null), this::newCredentials);
+    final RefreshingSessionCredentials second = myCache.get(key("secret", "external", null), this::newCredentials);
+
+    assertSame(first, second);
+    assertEquals(first.getAWSAccessKeyId(), second.getAWSAccessKeyId());
+    assertEquals(1, myRequests.get());
+  }
+
+  @Test
+  public void separates_sessions_by_connection() {
+    final RefreshingSessionCredentials session = myCache.get(key("secret", "external", null), this::newCredentials);
+
+    assertNotSame(session, myCache.get(key("other", "external", null), this::newCredentials));
+    assertNotSame(session, myCache.get(key("secret", null, null), this::newCredentials));
+    assertNotSame(session, myCache.get(key("secret", "external", "build-step"), this::newCredentials));
+    assertNotSame(session, myCache.get(new AssumedRoleSessionCache.Key("eu-west-1", null, null, "arn:aws:iam::1:role/r", "external", 3600, null), this::newCredentials));
+  }
+
+  @Test
+  public void creates_session_per_call_when_disabled() {
+    setInternalProperty(AssumedRoleSessionCache.CACHE_ENABLED, "false");
+
+    assertNotSame(myCache.get(key("secret", "external", null), this::newCredentials), myCache.get(key("secret", "external", null), this::newCredentials));
+  }
+
+  @NotNull
+  private static AssumedRoleSessionCache.Key key(@NotNull final String secret, @Nullable final String externalId, @Nullable final String sessionName) {
+    return new AssumedRoleSessionCache.Key("eu-west-1", "key", secret, "arn:aws:iam::1:role/r", externalId, 3600, sessionName);
+  }
+
+  @NotNull
+  private RefreshingSessionCredentials newCredentials() {
+    return new RefreshingSessionCredentials() {
+      @NotNull
+      @Override
+      protected Credentials requestCredentials() {
+        final int n = myRequests.incrementAndGet();
+        return new Credentials("key-" + n, "secret-" + n, "token-" + n, new Date(System.currentTimeMillis() + 3600 * 1000L));
+      }
+    };
+  }
+}
@@ -0,0 +1,212 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class RefreshingSessionCredentialsTest extends BaseTestCase {
+  private ExecutorService myExecutor;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(8);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  @Test
+  public void concurrent_first_calls_make_single_request() throws Exception {
+    final CountDownLatch requested = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final TestCredentials credentials = new TestCredentials(TimeUnit.HOURS.toMillis(1)) {
+      @NotNull
+      @Override
+      protected Credentials requestCredentials() {
+        requested.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return super.requestCredentials();
+      }
+    };
+
+    final List<Future<AWSSessionCredentials>> calls = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      calls.add(myExecutor.submit(credentials::getCredentials));
+    }
+    assertTrue(requested.await(10, TimeUnit.SECONDS));
+    Thread.sleep(100);
+    release.countDown();
+
+    for (Future<AWSSessionCredentials> call : calls) {
+      assertEquals("key-1", call.get(10, TimeUnit.SECONDS).getAWSAccessKeyId());
+    }
+    assertEquals(1, credentials.myRequests.get());
+  }
+
+  @Test
+  public void refreshes_in_background_before_expiration() throws Exception {
+    final TestCredentials credentials = new TestCredentials(2000);
+
+    assertEquals("key-1", credentials.getAWSAccessKeyId());
+    // the margin is capped at half of the session
+    Thread.sleep(1200);
+    assertEquals("key-1", credentials.getAWSAccessKeyId());
+
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (!"key-2".equals(credentials.getAWSAccessKeyId()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals("key-2", credentials.getAWSAccessKeyId());
+    assertEquals(2, credentials.myRequests.get());
+  }
+
+  @Test
+  public void waits_for_new_credentials_after_expiration() {
+    final TestCredentials credentials = new TestCredentials(-1000);
+
+    final AWSSessionCredentials first = credentials.getCredentials();
+    final AWSSessionCredentials second = credentials.getCredentials();
+
+    assertEquals("key-1", first.getAWSAccessKeyId());
+    assertEquals("key-2", second.getAWSAccessKeyId());
+    assertEquals("token-2", second.getSessionToken());
+  }
+
+  @Test
+  public void failed_request_is_reported_and_retried() {
+    final AtomicInteger calls = new AtomicInteger();
+    final RefreshingSessionCredentials credentials = new RefreshingSessionCredentials() {
+      @NotNull
+      @Override
+      protected Credentials requestCredentials() {
+        if (calls.incrementAndGet() == 1) throw new IllegalStateException("denied");
+        return new Credentials("key", "secret", "token", new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+      }
+    };
+
+    try {
+      credentials.getCredentials();
+      fail("IllegalStateException expected");
+    } catch (IllegalStateException e) {
+      assertEquals("denied", e.getMessage());
+    }
+    assertEquals("key", credentials.getAWSAccessKeyId());
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void retries_transient_errors_of_first_request() {
+    final TestCredentials credentials = new TestCredentials(TimeUnit.HOURS.toMillis(1)) {
+      @NotNull
+      @Override
+      protected Credentials requestCredentials() {
+        if (myFailures.get() == 0) {
+          myFailures.incrementAndGet();
+          final AmazonServiceException unavailable = new AmazonServiceException("Service Unavailable");
+          unavailable.setStatusCode(503);
+          throw new AWSException(unavailable);
+        }
+        return super.requestCredentials();
+      }
+    };
+
+    assertEquals("key-1", credentials.getAWSAccessKeyId());
+    assertEquals(1, credentials.myFailures.get());
+    assertEquals(1, credentials.myRequests.get());
+  }
+
+  @Test
+  public void reports_non_retryable_error_as_aws_exception() {
+    final AmazonServiceException denied = new AmazonServiceException("Access Denied");
+    denied.setStatusCode(403);
+    final TestCredentials credentials = new TestCredentials(TimeUnit.HOURS.toMillis(1)) {
+      @NotNull
+      @Override
+      protected Credentials requestCredentials() {
+        myFailures.incrementAndGet();
+        throw new AWSException(denied);
+      }
+    };
+
+    try {
+      credentials.getAWSAccessKeyId();
+      fail("AWSException expected");
+    } catch (AWSException e) {
+      assertSame(denied, e.getCause());
+    }
+    assertEquals(1, credentials.myFailures.get());
+  }
+
+  @Test
+  public void retries_transient_errors_of_background_refresh() throws Exception {
+    final TestCredentials credentials = new TestCredentials(6000) {
+      @NotNull
+      @Override
+      protected Credentials requestCredentials() {
+        if (myRequests.get() == 1 && myFailures.get() == 0) {
+          myFailures.incrementAndGet();
+          final AmazonServiceException unavailable = new AmazonServiceException("Service Unavailable");
+          unavailable.setStatusCode(503);
+          // the way AWSClients.assumeRole reports it
+          throw new AWSException(unavailable);
+        }
+        return super.requestCredentials();
+      }
+    };
+
+    assertEquals("key-1", credentials.getAWSAccessKeyId());
+    Thread.sleep(3200);
+    assertEquals("key-1", credentials.getAWSAccessKeyId());
+
+    // before the first credentials expire and RETRY_DELAY_MS passes, so the retrier made the second attempt
+    final long deadline = System.currentTimeMillis() + 2000;
+    while (!"key-2".equals(credentials.getAWSAccessKeyId()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals("key-2", credentials.getAWSAccessKeyId());
+    assertEquals(1, credentials.myFailures.get());
+    assertEquals(2, credentials.myRequests.get());
+  }
+
+  private static class TestCredentials extends RefreshingSessionCredentials {
+    final AtomicInteger myFailures = new AtomicInteger();
+    final AtomicInteger myRequests = new AtomicInteger();
+    private final long myFirstDurationMs;
+
+    /**
+     * @param firstDurationMs duration of the first credentials, the next ones are valid for an hour
+     */
+    private TestCredentials(final long firstDurationMs) {
+      myFirstDurationMs = firstDurationMs;
+    }
+
+    @NotNull
+    @Override
+    protected Credentials requestCredentials() {
+      final int n = myRequests.incrementAndGet();
+      final long durationMs = n == 1 ? myFirstDurationMs : TimeUnit.HOURS.toMillis(1);
+      return new Credentials("key-" + n, "secret-" + n, "token-" + n, new Date(System.currentTimeMillis() + durationMs));
+    }
+  }
+}
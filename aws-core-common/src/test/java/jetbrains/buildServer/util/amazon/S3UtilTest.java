@@ -0,0 +1,340 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.Upload;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@Test
+public class S3UtilTest extends BaseTestCase {
+  private AmazonS3 myS3Client;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myS3Client = Mockito.mock(AmazonS3.class);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    S3Util.shutdownTransferManagerPool();
+    super.tearDown();
+  }
+
+  @Test(timeOut = 10000)
+  public void reports_failure_without_waiting_for_slower_transfers() throws Throwable {
+    final Upload slow = running(new CountDownLatch(1));
+    final AmazonS3Exception error = accessDenied();
+    final Upload failed = failed(error);
+
+    try {
+      S3Util.withTransferManager(myS3Client, manager -> Arrays.asList(slow, failed), S3Util.S3AdvancedConfiguration.defaultConfiguration().withFailFast(true));
+      fail("Failure expected");
+    } catch (AmazonS3Exception e) {
+      assertSame(error, e);
+    }
+    // the slow transfer finishes only when it's aborted
+    verify(slow).abort();
+  }
+
+  @Test(timeOut = 10000)
+  public void fail_fast_aborts_remaining_transfers() throws Throwable {
+    final Upload completed = completed();
+    final Upload first = running(new CountDownLatch(1));
+    final Upload second = running(new CountDownLatch(1));
+
+    try {
+      S3Util.withTransferManager(myS3Client, manager -> Arrays.asList(completed, first, failed(accessDenied()), second),
+                                 S3Util.S3AdvancedConfiguration.defaultConfiguration().withFailFast(true));
+      fail("Failure expected");
+    } catch (AmazonS3Exception e) {
+      // expected
+    }
+    verify(first).abort();
+    verify(second).abort();
+    verify(completed, never()).abort();
+  }
+
+  @Test(timeOut = 10000)
+  public void waits_for_all_transfers_without_fail_fast() throws Throwable {
+    final CountDownLatch slowDone = new CountDownLatch(1);
+    final Upload slow = running(slowDone);
+    final AmazonS3Exception error = accessDenied();
+    releaseLater(slowDone);
+
+    try {
+      S3Util.withTransferManager(myS3Client, manager -> Arrays.asList(slow, failed(error)), S3Util.S3AdvancedConfiguration.defaultConfiguration());
+      fail("Failure expected");
+    } catch (AmazonS3Exception e) {
+      assertSame(error, e);
+    }
+    verify(slow).waitForCompletion();
+    verify(slow, never()).abort();
+  }
+
+  @Test(timeOut = 10000)
+  public void returns_transfers_in_given_order() throws Throwable {
+    final CountDownLatch firstDone = new CountDownLatch(1);
+    final Upload first = running(firstDone);
+    final Upload second = completed();
+    final Upload third = completed();
+    releaseLater(firstDone);
+
+    final Collection<Upload> result = S3Util.withTransferManager(myS3Client, manager -> Arrays.asList(first, second, third),
+                                                                 S3Util.S3AdvancedConfiguration.defaultConfiguration());
+
+    assertEquals(Arrays.asList(first, second, third), new ArrayList<>(result));
+  }
+
+  @Test(timeOut = 10000)
+  public void aborts_pending_transfers_when_interrupted() throws Exception {
+    final Upload slow = running(new CountDownLatch(1));
+    final CountDownLatch submitted = new CountDownLatch(1);
+    final AtomicReference<Throwable> thrown = new AtomicReference<>();
+    final Thread thread = new Thread(() -> {
+      try {
+        S3Util.withTransferManager(myS3Client, manager -> {
+          submitted.countDown();
+          return Arrays.asList(slow, completed());
+        }, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+      } catch (Throwable t) {
+        thrown.set(t);
+      }
+    });
+    thread.start();
+    assertTrue(submitted.await(5, TimeUnit.SECONDS));
+    Thread.sleep(100);
+    thread.interrupt();
+    thread.join();
+
+    assertTrue(thrown.get() instanceof InterruptedException);
+    verify(slow).abort();
+  }
+
+  @Test(timeOut = 10000)
+  public void aborts_started_transfers_when_submitting_fails() throws Throwable {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch aborted = new CountDownLatch(1);
+    when(myS3Client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+      started.countDown();
+      try {
+        new CountDownLatch(1).await();
+      } catch (InterruptedException e) {
+        aborted.countDown();
+        throw e;
+      }
+      return new PutObjectResult();
+    });
+    final IOException error = new IOException("Failed to read the next file");
+
+    try {
+      S3Util.withTransferManager(myS3Client, manager -> {
+        manager.upload(new PutObjectRequest("bucket", "key", new ByteArrayInputStream(new byte[1]), new ObjectMetadata()));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        throw error;
+      }, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+      fail("Failure expected");
+    } catch (IOException e) {
+      assertSame(error, e);
+    }
+    // the manager isn't shared with anyone else, so its transfers are aborted right away
+    assertTrue(aborted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void resubmits_transfer_failed_with_retryable_error() throws Throwable {
+    final Upload succeeded = completed();
+    final List<Integer> attempts = new ArrayList<>();
+    final S3Util.TransferSubmitter<Upload> submitter = submitter(attempts, failed(serviceUnavailable()), succeeded);
+
+    final Collection<Upload> result = S3Util.withResubmittingTransferManager(myS3Client, Collections.singletonList(submitter), configuration(3));
+
+    assertEquals(Collections.singletonList(succeeded), new ArrayList<>(result));
+    assertEquals(Arrays.asList(0, 1), attempts);
+  }
+
+  @Test
+  public void resubmits_at_most_retries_num_times() throws Throwable {
+    final List<Integer> attempts = new ArrayList<>();
+    final AmazonS3Exception last = serviceUnavailable();
+    final S3Util.TransferSubmitter<Upload> submitter = submitter(attempts, failed(serviceUnavailable()), failed(serviceUnavailable()), failed(last), completed());
+
+    try {
+      S3Util.withResubmittingTransferManager(myS3Client, Collections.singletonList(submitter), configuration(2));
+      fail("Failure expected");
+    } catch (AmazonS3Exception e) {
+      assertSame(last, e);
+    }
+    assertEquals(Arrays.asList(0, 1, 2), attempts);
+  }
+
+  @Test
+  public void does_not_resubmit_transfer_failed_with_non_retryable_error() throws Throwable {
+    final List<Integer> attempts = new ArrayList<>();
+    final AmazonS3Exception error = accessDenied();
+    final S3Util.TransferSubmitter<Upload> submitter = submitter(attempts, failed(error), completed());
+
+    try {
+      S3Util.withResubmittingTransferManager(myS3Client, Collections.singletonList(submitter), configuration(3));
+      fail("Failure expected");
+    } catch (AmazonS3Exception e) {
+      assertSame(error, e);
+    }
+    assertEquals(Collections.singletonList(0), attempts);
+  }
+
+  @Test
+  public void resubmitted_transfer_takes_place_of_failed_one() throws Throwable {
+    final Upload resubmitted = completed();
+    final Upload second = completed();
+    final List<Integer> attempts = new ArrayList<>();
+
+    final Collection<Upload> result = S3Util.withResubmittingTransferManager(myS3Client,
+                                                                             Arrays.asList(submitter(attempts, failed(serviceUnavailable()), resubmitted),
+                                                                                           submitter(new ArrayList<>(), second)),
+                                                                             configuration(3));
+
+    assertEquals(Arrays.asList(resubmitted, second), new ArrayList<>(result));
+  }
+
+  @Test(timeOut = 10000)
+  public void aborts_submitted_transfers_when_next_submit_fails() throws Throwable {
+    final Upload first = running(new CountDownLatch(1));
+    final IOException error = new IOException("Failed to read the next file");
+
+    try {
+      S3Util.withResubmittingTransferManager(myS3Client,
+                                             Arrays.asList(submitter(new ArrayList<>(), first), (manager, attempt) -> {
+                                               throw error;
+                                             }),
+                                             configuration(3));
+      fail("Failure expected");
+    } catch (IOException e) {
+      assertSame(error, e);
+    }
+    verify(first).abort();
+  }
+
+  @Test(timeOut = 10000)
+  public void aborts_pending_transfers_when_resubmit_fails() throws Throwable {
+    final Upload slow = running(new CountDownLatch(1));
+    final IOException error = new IOException("Failed to read the file again");
+    final S3Util.TransferSubmitter<Upload> failing = (manager, attempt) -> {
+      if (attempt > 0) throw error;
+      return failed(serviceUnavailable());
+    };
+
+    try {
+      S3Util.withResubmittingTransferManager(myS3Client, Arrays.asList(failing, submitter(new ArrayList<>(), slow)), configuration(3));
+      fail("Failure expected");
+    } catch (IOException e) {
+      assertSame(error, e);
+    }
+    verify(slow).abort();
+  }
+
+  /**
+   * @param attempts collects the attempt numbers the transfers are submitted with
+   * @param uploads  transfers to return for the subsequent attempts
+   */
+  @NotNull
+  private static S3Util.TransferSubmitter<Upload> submitter(@NotNull final List<Integer> attempts, @NotNull final Upload... uploads) {
+    return (manager, attempt) -> {
+      attempts.add(attempt);
+      return uploads[attempt];
+    };
+  }
+
+  @NotNull
+  private static S3Util.S3AdvancedConfiguration configuration(final int retriesNum) {
+    return S3Util.S3AdvancedConfiguration.defaultConfiguration().withNumberOfRetries(retriesNum).withRetryDelayMs(0);
+  }
+
+  private static void releaseLater(@NotNull final CountDownLatch latch) {
+    final Thread thread = new Thread(() -> {
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException ignored) {
+      }
+      latch.countDown();
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @NotNull
+  private static Upload completed() {
+    final Upload upload = Mockito.mock(Upload.class);
+    when(upload.isDone()).thenReturn(true);
+    when(upload.getState()).thenReturn(Transfer.TransferState.Completed);
+    return upload;
+  }
+
+  @NotNull
+  private static Upload failed(@NotNull final Exception error) throws InterruptedException {
+    final Upload upload = Mockito.mock(Upload.class);
+    when(upload.isDone()).thenReturn(true);
+    when(upload.getState()).thenReturn(Transfer.TransferState.Failed);
+    doThrow(error).when(upload).waitForCompletion();
+    return upload;
+  }
+
+  /**
+   * @param done released when the transfer completes, aborting the transfer releases it too
+   */
+  @NotNull
+  private static Upload running(@NotNull final CountDownLatch done) throws InterruptedException {
+    final Upload upload = Mockito.mock(Upload.class);
+    when(upload.isDone()).thenAnswer(invocation -> done.getCount() == 0);
+    when(upload.getState()).thenAnswer(invocation -> done.getCount() == 0 ? Transfer.TransferState.Completed : Transfer.TransferState.InProgress);
+    doAnswer(invocation -> {
+      done.await();
+      return null;
+    }).when(upload).waitForCompletion();
+    doAnswer(invocation -> {
+      done.countDown();
+      return null;
+    }).when(upload).abort();
+    return upload;
+  }
+
+  @NotNull
+  private static AmazonS3Exception serviceUnavailable() {
+    final AmazonS3Exception exception = new AmazonS3Exception("Service Unavailable");
+    exception.setErrorCode("ServiceUnavailable");
+    exception.setStatusCode(503);
+    return exception;
+  }
+
+  @NotNull
+  private static AmazonS3Exception accessDenied() {
+    final AmazonS3Exception exception = new AmazonS3Exception("Access Denied");
+    exception.setErrorCode("AccessDenied");
+    exception.setStatusCode(403);
+    return exception;
+  }
+}
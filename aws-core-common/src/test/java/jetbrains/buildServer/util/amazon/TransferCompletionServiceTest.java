@@ -0,0 +1,70 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.transfer.Upload;
+import java.util.Arrays;
+import java.util.Collections;
+import jetbrains.buildServer.BaseTestCase;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.when;
+
+@Test
+public class TransferCompletionServiceTest extends BaseTestCase {
+
+  @Test
+  public void returns_transfers_in_completion_order() throws InterruptedException {
+    final Upload slow = Mockito.mock(Upload.class);
+    final Upload fast = Mockito.mock(Upload.class);
+    when(fast.isDone()).thenReturn(true);
+
+    final TransferCompletionService<Upload> service = new TransferCompletionService<>(Arrays.asList(slow, fast));
+
+    assertSame(service.take(), fast);
+    assertTrue(service.hasNext());
+    assertEquals(service.getPending(), Collections.singletonList(slow));
+
+    final ArgumentCaptor<ProgressListener> listener = ArgumentCaptor.forClass(ProgressListener.class);
+    Mockito.verify(slow).addProgressListener(listener.capture());
+    listener.getValue().progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_FAILED_EVENT));
+
+    assertSame(service.take(), slow);
+    assertFalse(service.hasNext());
+    assertTrue(service.getPending().isEmpty());
+  }
+
+  @Test
+  public void ignores_repeated_completion_events() throws InterruptedException {
+    final Upload upload = Mockito.mock(Upload.class);
+    final TransferCompletionService<Upload> service = new TransferCompletionService<>(Collections.singletonList(upload));
+
+    final ArgumentCaptor<ProgressListener> listener = ArgumentCaptor.forClass(ProgressListener.class);
+    Mockito.verify(upload).addProgressListener(listener.capture());
+    listener.getValue().progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_PART_COMPLETED_EVENT));
+    assertTrue(service.hasNext());
+
+    listener.getValue().progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_COMPLETED_EVENT));
+    listener.getValue().progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_COMPLETED_EVENT));
+
+    assertSame(service.take(), upload);
+    assertFalse(service.hasNext());
+  }
+
+  @Test(timeOut = 10000)
+  public void hands_out_transfer_submitted_twice_once() throws InterruptedException {
+    final Upload upload = Mockito.mock(Upload.class);
+    final TransferCompletionService<Upload> service = new TransferCompletionService<>(Collections.singletonList(upload));
+    service.submit(upload);
+
+    final ArgumentCaptor<ProgressListener> listener = ArgumentCaptor.forClass(ProgressListener.class);
+    Mockito.verify(upload).addProgressListener(listener.capture());
+    listener.getValue().progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_COMPLETED_EVENT));
+
+    assertSame(service.take(), upload);
+    assertFalse(service.hasNext());
+  }
+}
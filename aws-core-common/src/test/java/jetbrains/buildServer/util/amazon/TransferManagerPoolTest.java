@@ -0,0 +1,119 @@
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.services.s3.AmazonS3;
+import jetbrains.buildServer.BaseTestCase;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class TransferManagerPoolTest extends BaseTestCase {
+  private final TransferManagerPool myPool = TransferManagerPool.getInstance();
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myPool.clear();
+    AWSClientCache.getInstance().clear();
+    super.tearDown();
+  }
+
+  @Test
+  public void reuses_manager_for_same_client_and_configuration() {
+    final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+    final TransferManagerPool.Lease first = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    first.close();
+    final TransferManagerPool.Lease second = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    second.close();
+
+    assertSame(first.getManager(), second.getManager());
+  }
+
+  @Test
+  public void separates_managers_by_client_and_configuration() {
+    final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+    try (TransferManagerPool.Lease lease = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+         TransferManagerPool.Lease otherClient = myPool.acquire(Mockito.mock(AmazonS3.class), S3Util.S3AdvancedConfiguration.defaultConfiguration());
+         TransferManagerPool.Lease otherConfiguration = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration().withNumberOfThreads(3));
+         TransferManagerPool.Lease otherExecutor = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration().withVirtualThreads(true))) {
+      assertNotSame(lease.getManager(), otherClient.getManager());
+      assertNotSame(lease.getManager(), otherConfiguration.getManager());
+      assertNotSame(lease.getManager(), otherExecutor.getManager());
+    }
+  }
+
+  @Test
+  public void does_not_reuse_manager_shut_down_by_caller() {
+    final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+    final TransferManagerPool.Lease first = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    first.getManager().shutdownNow(false);
+    first.close();
+    final TransferManagerPool.Lease second = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    second.close();
+
+    assertNotSame(first.getManager(), second.getManager());
+  }
+
+  @Test
+  public void shuts_down_discarded_manager_when_last_lease_released() {
+    final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+    final TransferManagerPool.Lease first = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    final TransferManagerPool.Lease concurrent = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    first.discard();
+    first.close();
+    assertFalse(concurrent.getExecutor().isShutdown());
+
+    final TransferManagerPool.Lease next = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    next.close();
+    assertNotSame(first.getManager(), next.getManager());
+
+    concurrent.close();
+    assertTrue(first.getExecutor().isShutdown());
+  }
+
+  @Test
+  public void pools_managers_of_cached_clients_only() {
+    assertFalse(TransferManagerPool.isPoolable(Mockito.mock(AmazonS3.class)));
+
+    try (AWSClientCache.Lease<AmazonS3> lease = AWSClients.fromBasicCredentials("accessKey", "secretKey", "us-east-1").leaseS3Client()) {
+      assertTrue(TransferManagerPool.isPoolable(lease.getClient()));
+    }
+  }
+
+  @Test
+  public void shares_managers_of_clients_created_with_same_settings() {
+    final AWSClients clients = AWSClients.fromBasicCredentials("accessKey", "secretKey", "us-east-1");
+    final AmazonS3 first = clients.createS3Client();
+    final AmazonS3 second = AWSClients.fromBasicCredentials("accessKey", "secretKey", "us-east-1").createS3Client();
+    assertTrue(TransferManagerPool.isPoolable(first));
+
+    final TransferManagerPool.Lease firstLease = myPool.acquire(first, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    firstLease.close();
+    first.shutdown();
+    final TransferManagerPool.Lease secondLease = myPool.acquire(second, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    secondLease.close();
+    second.shutdown();
+
+    assertSame(firstLease.getManager(), secondLease.getManager());
+    assertFalse(secondLease.getExecutor().isShutdown());
+  }
+
+  @Test
+  public void shuts_down_managers_of_shut_down_client() {
+    final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+    final TransferManagerPool.Lease idle = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration());
+    idle.close();
+    final TransferManagerPool.Lease leased = myPool.acquire(s3Client, S3Util.S3AdvancedConfiguration.defaultConfiguration().withNumberOfThreads(3));
+    S3Util.shutdownClient(s3Client);
+
+    assertTrue(idle.getExecutor().isShutdown());
+    assertFalse(leased.getExecutor().isShutdown());
+    leased.close();
+    assertTrue(leased.getExecutor().isShutdown());
+  }
+}
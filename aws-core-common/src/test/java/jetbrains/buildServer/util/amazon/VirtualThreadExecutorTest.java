@@ -0,0 +1,66 @@
+package jetbrains.buildServer.util.amazon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.TestNGUtil;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class VirtualThreadExecutorTest extends BaseTestCase {
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    if (!VirtualThreadExecutor.isSupported()) {
+      TestNGUtil.skip("Virtual threads are not supported by the JVM");
+    }
+  }
+
+  @Test
+  public void names_threads_and_sets_class_loader() throws Exception {
+    final ExecutorService executor = S3Util.createExecutorService(S3Util.S3AdvancedConfiguration.defaultConfiguration().withVirtualThreads(true));
+    try {
+      final Thread thread = executor.submit(Thread::currentThread).get();
+      assertTrue(thread.getName().startsWith("amazon-util-s3-transfer-manager-worker-"));
+      assertSame(S3Util.class.getClassLoader(), thread.getContextClassLoader());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void limits_concurrent_tasks() throws Exception {
+    final ExecutorService executor = S3Util.createExecutorService(S3Util.S3AdvancedConfiguration.defaultConfiguration().withVirtualThreads(true).withNumberOfThreads(3));
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        futures.add(executor.submit(() -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          release.await();
+          running.decrementAndGet();
+          return null;
+        }));
+      }
+      Thread.sleep(200);
+      assertEquals(3, running.get());
+      release.countDown();
+      for (Future<?> future : futures) {
+        future.get(10, TimeUnit.SECONDS);
+      }
+      assertEquals(3, maxRunning.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.amazonaws.retry.RetryUtils;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+@Test
+public class AdaptiveRateLimiterTest extends BaseTestCase {
+  private static final String KEY = "bucket.s3.amazonaws.com/PutObject";
+
+  @Test
+  public void does_not_limit_before_throttling() throws Exception {
+    final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+    final long start = System.nanoTime();
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire(KEY);
+    }
+    limiter.succeeded(KEY);
+
+    assertTrue(System.nanoTime() - start < 1000L * 1000 * 1000);
+    assertTrue(limiter.getRates().isEmpty());
+  }
+
+  @Test
+  public void halves_rate_on_throttling_and_spaces_requests() throws Exception {
+    setInternalProperty(AdaptiveRateLimiter.MIN_RATE, "10");
+    final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+    limiter.acquire(KEY);
+    limiter.throttled(KEY);
+    // the second error of the same wave doesn't decrease the rate again
+    limiter.throttled(KEY);
+    assertEquals(Double.valueOf(10), limiter.getRates().get(KEY));
+
+    final long start = System.nanoTime();
+    for (int i = 0; i < 6; i++) {
+      limiter.acquire(KEY);
+    }
+    assertTrue(System.nanoTime() - start >= 450L * 1000 * 1000);
+    assertTrue(limiter.getRates().containsKey(KEY));
+    assertFalse(limiter.getRates().containsKey("bucket.s3.amazonaws.com/GetObject"));
+  }
+
+  @Test
+  public void grows_rate_after_successes_and_lifts_limit() throws Exception {
+    setInternalProperty(AdaptiveRateLimiter.INCREASE_PER_SEC, "100");
+    setInternalProperty(AdaptiveRateLimiter.LIFT_AFTER_MS, "100");
+    final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+    limiter.acquire(KEY);
+    limiter.throttled(KEY);
+    final double throttledRate = limiter.getRates().get(KEY);
+
+    Thread.sleep(50);
+    limiter.succeeded(KEY);
+    assertTrue(limiter.getRates().get(KEY) > throttledRate);
+
+    Thread.sleep(200);
+    limiter.succeeded(KEY);
+    assertTrue(limiter.getRates().isEmpty());
+  }
+
+  @Test
+  public void keeps_limit_of_high_rate_until_it_grows_back() throws Exception {
+    setInternalProperty(AdaptiveRateLimiter.INCREASE_PER_SEC, "10000");
+    setInternalProperty(AdaptiveRateLimiter.LIFT_AFTER_MS, "100");
+    final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+    for (int i = 0; i < 2000; i++) {
+      limiter.acquire(KEY);
+    }
+    limiter.throttled(KEY);
+    final double throttledRate = limiter.getRates().get(KEY);
+    assertTrue(throttledRate >= 1000);
+
+    // the halved rate is far above the rate of a slower endpoint, but it's still the limit of this one
+    limiter.succeeded(KEY);
+    assertTrue(limiter.getRates().containsKey(KEY));
+
+    // grows back above the throttled rate, the limit stays until no request is throttled for a while
+    Thread.sleep(300);
+    limiter.succeeded(KEY);
+    assertTrue(limiter.getRates().get(KEY) >= 2 * throttledRate);
+    Thread.sleep(150);
+    limiter.succeeded(KEY);
+    assertTrue(limiter.getRates().isEmpty());
+  }
+
+  @Test
+  public void rejects_request_waiting_longer_than_allowed() throws Exception {
+    setInternalProperty(AdaptiveRateLimiter.MAX_WAIT_MS, "100");
+    final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+    limiter.acquire(KEY);
+    limiter.throttled(KEY);
+    assertEquals(Double.valueOf(1), limiter.getRates().get(KEY));
+    limiter.acquire(KEY);
+
+    try {
+      limiter.acquire(KEY);
+      fail("RateLimitExceededException expected");
+    } catch (RateLimitExceededException e) {
+      assertTrue(RetryUtils.isThrottlingException(e));
+      assertTrue(AmazonRetrier.isRetryable(e));
+    }
+  }
+
+  @Test(timeOut = 10000)
+  public void releases_turn_of_interrupted_request() throws Exception {
+    setInternalProperty(AdaptiveRateLimiter.MAX_WAIT_MS, "1500");
+    final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+    limiter.acquire(KEY);
+    limiter.throttled(KEY);
+    limiter.acquire(KEY);
+
+    // waits for the second turn and is interrupted
+    final Thread interrupted = new Thread(() -> {
+      try {
+        limiter.acquire(KEY);
+      } catch (InterruptedException ignored) {
+      }
+    });
+    interrupted.start();
+    Thread.sleep(100);
+    interrupted.interrupt();
+    interrupted.join();
+
+    // takes the second turn instead of waiting for the third one, which is longer than allowed
+    limiter.acquire(KEY);
+  }
+}
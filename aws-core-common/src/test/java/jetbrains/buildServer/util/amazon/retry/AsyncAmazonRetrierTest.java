@@ -0,0 +1,98 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.retry.AbortRetriesException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class AsyncAmazonRetrierTest extends BaseTestCase {
+  private static final Logger LOG = Logger.getInstance(AsyncAmazonRetrierTest.class.getName());
+  private ExecutorService myExecutor;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newSingleThreadExecutor();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  @Test
+  public void retries_io_errors() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    final CompletableFuture<String> result = newRetrier(3).execute(() -> {
+      if (attempts.incrementAndGet() < 3) throw new IOException("connection reset");
+      return "done";
+    }, myExecutor);
+
+    assertEquals("done", result.get(10, TimeUnit.SECONDS));
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  public void aborts_on_non_retryable_error() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    final CompletableFuture<String> result = newRetrier(3).execute(() -> {
+      attempts.incrementAndGet();
+      throw new IllegalStateException("denied");
+    }, myExecutor);
+
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail("ExecutionException expected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof AbortRetriesException);
+      assertEquals("denied", e.getCause().getCause().getMessage());
+    }
+    assertEquals(1, attempts.get());
+  }
+
+  @Test
+  public void fails_with_last_error_once_retries_are_used() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    final CompletableFuture<String> result = newRetrier(2).execute(() -> {
+      throw new IOException("attempt " + attempts.incrementAndGet());
+    }, myExecutor);
+
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail("ExecutionException expected");
+    } catch (ExecutionException e) {
+      assertEquals("attempt 3", e.getCause().getMessage());
+    }
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  public void cancel_stops_retries() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    final CompletableFuture<String> result = new AsyncAmazonRetrier(5, 500, LOG, BackOff.Strategy.LINEAR, new RetryBudget()).execute(() -> {
+      attempts.incrementAndGet();
+      throw new IOException("connection reset");
+    }, myExecutor);
+
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (attempts.get() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    result.cancel(false);
+    Thread.sleep(1000);
+    assertEquals(1, attempts.get());
+  }
+
+  private static AsyncAmazonRetrier newRetrier(final int retriesNum) {
+    return new AsyncAmazonRetrier(retriesNum, 10, LOG, BackOff.Strategy.LINEAR, new RetryBudget());
+  }
+}
@@ -0,0 +1,93 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import java.net.ConnectException;
+import java.net.URI;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+@Test
+public class CircuitBreakerTest extends BaseTestCase {
+  private static final String KEY = "s3.eu-west-1.amazonaws.com (key)";
+
+  @Test
+  public void opens_after_failure_rate_and_lets_single_probe_through() throws Exception {
+    setInternalProperty(CircuitBreaker.MINIMUM_CALLS, "4");
+    setInternalProperty(CircuitBreaker.OPEN_DURATION_SEC, "1");
+    final CircuitBreaker breaker = new CircuitBreaker();
+
+    breaker.record(KEY, false);
+    breaker.record(KEY, true);
+    breaker.record(KEY, false);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(KEY));
+    breaker.record(KEY, true);
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(KEY));
+    assertFalse(breaker.allow(KEY));
+    assertTrue(breaker.allow("other.amazonaws.com (key)"));
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getStates().get(KEY));
+
+    Thread.sleep(1100);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(KEY));
+    assertTrue(breaker.allow(KEY));
+    assertFalse(breaker.allow(KEY));
+
+    breaker.record(KEY, true);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(KEY));
+
+    Thread.sleep(1100);
+    assertTrue(breaker.allow(KEY));
+    breaker.record(KEY, false);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(KEY));
+    assertTrue(breaker.allow(KEY));
+    assertTrue(breaker.getStates().isEmpty());
+  }
+
+  @Test
+  public void stays_half_open_when_probe_is_rejected_by_rate_limiter() throws Exception {
+    setInternalProperty(CircuitBreaker.BREAKER_ENABLED, "true");
+    setInternalProperty(CircuitBreaker.MINIMUM_CALLS, "1");
+    setInternalProperty(CircuitBreaker.OPEN_DURATION_SEC, "1");
+    final CircuitBreaker breaker = new CircuitBreaker();
+    breaker.record(KEY, true);
+    Thread.sleep(1100);
+    assertTrue(breaker.allow(KEY));
+
+    final DefaultRequest<Object> request = new DefaultRequest<>("s3");
+    request.setEndpoint(URI.create("https://s3.eu-west-1.amazonaws.com"));
+    request.addHandlerContext(HandlerContextKey.AWS_CREDENTIALS, new BasicAWSCredentials("key", "secret"));
+    breaker.getRequestHandler().afterAttempt(HandlerAfterAttemptContext.builder()
+                                                                      .withRequest(request)
+                                                                      .withException(new RateLimitExceededException(KEY))
+                                                                      .build());
+
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(KEY));
+    assertTrue(breaker.allow(KEY));
+  }
+
+  @Test
+  public void counts_only_endpoint_failures() {
+    assertEquals(Boolean.TRUE, CircuitBreaker.isFailure(serviceException(503, "ServiceUnavailable")));
+    assertEquals(Boolean.TRUE, CircuitBreaker.isFailure(new SdkClientException("Unable to execute HTTP request", new ConnectException())));
+    assertEquals(Boolean.FALSE, CircuitBreaker.isFailure(serviceException(503, "SlowDown")));
+    assertEquals(Boolean.FALSE, CircuitBreaker.isFailure(serviceException(403, "AccessDenied")));
+    assertEquals(Boolean.FALSE, CircuitBreaker.isFailure(null));
+    assertNull(CircuitBreaker.isFailure(new IllegalStateException()));
+
+    assertFalse(AmazonRetrier.isRetryable(new CircuitOpenException(KEY)));
+  }
+
+  @NotNull
+  private static AmazonServiceException serviceException(final int statusCode, @NotNull final String errorCode) {
+    final AmazonServiceException e = new AmazonServiceException(errorCode);
+    e.setStatusCode(statusCode);
+    e.setErrorCode(errorCode);
+    return e;
+  }
+}
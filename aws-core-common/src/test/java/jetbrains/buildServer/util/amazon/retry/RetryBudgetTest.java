@@ -0,0 +1,141 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.retry.RecoverableException;
+import jetbrains.buildServer.util.retry.Retrier;
+import jetbrains.buildServer.util.retry.RetrierEventListener;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+@Test
+public class RetryBudgetTest extends BaseTestCase {
+
+  @Test
+  public void denies_retries_once_exhausted() {
+    setInternalProperty(RetryBudget.BUDGET_ENABLED, "true");
+    setInternalProperty(RetryBudget.CAPACITY, "3");
+    setInternalProperty(RetryBudget.REFILL_PER_SEC, "0");
+    final RetryBudget budget = new RetryBudget();
+
+    assertTrue(budget.tryAcquire());
+    assertTrue(budget.tryAcquire());
+    assertTrue(budget.tryAcquire());
+    assertFalse(budget.tryAcquire());
+    assertEquals(1, budget.getExhaustedCount());
+  }
+
+  @Test
+  public void retrier_fails_without_retries_once_exhausted() {
+    setInternalProperty(RetryBudget.BUDGET_ENABLED, "true");
+    setInternalProperty(RetryBudget.CAPACITY, "1");
+    setInternalProperty(RetryBudget.REFILL_PER_SEC, "0");
+    final List<String> events = new ArrayList<>();
+    final Retrier retrier = Retrier.withRetries(5, Retrier.DelayStrategy.linearBackOff(0))
+                                   .registerListener(new BackOffListener(5, 0, BackOff.Strategy.FULL_JITTER, new RetryBudget()))
+                                   .registerListener(new RetrierEventListener() {
+                                     @Override
+                                     public <T> void onFailure(@NotNull final Callable<T> callable, final int retry, @NotNull final Exception e) {
+                                       events.add("failure " + retry);
+                                     }
+
+                                     @Override
+                                     public <T> void beforeRetry(@NotNull final Callable<T> callable, final int retry) {
+                                       events.add("retry " + retry);
+                                     }
+                                   });
+    final AtomicInteger attempts = new AtomicInteger();
+
+    try {
+      retrier.execute(() -> {
+        attempts.incrementAndGet();
+        throw new RecoverableException("throttled") {
+          @Override
+          public boolean isRecoverable() {
+            return true;
+          }
+        };
+      });
+      fail("RetryBudgetExhaustedException expected");
+    } catch (RetryBudgetExhaustedException e) {
+      assertEquals("throttled", e.getCause().getMessage());
+      assertFalse(AmazonRetrier.isRetryable(e));
+    }
+    assertEquals(2, attempts.get());
+    // the failure the retry was denied for is still reported to the listeners after the budget one, e.g. the logging one
+    assertEquals(Arrays.asList("failure 0", "retry 1", "failure 1"), events);
+  }
+
+  @Test
+  public void last_failure_does_not_take_token() {
+    setInternalProperty(RetryBudget.BUDGET_ENABLED, "true");
+    setInternalProperty(RetryBudget.CAPACITY, "2");
+    setInternalProperty(RetryBudget.REFILL_PER_SEC, "0");
+    final RetryBudget budget = new RetryBudget();
+    final Retrier retrier = Retrier.withRetries(1, Retrier.DelayStrategy.linearBackOff(0))
+                                   .registerListener(new BackOffListener(1, 0, BackOff.Strategy.FULL_JITTER, budget));
+
+    try {
+      retrier.execute(() -> {
+        throw new IOException("connection reset");
+      });
+      fail("IOException expected");
+    } catch (Exception e) {
+      assertFalse(e instanceof RetryBudgetExhaustedException);
+    }
+    assertTrue(budget.tryAcquire());
+    assertFalse(budget.tryAcquire());
+  }
+
+  @Test
+  public void nested_execution_keeps_outer_state() {
+    final Retrier retrier = Retrier.withRetries(2, Retrier.DelayStrategy.linearBackOff(0))
+                                   .registerListener(new BackOffListener(2, 0, BackOff.Strategy.FULL_JITTER, new RetryBudget()));
+    final AtomicInteger outer = new AtomicInteger();
+    final AtomicInteger inner = new AtomicInteger();
+
+    final String result = retrier.execute(() -> {
+      final String nested = retrier.execute(() -> {
+        if (inner.incrementAndGet() % 2 == 1) {
+          throw new IOException("inner");
+        }
+        return "nested";
+      });
+      if (outer.incrementAndGet() < 3) {
+        throw new IOException("outer");
+      }
+      return nested;
+    });
+
+    assertEquals("nested", result);
+    assertEquals(3, outer.get());
+    assertEquals(6, inner.get());
+  }
+
+  @Test
+  public void retries_without_limits_and_linear_delays_by_default() {
+    final RetryBudget budget = new RetryBudget();
+    for (int i = 0; i < RetryBudget.DEFAULT_CAPACITY + 1; i++) {
+      assertTrue(budget.tryAcquire());
+    }
+    assertEquals(0, budget.getExhaustedCount());
+    assertEquals(BackOff.Strategy.LINEAR, BackOff.getStrategy());
+  }
+
+  @Test
+  public void jittered_delays_stay_within_bounds() {
+    for (int retry = 1; retry <= 40; retry++) {
+      final long fullJitter = BackOff.getDelayMs(BackOff.Strategy.FULL_JITTER, retry, 100, 0);
+      assertTrue(fullJitter >= 0 && fullJitter <= Math.min(BackOff.DEFAULT_MAX_DELAY_MS, 100L << Math.min(retry - 1, 30)));
+      final long decorrelated = BackOff.getDelayMs(BackOff.Strategy.DECORRELATED_JITTER, retry, 100, fullJitter);
+      assertTrue(decorrelated >= 100 && decorrelated <= BackOff.DEFAULT_MAX_DELAY_MS);
+    }
+    assertEquals(300, BackOff.getDelayMs(BackOff.Strategy.LINEAR, 3, 100, 0));
+    assertEquals(0, BackOff.getDelayMs(BackOff.Strategy.DECORRELATED_JITTER, 3, 0, 0));
+  }
+}
@@ -0,0 +1,71 @@
+package jetbrains.buildServer.util.amazon.retry;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+@Test
+public class RetryPolicyTest extends BaseTestCase {
+
+  @Test
+  public void rules_override_default_classification() {
+    final AmazonServiceException inUse = serviceException("AmazonEC2", "InvalidSnapshot.InUse", 400);
+    final AmazonServiceException exists = serviceException("AmazonIdentityManagement", "EntityAlreadyExists", 409);
+    final AmazonServiceException unavailable = serviceException("AmazonIdentityManagement", "ServiceUnavailable", 503);
+    assertFalse(AmazonRetrier.isRetryable(inUse));
+    assertTrue(AmazonRetrier.isRetryable(unavailable));
+
+    setInternalProperty(RetryPolicy.RULES, "AmazonEC2:InvalidSnapshot.InUse=retry:5000; AmazonIdentityManagement:503=abort\n*:EntityAlreadyExists=retry");
+    final RetryPolicy policy = new RetryPolicy();
+
+    assertEquals(RetryPolicy.Action.RETRY, policy.getAction(inUse));
+    assertEquals(5000, policy.getDelayMs(inUse, 100));
+    assertEquals(RetryPolicy.Action.RETRY, policy.getAction(exists));
+    assertEquals(100, policy.getDelayMs(exists, 100));
+    assertEquals(RetryPolicy.Action.ABORT, policy.getAction(unavailable));
+    assertNull(policy.getAction(serviceException("AmazonS3", "InvalidSnapshot.InUse", 400)));
+
+    assertTrue(AmazonRetrier.isRetryable(inUse));
+    assertFalse(AmazonRetrier.isRetryable(unavailable));
+  }
+
+  @Test
+  public void matches_error_code_before_class_and_status() {
+    setInternalProperty(RetryPolicy.RULES, "*:500=retry; AmazonS3:com.amazonaws.AmazonServiceException=abort; *:InternalError=retry:10");
+    final RetryPolicy policy = new RetryPolicy();
+
+    assertEquals(RetryPolicy.Action.RETRY, policy.getAction(serviceException("Amazon S3", "InternalError", 500)));
+    assertEquals(RetryPolicy.Action.ABORT, policy.getAction(serviceException("Amazon S3", "SomethingElse", 500)));
+    assertEquals(RetryPolicy.Action.RETRY, policy.getAction(serviceException("AmazonEC2", "SomethingElse", 500)));
+  }
+
+  @Test
+  public void matches_exception_class_of_causes() {
+    setInternalProperty(RetryPolicy.RULES, "*:java.net.SocketTimeoutException=abort; *:java.lang.IllegalStateException=retry");
+    final RetryPolicy policy = new RetryPolicy();
+
+    assertEquals(RetryPolicy.Action.ABORT, policy.getAction(new SdkClientException("Unable to execute HTTP request", new SocketTimeoutException("Read timed out"))));
+    assertEquals(RetryPolicy.Action.RETRY, policy.getAction(new IllegalStateException("busy")));
+    assertNull(policy.getAction(new IOException("connection reset")));
+  }
+
+  @Test
+  public void ignores_invalid_rules() {
+    final String rules = "Throttling=retry; *:Throttling=later; *:Throttling=retry:-1; *:SlowDown=retry:500";
+    setInternalProperty(RetryPolicy.RULES, rules);
+
+    assertEquals(1, RetryPolicy.parse(rules).size());
+    assertEquals(500, new RetryPolicy().getDelayMs(serviceException("Amazon S3", "SlowDown", 503), 100));
+  }
+
+  private static AmazonServiceException serviceException(final String service, final String errorCode, final int statusCode) {
+    final AmazonServiceException e = new AmazonServiceException(errorCode);
+    e.setServiceName(service);
+    e.setErrorCode(errorCode);
+    e.setStatusCode(statusCode);
+    return e;
+  }
+}
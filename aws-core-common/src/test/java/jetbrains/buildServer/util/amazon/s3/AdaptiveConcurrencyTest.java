@@ -0,0 +1,81 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+@Test
+public class AdaptiveConcurrencyTest extends BaseTestCase {
+
+  @Test
+  public void grows_after_first_round() {
+    final AdaptiveConcurrency concurrency = new AdaptiveConcurrency("test", 8);
+    assertEquals(AdaptiveConcurrency.INITIAL_LIMIT, concurrency.getLimit());
+
+    for (int i = 0; i < AdaptiveConcurrency.INITIAL_LIMIT; i++) {
+      concurrency.partCompleted(1024, 1000);
+    }
+
+    assertEquals(AdaptiveConcurrency.INITIAL_LIMIT + 1, concurrency.getLimit());
+  }
+
+  @Test
+  public void does_not_exceed_max_limit() {
+    final AdaptiveConcurrency concurrency = new AdaptiveConcurrency("test", 1);
+
+    concurrency.partCompleted(1024, 1000);
+
+    assertEquals(1, concurrency.getLimit());
+  }
+
+  @Test
+  public void halves_limit_on_throttling() {
+    final AdaptiveConcurrency concurrency = new AdaptiveConcurrency("test", 8);
+    for (int i = 0; i < 2 + 3; i++) {
+      concurrency.partCompleted(1024, 1000);
+    }
+    final int limit = concurrency.getLimit();
+
+    concurrency.throttled();
+    assertEquals(limit / 2, concurrency.getLimit());
+    concurrency.throttled();
+    concurrency.throttled();
+    concurrency.throttled();
+    assertEquals(1, concurrency.getLimit());
+  }
+
+  @Test
+  public void probes_higher_limit_after_plateau() {
+    final AdaptiveConcurrency concurrency = new AdaptiveConcurrency("test", 8, 0);
+    long now = completeRound(concurrency, 0, 100);
+    assertEquals(3, concurrency.getLimit());
+
+    now = completeRound(concurrency, now, 100);
+    assertEquals("the limit goes back to the best one", 2, concurrency.getLimit());
+
+    for (int i = 1; i < AdaptiveConcurrency.PROBE_INTERVAL_ROUNDS; i++) {
+      now = completeRound(concurrency, now, 100);
+      assertEquals(2, concurrency.getLimit());
+    }
+    now = completeRound(concurrency, now, 100);
+    assertEquals(3, concurrency.getLimit());
+
+    completeRound(concurrency, now, 200);
+    assertEquals(4, concurrency.getLimit());
+  }
+
+  /**
+   * Completes a round of parts which takes a second
+   *
+   * @return time the round ends at
+   */
+  private static long completeRound(@NotNull final AdaptiveConcurrency concurrency, final long startNanos, final long bytes) {
+    final long endNanos = startNanos + TimeUnit.SECONDS.toNanos(1);
+    final int parts = concurrency.getLimit();
+    for (int i = 0; i < parts; i++) {
+      concurrency.partCompleted(bytes / parts, 1000, endNanos);
+    }
+    return endNanos;
+  }
+}
@@ -0,0 +1,107 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class DirectBufferPoolTest extends BaseTestCase {
+  private static final int MB = 1024 * 1024;
+  private DirectBufferPool myPool;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    // dropped buffers stay counted until collected, a new pool isn't affected by the ones of other tests
+    myPool = new DirectBufferPool();
+  }
+
+  @Test
+  public void returns_nothing_when_direct_limit_is_reached() {
+    setInternalProperty(DirectBufferPool.MAX_ALLOCATED_MB, "2");
+    final ByteBuffer first = myPool.acquire(MB);
+    final ByteBuffer second = myPool.acquire(MB);
+
+    assertNotNull(first);
+    assertNotNull(second);
+    assertTrue(first.isDirect());
+    assertTrue(second.isDirect());
+    assertNull(myPool.acquire(MB));
+    assertEquals(2 * MB, myPool.getAllocatedBytes());
+
+    myPool.release(first);
+    assertEquals(2 * MB, myPool.getAllocatedBytes());
+    final ByteBuffer reused = myPool.acquire(MB);
+    assertSame(first, reused);
+
+    myPool.release(reused);
+    myPool.release(second);
+  }
+
+  @Test
+  public void reuses_smallest_fitting_buffer() {
+    final ByteBuffer large = myPool.acquire(4 * MB);
+    final ByteBuffer small = myPool.acquire(MB);
+    myPool.release(large);
+    myPool.release(small);
+
+    final ByteBuffer buffer = myPool.acquire(MB / 2);
+    assertSame(small, buffer);
+    assertEquals(MB / 2, buffer.limit());
+    final ByteBuffer other = myPool.acquire(2 * MB);
+    assertSame(large, other);
+
+    myPool.release(buffer);
+    myPool.release(other);
+  }
+
+  @Test
+  public void drops_idle_buffers_to_make_room_once_collected() throws Exception {
+    setInternalProperty(DirectBufferPool.MAX_ALLOCATED_MB, "2");
+    acquireAndRelease(MB, MB / 2);
+
+    assertNull(myPool.acquire(2 * MB));
+    awaitAllocatedBytes(0);
+
+    final ByteBuffer buffer = myPool.acquire(2 * MB);
+    assertNotNull(buffer);
+    assertEquals(2 * MB, myPool.getAllocatedBytes());
+    myPool.release(buffer);
+  }
+
+  @Test
+  public void counts_buffers_above_idle_limit_until_collected() throws Exception {
+    setInternalProperty(DirectBufferPool.MAX_POOLED_MB, "1");
+    acquireAndRelease(MB, MB);
+
+    assertEquals(2 * MB, myPool.getAllocatedBytes());
+    awaitAllocatedBytes(MB);
+
+    myPool.clear();
+    awaitAllocatedBytes(0);
+  }
+
+  /**
+   * Leaves no references to the buffers, so the dropped ones can be collected
+   */
+  private void acquireAndRelease(final int... sizes) {
+    final List<ByteBuffer> buffers = new ArrayList<>();
+    for (int size : sizes) {
+      buffers.add(myPool.acquire(size));
+    }
+    buffers.forEach(myPool::release);
+  }
+
+  private void awaitAllocatedBytes(final long expected) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10 * 1000;
+    while (myPool.getAllocatedBytes() != expected && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertEquals(expected, myPool.getAllocatedBytes());
+  }
+}
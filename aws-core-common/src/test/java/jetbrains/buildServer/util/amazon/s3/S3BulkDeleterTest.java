@@ -0,0 +1,170 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.configuration;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+@Test
+public class S3BulkDeleterTest extends BaseTestCase {
+  private ExecutorService myExecutor;
+  private AmazonS3 myS3Client;
+  private final Set<String> myDeleted = Collections.synchronizedSet(new HashSet<>());
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(2);
+    myS3Client = Mockito.mock(AmazonS3.class);
+    myDeleted.clear();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  @Test
+  public void deletes_all_pages_in_batches() throws Exception {
+    mockListing("a/", 2500);
+    mockListing("b/", 10);
+    when(myS3Client.deleteObjects(any())).thenAnswer(invocation -> {
+      final DeleteObjectsRequest request = invocation.getArgument(0);
+      assertTrue(request.getKeys().size() <= S3BulkDeleter.MAX_KEYS_PER_REQUEST);
+      assertTrue(request.getQuiet());
+      request.getKeys().forEach(key -> myDeleted.add(key.getKey()));
+      return new DeleteObjectsResult(Collections.emptyList());
+    });
+
+    final S3BulkDeleter.Result result = new S3BulkDeleter(myS3Client, myExecutor, configuration(2)).deletePrefixes("bucket", Arrays.asList("a/", "b/"));
+
+    assertTrue(result.isSuccessful());
+    assertEquals(2510, result.getDeletedCount());
+    assertEquals(2510, myDeleted.size());
+    Mockito.verify(myS3Client, Mockito.times(4)).deleteObjects(any());
+  }
+
+  @Test
+  public void collects_per_key_failures_and_retries_transient_ones() throws Exception {
+    mockListing("a/", 10);
+    final AtomicInteger attempts = new AtomicInteger();
+    when(myS3Client.deleteObjects(any())).thenAnswer(invocation -> {
+      final DeleteObjectsRequest request = invocation.getArgument(0);
+      final List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+      for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+        if (key.getKey().equals("a/0")) {
+          errors.add(error(key.getKey(), "AccessDenied"));
+        } else if (key.getKey().equals("a/1") && attempts.getAndIncrement() == 0) {
+          errors.add(error(key.getKey(), "SlowDown"));
+        } else {
+          myDeleted.add(key.getKey());
+        }
+      }
+      if (errors.isEmpty()) {
+        return new DeleteObjectsResult(Collections.emptyList());
+      }
+      throw new MultiObjectDeleteException(errors, Collections.emptyList());
+    });
+
+    final S3BulkDeleter.Result result = new S3BulkDeleter(myS3Client, myExecutor, configuration(2)).deletePrefixes("bucket", Collections.singletonList("a/"));
+
+    assertFalse(result.isSuccessful());
+    assertEquals(9, result.getDeletedCount());
+    assertEquals(1, result.getFailedCount());
+    assertEquals("a/0", result.getErrors().get(0).getKey());
+    assertEquals(Long.valueOf(1), result.getFailuresByCode().get("AccessDenied"));
+    assertTrue(myDeleted.contains("a/1"));
+    Mockito.verify(myS3Client, Mockito.times(2)).deleteObjects(any());
+  }
+
+  @Test
+  public void reports_transient_failures_left_after_retries() throws Exception {
+    mockListing("a/", 3);
+    when(myS3Client.deleteObjects(any())).thenAnswer(invocation -> {
+      final DeleteObjectsRequest request = invocation.getArgument(0);
+      final List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+      for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+        if (key.getKey().equals("a/2")) {
+          errors.add(error(key.getKey(), "SlowDown"));
+        } else {
+          myDeleted.add(key.getKey());
+        }
+      }
+      throw new MultiObjectDeleteException(errors, Collections.emptyList());
+    });
+
+    final S3BulkDeleter.Result result = new S3BulkDeleter(myS3Client, myExecutor, configuration(2)).deletePrefixes("bucket", Collections.singletonList("a/"));
+
+    assertEquals(2, result.getDeletedCount());
+    assertEquals(1, result.getFailedCount());
+    assertEquals("a/2", result.getErrors().get(0).getKey());
+    assertEquals(Long.valueOf(1), result.getFailuresByCode().get("SlowDown"));
+    Mockito.verify(myS3Client, Mockito.times(3)).deleteObjects(any());
+  }
+
+  @Test
+  public void reports_keys_of_failed_batch() throws Exception {
+    mockListing("a/", 1500);
+    when(myS3Client.deleteObjects(any())).thenAnswer(invocation -> {
+      final DeleteObjectsRequest request = invocation.getArgument(0);
+      if (request.getKeys().size() == S3BulkDeleter.MAX_KEYS_PER_REQUEST) {
+        final AmazonS3Exception exception = new AmazonS3Exception("Access Denied");
+        exception.setErrorCode("AccessDenied");
+        exception.setStatusCode(403);
+        throw exception;
+      }
+      return new DeleteObjectsResult(Collections.emptyList());
+    });
+
+    final S3BulkDeleter.Result result = new S3BulkDeleter(myS3Client, myExecutor, configuration(2)).deletePrefixes("bucket", Collections.singletonList("a/"));
+
+    assertEquals(500, result.getDeletedCount());
+    assertEquals(1000, result.getFailedCount());
+    assertEquals(S3BulkDeleter.MAX_REPORTED_ERRORS, result.getErrors().size());
+    assertEquals(Long.valueOf(1000), result.getFailuresByCode().get("AccessDenied"));
+  }
+
+  private void mockListing(@NotNull final String prefix, final int count) {
+    final List<ListObjectsV2Result> pages = new ArrayList<>();
+    for (int start = 0; start < count; start += S3BulkDeleter.MAX_KEYS_PER_REQUEST) {
+      final ListObjectsV2Result page = new ListObjectsV2Result();
+      for (int i = start; i < Math.min(count, start + S3BulkDeleter.MAX_KEYS_PER_REQUEST); i++) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(prefix + i);
+        page.getObjectSummaries().add(summary);
+      }
+      page.setTruncated(start + S3BulkDeleter.MAX_KEYS_PER_REQUEST < count);
+      page.setNextContinuationToken(page.isTruncated() ? prefix + (pages.size() + 1) : null);
+      pages.add(page);
+    }
+    when(myS3Client.listObjectsV2(Mockito.argThat((ListObjectsV2Request request) -> request != null && prefix.equals(request.getPrefix())))).thenAnswer(invocation -> {
+      final ListObjectsV2Request request = invocation.getArgument(0);
+      final String token = request.getContinuationToken();
+      return pages.get(token == null ? 0 : Integer.parseInt(token.substring(prefix.length())));
+    });
+  }
+
+  @NotNull
+  private static MultiObjectDeleteException.DeleteError error(@NotNull final String key, @NotNull final String code) {
+    final MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+    error.setKey(key);
+    error.setCode(code);
+    error.setMessage(code);
+    return error;
+  }
+}
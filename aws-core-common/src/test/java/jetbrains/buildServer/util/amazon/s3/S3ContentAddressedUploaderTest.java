@@ -0,0 +1,140 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.configuration;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+
+@Test
+public class S3ContentAddressedUploaderTest extends BaseTestCase {
+  private ExecutorService myExecutor;
+  private AmazonS3 myS3Client;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(2);
+    myS3Client = Mockito.mock(AmazonS3.class);
+    FileHashCache.getInstance().clear();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    FileHashCache.getInstance().clear();
+    super.tearDown();
+  }
+
+  @Test
+  public void uploads_only_missing_content_once() throws Exception {
+    final File first = file("toolchain");
+    final File copy = file("toolchain");
+    final File stored = file("layer");
+    final String storedKey = S3ContentAddressedUploader.getContentKey("cas/", sha256("layer"));
+    final AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+    notFound.setStatusCode(404);
+    when(myS3Client.getObjectMetadata(eq("bucket"), anyString())).thenThrow(notFound);
+    final ObjectMetadata storedMetadata = new ObjectMetadata();
+    storedMetadata.setContentLength(stored.length());
+    Mockito.doReturn(storedMetadata).when(myS3Client).getObjectMetadata("bucket", storedKey);
+    when(myS3Client.putObject(any(PutObjectRequest.class))).thenReturn(new PutObjectResult());
+    final Map<String, File> files = new LinkedHashMap<>();
+    files.put("bin/first", first);
+    files.put("bin/copy", copy);
+    files.put("layers/stored", stored);
+
+    final S3ContentAddressedUploader.Manifest manifest = new S3ContentAddressedUploader(myS3Client, myExecutor, configuration()).upload("bucket", "cas/", files);
+
+    final ArgumentCaptor<PutObjectRequest> put = ArgumentCaptor.forClass(PutObjectRequest.class);
+    Mockito.verify(myS3Client, times(1)).putObject(put.capture());
+    final String uploadedKey = S3ContentAddressedUploader.getContentKey("cas/", sha256("toolchain"));
+    assertEquals(uploadedKey, put.getValue().getKey());
+    assertEquals(sha256("toolchain"), put.getValue().getMetadata().getUserMetaDataOf(S3ContentAddressedUploader.SHA256_METADATA));
+    Mockito.verify(myS3Client, times(2)).getObjectMetadata(eq("bucket"), anyString());
+
+    assertEquals(3, manifest.getEntries().size());
+    assertEquals(uploadedKey, manifest.getEntry("bin/first").getKey());
+    assertEquals(uploadedKey, manifest.getEntry("bin/copy").getKey());
+    assertEquals(storedKey, manifest.getEntry("layers/stored").getKey());
+    assertFalse(manifest.getEntry("layers/stored").isUploaded());
+    assertEquals(first.length(), manifest.getUploadedBytes());
+    assertEquals(copy.length() + stored.length(), manifest.getReusedBytes());
+  }
+
+  @Test
+  public void uploads_missing_content_in_parallel() throws Exception {
+    final AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+    notFound.setStatusCode(404);
+    when(myS3Client.getObjectMetadata(eq("bucket"), anyString())).thenThrow(notFound);
+    // every upload waits for the other one, serial uploads would fail
+    final CountDownLatch started = new CountDownLatch(2);
+    when(myS3Client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+      started.countDown();
+      if (!started.await(10, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Uploads are not parallel");
+      }
+      return new PutObjectResult();
+    });
+    final Map<String, File> files = new LinkedHashMap<>();
+    files.put("first", file("first"));
+    files.put("second", file("second"));
+
+    final S3ContentAddressedUploader.Manifest manifest = new S3ContentAddressedUploader(myS3Client, myExecutor, configuration()).upload("bucket", "cas/", files);
+
+    Mockito.verify(myS3Client, times(2)).putObject(any(PutObjectRequest.class));
+    assertTrue(manifest.getEntry("first").isUploaded());
+    assertTrue(manifest.getEntry("second").isUploaded());
+  }
+
+  @Test
+  public void reuses_digest_of_unchanged_file() throws Exception {
+    final File file = file("first");
+    final long lastModified = file.lastModified();
+    assertEquals(sha256("first"), FileHashCache.getInstance().getSha256(file));
+
+    // same size and modification time, the file isn't read again
+    Files.write(file.toPath(), "other".getBytes(StandardCharsets.UTF_8));
+    assertTrue(file.setLastModified(lastModified));
+    assertEquals(sha256("first"), FileHashCache.getInstance().getSha256(file));
+
+    assertTrue(file.setLastModified(lastModified + 10000));
+    assertEquals(sha256("other"), FileHashCache.getInstance().getSha256(file));
+  }
+
+  @NotNull
+  private File file(@NotNull final String content) throws Exception {
+    final File file = createTempFile(content.length());
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  @NotNull
+  private static String sha256(@NotNull final String content) throws Exception {
+    return BinaryUtils.toHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+  }
+}
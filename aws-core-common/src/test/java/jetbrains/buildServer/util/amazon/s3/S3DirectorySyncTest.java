@@ -0,0 +1,207 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.configuration;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+
+@Test
+public class S3DirectorySyncTest extends BaseTestCase {
+  private ExecutorService myExecutor;
+  private AmazonS3 myS3Client;
+  private File myDirectory;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(2);
+    myS3Client = Mockito.mock(AmazonS3.class);
+    myDirectory = createTempDir();
+    when(myS3Client.putObject(any(PutObjectRequest.class))).thenReturn(new PutObjectResult());
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  @Test
+  public void uploads_only_new_and_changed_files() throws Exception {
+    final long past = System.currentTimeMillis() - 60000;
+    file("a.txt", "same", past);
+    file("b/c.txt", "changed size", past);
+    file("b/d.txt", "touched", System.currentTimeMillis());
+    file("b/e.txt", "rewritten", System.currentTimeMillis());
+    file("b-new.txt", "new", past);
+    final Date uploaded = new Date(past + 1000);
+    when(myS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(
+      summary("p/a.txt", "same", uploaded),
+      summary("p/b/c.txt", "old", uploaded),
+      summary("p/b/d.txt", "touched", uploaded),
+      summary("p/b/e.txt", "rEwritten", uploaded)));
+
+    final S3DirectorySync.Result result = new S3DirectorySync(myS3Client, myExecutor, configuration()).sync("bucket", "p/", myDirectory, false);
+
+    assertEquals(uploadedKeys(3), set("p/b/c.txt", "p/b/e.txt", "p/b-new.txt"));
+    assertEquals(3, result.getUploadedCount());
+    assertEquals(2, result.getUnchangedCount());
+    Mockito.verify(myS3Client, never()).deleteObjects(any(DeleteObjectsRequest.class));
+  }
+
+  @Test
+  public void deletes_orphans() throws Exception {
+    file("b/kept.txt", "kept", System.currentTimeMillis() - 60000);
+    final Date uploaded = new Date();
+    final ListObjectsV2Result first = listing(summary("p/a.txt", "orphan", uploaded), summary("p/b/kept.txt", "kept", uploaded));
+    first.setTruncated(true);
+    first.setNextContinuationToken("next");
+    when(myS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+      final ListObjectsV2Request request = invocation.getArgument(0);
+      return request.getContinuationToken() == null ? first : listing(summary("p/c/d.txt", "orphan", uploaded));
+    });
+    when(myS3Client.deleteObjects(any(DeleteObjectsRequest.class))).thenReturn(new DeleteObjectsResult(Collections.emptyList()));
+
+    final S3DirectorySync.Result result = new S3DirectorySync(myS3Client, myExecutor, configuration()).sync("bucket", "p/", myDirectory, true);
+
+    final ArgumentCaptor<DeleteObjectsRequest> delete = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+    Mockito.verify(myS3Client, times(1)).deleteObjects(delete.capture());
+    final Set<String> deleted = new HashSet<>();
+    for (DeleteObjectsRequest.KeyVersion key : delete.getValue().getKeys()) {
+      deleted.add(key.getKey());
+    }
+    assertEquals(deleted, set("p/a.txt", "p/c/d.txt"));
+    assertEquals(2, result.getDeletedCount());
+    assertEquals(0, result.getUploadedCount());
+    assertTrue(result.getFailedDeletions().isEmpty());
+  }
+
+  @Test
+  public void keeps_objects_of_sibling_prefixes() throws Exception {
+    final Date uploaded = new Date();
+    final List<S3ObjectSummary> objects = Arrays.asList(summary("builds/1/orphan.txt", "orphan", uploaded),
+                                                        summary("builds/10/a.txt", "sibling", uploaded),
+                                                        summary("builds/1x.txt", "sibling", uploaded));
+    when(myS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+      final ListObjectsV2Request request = invocation.getArgument(0);
+      final ListObjectsV2Result result = new ListObjectsV2Result();
+      for (S3ObjectSummary object : objects) {
+        if (object.getKey().startsWith(request.getPrefix())) {
+          result.getObjectSummaries().add(object);
+        }
+      }
+      return result;
+    });
+    when(myS3Client.deleteObjects(any(DeleteObjectsRequest.class))).thenReturn(new DeleteObjectsResult(Collections.emptyList()));
+    final S3DirectorySync sync = new S3DirectorySync(myS3Client, myExecutor, configuration());
+
+    try {
+      sync.sync("bucket", "builds/1", myDirectory, true);
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    Mockito.verify(myS3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
+
+    final S3DirectorySync.Result result = sync.sync("bucket", "builds/1/", myDirectory, true);
+
+    final ArgumentCaptor<DeleteObjectsRequest> delete = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+    Mockito.verify(myS3Client, times(1)).deleteObjects(delete.capture());
+    assertEquals(1, delete.getValue().getKeys().size());
+    assertEquals("builds/1/orphan.txt", delete.getValue().getKeys().get(0).getKey());
+    assertEquals(1, result.getDeletedCount());
+  }
+
+  @Test
+  public void merges_keys_in_utf8_order() throws Exception {
+    // U+FF21 goes before U+1F600 in UTF-8, but after its surrogate pair in UTF-16
+    final String fullwidth = "\uFF21.txt";
+    final String emoji = "\uD83D\uDE00.txt";
+    assertTrue(emoji.compareTo(fullwidth) < 0);
+    assertTrue(S3DirectorySync.compareKeys(fullwidth, emoji) < 0);
+    final long past = System.currentTimeMillis() - 60000;
+    file(fullwidth, "fullwidth", past);
+    file(emoji, "emoji", past);
+    final Date uploaded = new Date(past + 1000);
+    when(myS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(
+      summary("p/" + fullwidth, "fullwidth", uploaded),
+      summary("p/" + emoji, "emoji", uploaded)));
+
+    final S3DirectorySync.Result result = new S3DirectorySync(myS3Client, myExecutor, configuration()).sync("bucket", "p/", myDirectory, true);
+
+    assertEquals(2, result.getUnchangedCount());
+    assertEquals(0, result.getUploadedCount());
+    assertEquals(0, result.getDeletedCount());
+    Mockito.verify(myS3Client, never()).putObject(any(PutObjectRequest.class));
+    Mockito.verify(myS3Client, never()).deleteObjects(any(DeleteObjectsRequest.class));
+  }
+
+  @NotNull
+  private Set<String> uploadedKeys(final int count) {
+    final ArgumentCaptor<PutObjectRequest> put = ArgumentCaptor.forClass(PutObjectRequest.class);
+    Mockito.verify(myS3Client, times(count)).putObject(put.capture());
+    final Set<String> keys = new HashSet<>();
+    for (PutObjectRequest request : put.getAllValues()) {
+      keys.add(request.getKey());
+    }
+    return keys;
+  }
+
+  private void file(@NotNull final String path, @NotNull final String content, final long lastModified) throws Exception {
+    final File file = new File(myDirectory, path);
+    assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    assertTrue(file.setLastModified(lastModified));
+  }
+
+  @NotNull
+  private static S3ObjectSummary summary(@NotNull final String key, @NotNull final String content, @NotNull final Date lastModified) throws Exception {
+    final S3ObjectSummary summary = new S3ObjectSummary();
+    summary.setKey(key);
+    summary.setSize(content.length());
+    summary.setLastModified(lastModified);
+    summary.setETag(BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(content.getBytes(StandardCharsets.UTF_8))));
+    return summary;
+  }
+
+  @NotNull
+  private static ListObjectsV2Result listing(@NotNull final S3ObjectSummary... summaries) {
+    final ListObjectsV2Result result = new ListObjectsV2Result();
+    final List<S3ObjectSummary> objects = result.getObjectSummaries();
+    Collections.addAll(objects, summaries);
+    return result;
+  }
+
+  @NotNull
+  private static Set<String> set(@NotNull final String... values) {
+    final Set<String> result = new HashSet<>();
+    Collections.addAll(result, values);
+    return result;
+  }
+}
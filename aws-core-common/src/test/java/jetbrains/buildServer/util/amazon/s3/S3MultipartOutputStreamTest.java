@@ -0,0 +1,173 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.Base64;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.partResult;
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.stubUploadPart;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+@Test
+public class S3MultipartOutputStreamTest extends BaseTestCase {
+  private static final int PART_SIZE = 1024;
+  private ExecutorService myExecutor;
+  private AmazonS3 myS3Client;
+  private final Map<Integer, byte[]> myUploadedParts = new ConcurrentHashMap<>();
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(2);
+    myS3Client = Mockito.mock(AmazonS3.class);
+    final InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+    initiateResult.setUploadId("uploadId");
+    when(myS3Client.initiateMultipartUpload(any())).thenReturn(initiateResult);
+    when(myS3Client.completeMultipartUpload(any())).thenReturn(new CompleteMultipartUploadResult());
+    stubUploadPart(myS3Client, request -> {
+      myUploadedParts.put(request.getPartNumber(), readAll(request.getInputStream()));
+      return partResult(request.getPartNumber());
+    });
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    myUploadedParts.clear();
+    DirectBufferPool.getInstance().clear();
+    super.tearDown();
+  }
+
+  @Test
+  public void cuts_data_into_parts() throws Exception {
+    final byte[] content = new byte[2 * PART_SIZE + 100];
+    new Random(42).nextBytes(content);
+
+    try (S3MultipartOutputStream stream = new S3MultipartOutputStream(myS3Client, myExecutor, configuration(2), "bucket", "key", null)) {
+      stream.write(content, 0, 10);
+      stream.write(content[10]);
+      stream.write(content, 11, content.length - 11);
+    }
+
+    assertEquals(3, myUploadedParts.size());
+    assertTrue(Arrays.equals(Arrays.copyOfRange(content, 0, PART_SIZE), myUploadedParts.get(1)));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(content, 2 * PART_SIZE, content.length), myUploadedParts.get(3)));
+    final ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    Mockito.verify(myS3Client).completeMultipartUpload(complete.capture());
+    final List<PartETag> partETags = complete.getValue().getPartETags();
+    assertEquals(3, partETags.size());
+    assertEquals("etag3", partETags.get(2).getETag());
+  }
+
+  @Test
+  public void uploads_small_data_with_single_request() throws Exception {
+    when(myS3Client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+      final PutObjectRequest request = invocation.getArgument(0);
+      assertEquals(3, readAll(request.getInputStream()).length);
+      return new PutObjectResult();
+    });
+
+    try (S3MultipartOutputStream stream = new S3MultipartOutputStream(myS3Client, myExecutor, configuration(2), "bucket", "key", null)) {
+      stream.write(new byte[]{1, 2, 3});
+    }
+
+    Mockito.verify(myS3Client).putObject(any(PutObjectRequest.class));
+    Mockito.verify(myS3Client, Mockito.never()).initiateMultipartUpload(any());
+  }
+
+  @Test
+  public void sends_content_md5_of_every_part() throws Exception {
+    final byte[] content = new byte[PART_SIZE + 100];
+    new Random(42).nextBytes(content);
+    final Map<Integer, String> digests = new ConcurrentHashMap<>();
+    stubUploadPart(myS3Client, request -> {
+      digests.put(request.getPartNumber(), request.getMd5Digest());
+      myUploadedParts.put(request.getPartNumber(), readAll(request.getInputStream()));
+      return partResult(request.getPartNumber());
+    });
+
+    try (S3MultipartOutputStream stream = new S3MultipartOutputStream(myS3Client, myExecutor, configuration(2), "bucket", "key", null)) {
+      stream.write(content);
+    }
+
+    assertEquals(2, digests.size());
+    for (Map.Entry<Integer, String> digest : digests.entrySet()) {
+      assertEquals(Base64.encodeAsString(MessageDigest.getInstance("MD5").digest(myUploadedParts.get(digest.getKey()))), digest.getValue());
+    }
+  }
+
+  @Test
+  public void blocks_producer_when_all_buffers_are_in_flight() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    stubUploadPart(myS3Client, request -> {
+      release.await();
+      return new UploadPartResult();
+    });
+    final S3MultipartOutputStream stream = new S3MultipartOutputStream(myS3Client, myExecutor, configuration(1), "bucket", "key", null);
+
+    // one buffer is in flight and one is being filled
+    stream.write(new byte[2 * PART_SIZE - 1]);
+    final Future<?> write = Executors.newSingleThreadExecutor().submit(() -> {
+      stream.write(new byte[PART_SIZE + 1]);
+      return null;
+    });
+    try {
+      write.get(300, TimeUnit.MILLISECONDS);
+      fail("Write should wait for a free buffer");
+    } catch (TimeoutException expected) {
+    }
+
+    release.countDown();
+    write.get(10, TimeUnit.SECONDS);
+    stream.close();
+  }
+
+  @Test
+  public void aborts_upload() throws Exception {
+    final S3MultipartOutputStream stream = new S3MultipartOutputStream(myS3Client, myExecutor, configuration(2), "bucket", "key", null);
+    stream.write(new byte[PART_SIZE + 1]);
+
+    stream.abort();
+
+    Mockito.verify(myS3Client).abortMultipartUpload(any());
+    Mockito.verify(myS3Client, Mockito.never()).completeMultipartUpload(any());
+    try {
+      stream.write(1);
+      fail("Aborted stream should not accept data");
+    } catch (IOException expected) {
+    }
+  }
+
+  private static S3Util.S3AdvancedConfiguration configuration(final int nThreads) {
+    return S3TestUtil.configuration(nThreads).withMinimumUploadPartSize((long)PART_SIZE);
+  }
+
+  private static byte[] readAll(final InputStream input) throws IOException {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[256];
+    int read;
+    while ((read = input.read(buffer)) >= 0) {
+      result.write(buffer, 0, read);
+    }
+    return result.toByteArray();
+  }
+}
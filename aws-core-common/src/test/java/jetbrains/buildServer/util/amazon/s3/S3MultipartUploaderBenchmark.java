@@ -0,0 +1,172 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.util.BinaryUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.TestNGUtil;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Compares heap allocations and throughput of uploads with parts read by the SDK from the file and from direct buffers.
+ * <p>
+ * Uploads go through a real client to a local HTTP server which only consumes the content.
+ * Run with {@code -Damazon.s3.benchmark=true}, the file size in megabytes can be set with {@code -Damazon.s3.benchmark.fileSizeMb}.
+ */
+@Test
+public class S3MultipartUploaderBenchmark extends BaseTestCase {
+  private static final int MB = 1024 * 1024;
+  private static final int PART_SIZE = 8 * MB;
+  private static final int THREADS = 4;
+  private static final int ITERATIONS = 5;
+
+  private HttpServer myServer;
+  private ExecutorService myServerExecutor;
+  private ExecutorService myExecutor;
+  private final List<Thread> myUploadThreads = new CopyOnWriteArrayList<>();
+  private AmazonS3 myS3Client;
+  private File myFile;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    if (!Boolean.getBoolean("amazon.s3.benchmark")) {
+      TestNGUtil.skip("Benchmark is disabled");
+    }
+    myServerExecutor = Executors.newFixedThreadPool(THREADS * 2);
+    myServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    myServer.createContext("/", this::handle);
+    myServer.setExecutor(myServerExecutor);
+    myServer.start();
+
+    myExecutor = Executors.newFixedThreadPool(THREADS, r -> {
+      final Thread thread = new Thread(r, "benchmark-upload");
+      myUploadThreads.add(thread);
+      return thread;
+    });
+    myS3Client = AmazonS3ClientBuilder.standard()
+                                      .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration("http://127.0.0.1:" + myServer.getAddress().getPort(), "us-east-1"))
+                                      .withPathStyleAccessEnabled(true)
+                                      .withChunkedEncodingDisabled(true)
+                                      .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("accessKey", "secretKey")))
+                                      .build();
+    myFile = createTempFile(Integer.getInteger("amazon.s3.benchmark.fileSizeMb", 512) * MB);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    if (myS3Client != null) {
+      myS3Client.shutdown();
+    }
+    if (myExecutor != null) {
+      myExecutor.shutdownNow();
+    }
+    if (myServer != null) {
+      myServer.stop(0);
+      myServerExecutor.shutdownNow();
+    }
+    DirectBufferPool.getInstance().clear();
+    super.tearDown();
+  }
+
+  @Test
+  public void compare_part_sources() throws Exception {
+    // warm up both paths before measuring
+    upload(false);
+    upload(true);
+    for (int i = 0; i < ITERATIONS; i++) {
+      report("file", upload(false));
+      report("direct buffers", upload(true));
+    }
+  }
+
+  @NotNull
+  private long[] upload(final boolean directBuffers) throws InterruptedException {
+    final S3Util.S3AdvancedConfiguration configuration = S3Util.S3AdvancedConfiguration.defaultConfiguration()
+                                                                                       .withNumberOfThreads(THREADS)
+                                                                                       .withMinimumUploadPartSize((long)PART_SIZE)
+                                                                                       .withDirectBufferUpload(directBuffers);
+    final long allocatedBefore = getAllocatedBytes();
+    final long start = System.nanoTime();
+    new S3MultipartUploader(myS3Client, myExecutor, configuration).upload("bucket", "key", myFile, null);
+    return new long[]{System.nanoTime() - start, getAllocatedBytes() - allocatedBefore};
+  }
+
+  private void report(@NotNull final String name, @NotNull final long[] result) {
+    final double seconds = result[0] / 1e9;
+    System.out.println(String.format("%-15s %8.1f MB/s %10.1f MB allocated (%.1f MB/s)",
+                                     name, myFile.length() / seconds / MB, result[1] / (double)MB, result[1] / seconds / MB));
+  }
+
+  /**
+   * @return bytes allocated by the uploading threads
+   */
+  private long getAllocatedBytes() {
+    final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long result = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    for (Thread thread : myUploadThreads) {
+      final long allocated = bean.getThreadAllocatedBytes(thread.getId());
+      if (allocated > 0) {
+        result += allocated;
+      }
+    }
+    return result;
+  }
+
+  private void handle(@NotNull final HttpExchange exchange) throws IOException {
+    final String query = exchange.getRequestURI().getQuery();
+    final MessageDigest md5 = md5();
+    final byte[] buffer = new byte[64 * 1024];
+    try (InputStream input = exchange.getRequestBody()) {
+      int read;
+      while ((read = input.read(buffer)) >= 0) {
+        md5.update(buffer, 0, read);
+      }
+    }
+    byte[] response = new byte[0];
+    if ("uploads".equals(query) || (query != null && query.startsWith("uploads="))) {
+      response = ("<InitiateMultipartUploadResult><Bucket>bucket</Bucket><Key>key</Key><UploadId>upload</UploadId></InitiateMultipartUploadResult>")
+        .getBytes(StandardCharsets.UTF_8);
+    } else if (query != null && query.startsWith("uploadId=")) {
+      response = "<CompleteMultipartUploadResult><Bucket>bucket</Bucket><Key>key</Key><ETag>\"etag\"</ETag></CompleteMultipartUploadResult>"
+        .getBytes(StandardCharsets.UTF_8);
+    }
+    exchange.getResponseHeaders().add("ETag", "\"" + BinaryUtils.toHex(md5.digest()) + "\"");
+    exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(response);
+    }
+  }
+
+  @NotNull
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,321 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.amazonaws.util.Base64;
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.configuration;
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.partResult;
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.stubUploadPart;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+
+@Test
+public class S3MultipartUploaderTest extends BaseTestCase {
+  private static final int FIVE_MB = 5 * 1024 * 1024;
+  private ExecutorService myExecutor;
+  private AmazonS3 myS3Client;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(2);
+    myS3Client = Mockito.mock(AmazonS3.class);
+    when(myS3Client.initiateMultipartUpload(any())).thenReturn(initiateResult("uploadId"));
+    when(myS3Client.completeMultipartUpload(any())).thenReturn(new CompleteMultipartUploadResult());
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  @Test
+  public void retries_only_failed_part() throws Exception {
+    final File file = createTempFile(2 * FIVE_MB + 1024);
+    final AtomicInteger secondPartAttempts = new AtomicInteger();
+    stubUploadPart(myS3Client, request -> {
+      if (request.getPartNumber() == 2 && secondPartAttempts.getAndIncrement() == 0) {
+        final AmazonS3Exception exception = new AmazonS3Exception("Please reduce your request rate.");
+        exception.setStatusCode(503);
+        throw exception;
+      }
+      final UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("etag" + request.getPartNumber());
+      return result;
+    });
+
+    final UploadResult result = new S3MultipartUploader(myS3Client, myExecutor, configuration()).upload("bucket", "key", file, null);
+
+    assertEquals("key", result.getKey());
+    assertEquals(2, secondPartAttempts.get());
+    Mockito.verify(myS3Client, times(1)).initiateMultipartUpload(any());
+    Mockito.verify(myS3Client, times(4)).uploadPart(any());
+    final ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    Mockito.verify(myS3Client).completeMultipartUpload(complete.capture());
+    final List<PartETag> partETags = complete.getValue().getPartETags();
+    assertEquals(3, partETags.size());
+    assertEquals("etag2", partETags.get(1).getETag());
+  }
+
+  @Test
+  public void aborts_upload_when_part_fails_permanently() throws Exception {
+    final File file = createTempFile(2 * FIVE_MB);
+    when(myS3Client.uploadPart(any())).thenThrow(new AmazonS3Exception("Access Denied"));
+
+    try {
+      new S3MultipartUploader(myS3Client, myExecutor, configuration()).upload("bucket", "key", file, null);
+      fail("Upload should fail");
+    } catch (RuntimeException expected) {
+    }
+
+    Mockito.verify(myS3Client).abortMultipartUpload(any());
+    Mockito.verify(myS3Client, Mockito.never()).completeMultipartUpload(any());
+  }
+
+  @Test
+  public void resumes_interrupted_upload_from_checkpoint() throws Exception {
+    final File file = createTempFile(3 * FIVE_MB);
+    final S3Util.S3AdvancedConfiguration configuration = configuration().withCheckpointDirectory(createTempDir());
+    stubUploadPart(myS3Client, request -> {
+      if (request.getPartNumber() == 3) {
+        throw new AmazonS3Exception("Access Denied");
+      }
+      return partResult(request.getPartNumber());
+    });
+
+    try {
+      new S3MultipartUploader(myS3Client, myExecutor, configuration).upload("bucket", "key", file, null);
+      fail("Upload should fail");
+    } catch (RuntimeException expected) {
+    }
+    Mockito.verify(myS3Client, Mockito.never()).abortMultipartUpload(any());
+
+    final PartListing listing = new PartListing();
+    listing.setParts(Arrays.asList(partSummary(1), partSummary(2)));
+    when(myS3Client.listParts(any())).thenReturn(listing);
+    // when() would call the previous answer with a null request
+    stubUploadPart(myS3Client, request -> partResult(request.getPartNumber()));
+
+    new S3MultipartUploader(myS3Client, myExecutor, configuration).upload("bucket", "key", file, null);
+
+    Mockito.verify(myS3Client, times(1)).initiateMultipartUpload(any());
+    final ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+    Mockito.verify(myS3Client, times(4)).uploadPart(parts.capture());
+    assertEquals(3, parts.getAllValues().get(3).getPartNumber());
+    final ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    Mockito.verify(myS3Client).completeMultipartUpload(complete.capture());
+    assertEquals("uploadId", complete.getValue().getUploadId());
+    assertEquals(3, complete.getValue().getPartETags().size());
+    assertEquals(0, configuration.getCheckpointDirectory().list().length);
+  }
+
+  @Test
+  public void starts_over_when_checkpointed_upload_is_gone() throws Exception {
+    final File file = createTempFile(3 * FIVE_MB);
+    final S3Util.S3AdvancedConfiguration configuration = configuration().withCheckpointDirectory(createTempDir());
+    stubUploadPart(myS3Client, request -> {
+      if (request.getPartNumber() == 3) {
+        throw new AmazonS3Exception("Access Denied");
+      }
+      return partResult(request.getPartNumber());
+    });
+
+    try {
+      new S3MultipartUploader(myS3Client, myExecutor, configuration).upload("bucket", "key", file, null);
+      fail("Upload should fail");
+    } catch (RuntimeException expected) {
+    }
+
+    final AmazonS3Exception noSuchUpload = new AmazonS3Exception("The specified upload does not exist.");
+    noSuchUpload.setErrorCode("NoSuchUpload");
+    noSuchUpload.setStatusCode(404);
+    when(myS3Client.listParts(any())).thenThrow(noSuchUpload);
+    when(myS3Client.initiateMultipartUpload(any())).thenReturn(initiateResult("uploadId2"));
+    // when() would call the previous answer with a null request
+    stubUploadPart(myS3Client, request -> partResult(request.getPartNumber()));
+
+    new S3MultipartUploader(myS3Client, myExecutor, configuration).upload("bucket", "key", file, null);
+
+    Mockito.verify(myS3Client, times(1)).listParts(any());
+    Mockito.verify(myS3Client, times(2)).initiateMultipartUpload(any());
+    Mockito.verify(myS3Client, times(6)).uploadPart(any());
+    final ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    Mockito.verify(myS3Client).completeMultipartUpload(complete.capture());
+    assertEquals("uploadId2", complete.getValue().getUploadId());
+    assertEquals(3, complete.getValue().getPartETags().size());
+    assertEquals(0, configuration.getCheckpointDirectory().list().length);
+  }
+
+  @Test
+  public void uploads_parts_from_direct_buffers() throws Exception {
+    uploadFromBuffers();
+  }
+
+  @Test
+  public void maps_parts_when_direct_buffer_pool_is_full() throws Exception {
+    setInternalProperty(DirectBufferPool.MAX_ALLOCATED_MB, "0");
+    DirectBufferPool.getInstance().clear();
+    uploadFromBuffers();
+  }
+
+  private void uploadFromBuffers() throws Exception {
+    final byte[] content = new byte[2 * FIVE_MB + 1024];
+    new Random(42).nextBytes(content);
+    final File file = createTempFile(content.length);
+    Files.write(file.toPath(), content);
+    final AtomicInteger firstPartAttempts = new AtomicInteger();
+    stubUploadPart(myS3Client, request -> {
+      assertNull(request.getFile());
+      final byte[] part = new byte[(int)request.getPartSize()];
+      final DataInputStream input = new DataInputStream(request.getInputStream());
+      input.readFully(part);
+      assertEquals(-1, input.read());
+      final int offset = (request.getPartNumber() - 1) * FIVE_MB;
+      assertTrue(Arrays.equals(Arrays.copyOfRange(content, offset, offset + part.length), part));
+      if (request.getPartNumber() == 1 && firstPartAttempts.getAndIncrement() == 0) {
+        final AmazonS3Exception exception = new AmazonS3Exception("Service Unavailable");
+        exception.setStatusCode(503);
+        throw exception;
+      }
+      return partResult(request.getPartNumber());
+    });
+
+    new S3MultipartUploader(myS3Client, myExecutor, configuration().withDirectBufferUpload(true)).upload("bucket", "key", file, null);
+
+    assertEquals(2, firstPartAttempts.get());
+    Mockito.verify(myS3Client, times(4)).uploadPart(any());
+    Mockito.verify(myS3Client).completeMultipartUpload(any());
+  }
+
+  @Test
+  public void resends_only_part_with_content_mismatch() throws Exception {
+    final byte[] content = new byte[2 * FIVE_MB + 1024];
+    new Random(42).nextBytes(content);
+    final File file = createTempFile(content.length);
+    Files.write(file.toPath(), content);
+    final AtomicInteger secondPartAttempts = new AtomicInteger();
+    stubUploadPart(myS3Client, request -> {
+      final int offset = (request.getPartNumber() - 1) * FIVE_MB;
+      final byte[] part = Arrays.copyOfRange(content, offset, (int)Math.min(content.length, offset + request.getPartSize()));
+      assertEquals(Base64.encodeAsString(MessageDigest.getInstance("MD5").digest(part)), request.getMd5Digest());
+      if (request.getPartNumber() == 2 && secondPartAttempts.getAndIncrement() == 0) {
+        final AmazonS3Exception exception = new AmazonS3Exception("The Content-MD5 you specified did not match what we received.");
+        exception.setErrorCode("BadDigest");
+        exception.setStatusCode(400);
+        throw exception;
+      }
+      return partResult(request.getPartNumber());
+    });
+
+    new S3MultipartUploader(myS3Client, myExecutor, configuration().withDirectBufferUpload(true)).upload("bucket", "key", file, null);
+
+    assertEquals(2, secondPartAttempts.get());
+    Mockito.verify(myS3Client, times(4)).uploadPart(any());
+    Mockito.verify(myS3Client).completeMultipartUpload(any());
+  }
+
+  @Test
+  public void resends_part_when_sdk_reports_checksum_mismatch() throws Exception {
+    final File file = createTempFile(2 * FIVE_MB);
+    final AtomicInteger firstPartAttempts = new AtomicInteger();
+    stubUploadPart(myS3Client, request -> {
+      // parts read by the SDK from the file are hashed by the SDK itself
+      assertNull(request.getMd5Digest());
+      if (request.getPartNumber() == 1 && firstPartAttempts.getAndIncrement() == 0) {
+        throw new SdkClientException("Unable to verify integrity of data upload. Client calculated content hash didn't match hash calculated by Amazon S3.");
+      }
+      return partResult(request.getPartNumber());
+    });
+
+    new S3MultipartUploader(myS3Client, myExecutor, configuration()).upload("bucket", "key", file, null);
+
+    assertEquals(2, firstPartAttempts.get());
+    Mockito.verify(myS3Client, times(3)).uploadPart(any());
+  }
+
+  @Test
+  public void keeps_parts_in_flight_within_number_of_threads() throws Exception {
+    final File file = createTempFile(4 * FIVE_MB);
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    stubUploadPart(myS3Client, request -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      Thread.sleep(100);
+      inFlight.decrementAndGet();
+      return partResult(request.getPartNumber());
+    });
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      new S3MultipartUploader(myS3Client, executor, configuration().withNumberOfThreads(2)).upload("bucket", "key", file, null);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(2, maxInFlight.get());
+    Mockito.verify(myS3Client, times(4)).uploadPart(any());
+  }
+
+  @Test
+  public void keeps_number_of_parts_within_limit() {
+    final S3MultipartUploader uploader = new S3MultipartUploader(myS3Client, myExecutor, configuration());
+
+    assertEquals(FIVE_MB, uploader.getPartSize(FIVE_MB * 3L));
+    final long huge = 100L * 1024 * 1024 * 1024;
+    assertTrue(huge / uploader.getPartSize(huge) <= S3MultipartUploader.MAX_PARTS);
+  }
+
+  @Test
+  public void adapts_part_size_to_file_size() {
+    final S3MultipartUploader uploader = new S3MultipartUploader(myS3Client, myExecutor, configuration().withAdaptiveTuning(true));
+
+    final long sixMb = 6L * 1024 * 1024;
+    assertEquals(FIVE_MB, uploader.getPartSize(sixMb));
+    assertTrue(sixMb < uploader.getMultipartUploadThreshold(sixMb));
+
+    final long twentyGb = 20L * 1024 * 1024 * 1024;
+    final long partSize = uploader.getPartSize(twentyGb);
+    assertEquals(0, partSize % (1024 * 1024));
+    assertTrue(partSize > FIVE_MB);
+    assertTrue(twentyGb / partSize <= 1000);
+    assertTrue(twentyGb >= uploader.getMultipartUploadThreshold(twentyGb));
+  }
+
+  private static PartSummary partSummary(final int partNumber) {
+    final PartSummary summary = new PartSummary();
+    summary.setPartNumber(partNumber);
+    summary.setETag("etag" + partNumber);
+    summary.setSize(FIVE_MB);
+    return summary;
+  }
+
+  private static InitiateMultipartUploadResult initiateResult(final String uploadId) {
+    final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+    result.setUploadId(uploadId);
+    return result;
+  }
+}
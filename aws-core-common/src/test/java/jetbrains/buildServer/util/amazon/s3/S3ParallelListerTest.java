@@ -0,0 +1,139 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.configuration;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+@Test
+public class S3ParallelListerTest extends BaseTestCase {
+  private static final int PAGE_SIZE = 3;
+  private ExecutorService myExecutor;
+  private AmazonS3 myS3Client;
+  private final TreeSet<String> myKeys = new TreeSet<>();
+  private final List<ListObjectsV2Request> myRequests = Collections.synchronizedList(new ArrayList<>());
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(4);
+    myS3Client = Mockito.mock(AmazonS3.class);
+    myKeys.clear();
+    myRequests.clear();
+    when(myS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> list(invocation.getArgument(0)));
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  @Test
+  public void lists_every_object_once() throws Exception {
+    myKeys.add("root/top");
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 4; j++) {
+        for (int k = 0; k < 7; k++) {
+          myKeys.add("root/" + i + "/" + j + "/" + k);
+        }
+      }
+    }
+    myKeys.add("other/key");
+    final List<String> listed = new ArrayList<>();
+    final Thread caller = Thread.currentThread();
+
+    final long count = new S3ParallelLister(myS3Client, myExecutor, configuration(4)).list("bucket", "root/", summary -> {
+      assertSame(caller, Thread.currentThread());
+      listed.add(summary.getKey());
+    });
+
+    assertEquals(141, count);
+    assertEquals(141, listed.size());
+    assertEquals(myKeys.subSet("root/", "root0"), new TreeSet<>(listed));
+    // 5 sub-prefixes are enough for 4 threads, so they are listed without a delimiter
+    assertEquals(5, myRequests.stream().filter(r -> r.getDelimiter() == null && r.getContinuationToken() == null).count());
+  }
+
+  @Test
+  public void lists_flat_prefix() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      myKeys.add("flat/" + i);
+    }
+    final List<String> listed = new ArrayList<>();
+
+    final long count = new S3ParallelLister(myS3Client, myExecutor, configuration(4)).list("bucket", "flat/", summary -> listed.add(summary.getKey()));
+
+    assertEquals(10, count);
+    assertEquals(new ArrayList<>(myKeys), listed);
+  }
+
+  @Test
+  public void stops_when_consumer_fails() throws Exception {
+    for (int i = 0; i < 8; i++) {
+      for (int j = 0; j < 100; j++) {
+        myKeys.add(i + "/" + j);
+      }
+    }
+    final List<String> listed = new ArrayList<>();
+    try {
+      new S3ParallelLister(myS3Client, myExecutor, configuration(4)).list("bucket", "", summary -> {
+        listed.add(summary.getKey());
+        if (listed.size() == 10) {
+          throw new IOException("Stop");
+        }
+      });
+      fail("Listing should fail");
+    } catch (IOException expected) {
+    }
+    assertEquals(10, listed.size());
+  }
+
+  @NotNull
+  private ListObjectsV2Result list(@NotNull final ListObjectsV2Request request) {
+    myRequests.add(request);
+    final String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+    final String delimiter = request.getDelimiter();
+    final int start = request.getContinuationToken() == null ? 0 : Integer.parseInt(request.getContinuationToken());
+    final List<Object> entries = new ArrayList<>();
+    for (String key : myKeys.tailSet(prefix)) {
+      if (!key.startsWith(prefix)) break;
+      final int index = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+      final String entry = index < 0 ? key : key.substring(0, index + delimiter.length());
+      if (index < 0) {
+        entries.add(key);
+      } else if (!entries.contains(Collections.singletonList(entry))) {
+        entries.add(Collections.singletonList(entry));
+      }
+    }
+    final ListObjectsV2Result result = new ListObjectsV2Result();
+    final List<String> commonPrefixes = new ArrayList<>();
+    for (Object entry : entries.subList(start, Math.min(entries.size(), start + PAGE_SIZE))) {
+      if (entry instanceof String) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey((String)entry);
+        result.getObjectSummaries().add(summary);
+      } else {
+        commonPrefixes.add(((List<?>)entry).get(0).toString());
+      }
+    }
+    result.setCommonPrefixes(commonPrefixes);
+    result.setTruncated(start + PAGE_SIZE < entries.size());
+    result.setNextContinuationToken(result.isTruncated() ? String.valueOf(start + PAGE_SIZE) : null);
+    return result;
+  }
+}
@@ -0,0 +1,76 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import java.util.Arrays;
+import java.util.List;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.testng.annotations.Test;
+
+@Test
+public class S3PresignedUploadUrlsTest extends BaseTestCase {
+
+  @Test
+  public void signs_part_urls() {
+    final S3PresignedUploadUrls urls = new S3PresignedUploadUrls(client(), S3Util.S3AdvancedConfiguration.defaultConfiguration());
+
+    final List<S3PresignedUploadUrls.PresignedPartUrl> partUrls = urls.getPartUrls("bucket", "key", "upload", Arrays.asList(1, 2));
+
+    assertEquals(2, partUrls.size());
+    assertEquals(2, partUrls.get(1).getPartNumber());
+    final String query = partUrls.get(1).getUrl().getQuery();
+    assertContains(query, "uploadId=upload");
+    assertContains(query, "partNumber=2");
+    assertContains(query, "X-Amz-Signature=");
+  }
+
+  @Test
+  public void reuses_cached_urls() {
+    final S3PresignedUploadUrls urls = new S3PresignedUploadUrls(client(), S3Util.S3AdvancedConfiguration.defaultConfiguration());
+
+    final S3PresignedUploadUrls.PresignedPartUrl first = urls.getPartUrls("bucket", "key", "upload", Arrays.asList(1, 2)).get(0);
+    final S3PresignedUploadUrls.PresignedPartUrl second = urls.getPartUrls("bucket", "key", "upload", Arrays.asList(1, 3)).get(0);
+    final S3PresignedUploadUrls.PresignedPartUrl otherUpload = urls.getPartUrls("bucket", "key", "otherUpload", Arrays.asList(1)).get(0);
+
+    assertSame(first, second);
+    assertNotSame(first, otherUpload);
+  }
+
+  @Test
+  public void signs_again_urls_close_to_expiration() {
+    final S3PresignedUploadUrls urls = new S3PresignedUploadUrls(client(), S3Util.S3AdvancedConfiguration.defaultConfiguration().withUrlTtlSeconds(0));
+
+    final S3PresignedUploadUrls.PresignedPartUrl first = urls.getPartUrls("bucket", "key", "upload", Arrays.asList(1)).get(0);
+    final S3PresignedUploadUrls.PresignedPartUrl second = urls.getPartUrls("bucket", "key", "upload", Arrays.asList(1)).get(0);
+
+    assertNotSame(first, second);
+  }
+
+  @Test
+  public void drops_expired_urls_of_abandoned_uploads() throws Exception {
+    final S3PresignedUploadUrls urls = new S3PresignedUploadUrls(client(), S3Util.S3AdvancedConfiguration.defaultConfiguration().withUrlTtlSeconds(0));
+
+    urls.getPartUrls("bucket", "key", "abandoned", Arrays.asList(1, 2));
+    Thread.sleep(10);
+    urls.getPartUrls("bucket", "key", "upload", Arrays.asList(1));
+
+    assertEquals(1, urls.getCachedUrlsCount());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void limits_batch_size() {
+    final S3PresignedUploadUrls urls = new S3PresignedUploadUrls(client(), S3Util.S3AdvancedConfiguration.defaultConfiguration().withPresignedUrlsChunkSize(2));
+
+    urls.getPartUrls("bucket", "key", "upload", Arrays.asList(1, 2, 3));
+  }
+
+  private static AmazonS3 client() {
+    return AmazonS3ClientBuilder.standard()
+                                .withRegion("us-east-1")
+                                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("accessKey", "secretKey")))
+                                .build();
+  }
+}
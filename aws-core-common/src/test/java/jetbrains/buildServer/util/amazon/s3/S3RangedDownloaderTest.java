@@ -0,0 +1,169 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.util.amazon.s3.S3TestUtil.configuration;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+
+@Test
+public class S3RangedDownloaderTest extends BaseTestCase {
+  private static final int FIVE_MB = 5 * 1024 * 1024;
+  private ExecutorService myExecutor;
+  private AmazonS3 myS3Client;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(2);
+    myS3Client = Mockito.mock(AmazonS3.class);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  @Test
+  public void downloads_ranges_at_their_offsets() throws Exception {
+    final byte[] content = content(2 * FIVE_MB + 1024);
+    final String eTag = BinaryUtils.toHex(md5(content));
+    when(myS3Client.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenReturn(metadata(content.length, eTag, null));
+    when(myS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+      final GetObjectRequest request = invocation.getArgument(0);
+      final long[] range = request.getRange();
+      return object(content, (int)range[0], (int)range[1], content.length);
+    });
+    final File target = new File(createTempDir(), "target");
+
+    new S3RangedDownloader(myS3Client, myExecutor, configuration().withMinimumUploadPartSize((long)FIVE_MB)).download("bucket", "key", target);
+
+    assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+    Mockito.verify(myS3Client, times(3)).getObject(any(GetObjectRequest.class));
+    assertFalse(new File(target.getParentFile(), "target.download").exists());
+  }
+
+  @Test
+  public void retries_only_failed_range_of_multipart_object() throws Exception {
+    final byte[] content = content(2 * FIVE_MB + 1024);
+    final int[][] parts = {{0, FIVE_MB - 1}, {FIVE_MB, 2 * FIVE_MB - 1}, {2 * FIVE_MB, content.length - 1}};
+    final MessageDigest partDigests = MessageDigest.getInstance("MD5");
+    for (int[] part : parts) {
+      partDigests.update(md5(Arrays.copyOfRange(content, part[0], part[1] + 1)));
+    }
+    final String eTag = BinaryUtils.toHex(partDigests.digest()) + "-" + parts.length;
+    when(myS3Client.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenReturn(metadata(content.length, eTag, parts.length));
+    final AtomicInteger secondPartAttempts = new AtomicInteger();
+    when(myS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+      final GetObjectRequest request = invocation.getArgument(0);
+      assertEquals(eTag, request.getMatchingETagConstraints().get(0));
+      if (request.getPartNumber() == 2 && secondPartAttempts.getAndIncrement() == 0) {
+        final AmazonS3Exception exception = new AmazonS3Exception("Please reduce your request rate.");
+        exception.setStatusCode(503);
+        throw exception;
+      }
+      final int[] part = parts[request.getPartNumber() - 1];
+      return object(content, part[0], part[1], content.length);
+    });
+    final File target = new File(createTempDir(), "target");
+
+    new S3RangedDownloader(myS3Client, myExecutor, configuration().withMinimumUploadPartSize((long)FIVE_MB)).download("bucket", "key", target);
+
+    assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+    assertEquals(2, secondPartAttempts.get());
+    Mockito.verify(myS3Client, times(4)).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void keeps_target_when_checksum_does_not_match() throws Exception {
+    final byte[] content = content(FIVE_MB);
+    when(myS3Client.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenReturn(metadata(content.length, BinaryUtils.toHex(md5(new byte[1])), null));
+    when(myS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> object(content, 0, content.length - 1, content.length));
+    final File target = new File(createTempDir(), "target");
+    Files.write(target.toPath(), new byte[]{42});
+
+    try {
+      new S3RangedDownloader(myS3Client, myExecutor, configuration().withMinimumUploadPartSize((long)FIVE_MB)).download("bucket", "key", target);
+      fail("Download should fail");
+    } catch (Exception expected) {
+    }
+
+    assertTrue(Arrays.equals(new byte[]{42}, Files.readAllBytes(target.toPath())));
+    assertFalse(new File(target.getParentFile(), "target.download").exists());
+  }
+
+  @Test
+  public void fails_when_object_is_modified() throws Exception {
+    final byte[] content = content(FIVE_MB);
+    when(myS3Client.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenReturn(metadata(content.length, BinaryUtils.toHex(md5(content)), null));
+    // a null object means the ETag constraint wasn't met
+    when(myS3Client.getObject(any(GetObjectRequest.class))).thenReturn(null);
+    final File target = new File(createTempDir(), "target");
+
+    try {
+      new S3RangedDownloader(myS3Client, myExecutor, configuration().withMinimumUploadPartSize((long)FIVE_MB)).download("bucket", "key", target);
+      fail("Download should fail");
+    } catch (Exception expected) {
+    }
+
+    assertFalse(target.exists());
+    Mockito.verify(myS3Client, times(1)).getObject(any(GetObjectRequest.class));
+  }
+
+  @NotNull
+  private static ObjectMetadata metadata(final long length, @NotNull final String eTag, final Integer partCount) {
+    final ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(partCount == null ? length : FIVE_MB);
+    metadata.setHeader(Headers.ETAG, eTag);
+    if (partCount != null) {
+      metadata.setHeader(Headers.CONTENT_RANGE, "bytes 0-" + (FIVE_MB - 1) + "/" + length);
+      metadata.setHeader(Headers.S3_PARTS_COUNT, partCount);
+    }
+    return metadata;
+  }
+
+  @NotNull
+  private static S3Object object(@NotNull final byte[] content, final int start, final int end, final int length) {
+    final S3Object object = new S3Object();
+    final ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(end - start + 1);
+    metadata.setHeader(Headers.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+    object.setObjectMetadata(metadata);
+    object.setObjectContent(new ByteArrayInputStream(content, start, end - start + 1));
+    return object;
+  }
+
+  @NotNull
+  private static byte[] content(final int length) {
+    final byte[] content = new byte[length];
+    new Random(42).nextBytes(content);
+    return content;
+  }
+
+  @NotNull
+  private static byte[] md5(@NotNull final byte[] content) throws Exception {
+    return MessageDigest.getInstance("MD5").digest(content);
+  }
+}
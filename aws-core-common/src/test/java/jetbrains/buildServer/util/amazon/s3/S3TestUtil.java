@@ -0,0 +1,54 @@
+package jetbrains.buildServer.util.amazon.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+
+import static org.mockito.ArgumentMatchers.any;
+
+/**
+ * Fixtures shared by the tests of the transfers
+ */
+final class S3TestUtil {
+  private S3TestUtil() {
+  }
+
+  /**
+   * @return configuration retrying twice without delays
+   */
+  @NotNull
+  static S3Util.S3AdvancedConfiguration configuration() {
+    return S3Util.S3AdvancedConfiguration.defaultConfiguration().withRetryDelayMs(0).withNumberOfRetries(2);
+  }
+
+  /**
+   * @param nThreads size of the executor of the test
+   */
+  @NotNull
+  static S3Util.S3AdvancedConfiguration configuration(final int nThreads) {
+    return configuration().withNumberOfThreads(nThreads);
+  }
+
+  /**
+   * Stubs {@link AmazonS3#uploadPart}, also over an earlier stubbing: {@code when()} would call the earlier answer with a null request
+   */
+  static void stubUploadPart(@NotNull final AmazonS3 s3Client, @NotNull final UploadPartAnswer answer) {
+    Mockito.doAnswer(invocation -> answer.answer(invocation.getArgument(0))).when(s3Client).uploadPart(any());
+  }
+
+  @NotNull
+  static UploadPartResult partResult(final int partNumber) {
+    final UploadPartResult result = new UploadPartResult();
+    result.setPartNumber(partNumber);
+    result.setETag("etag" + partNumber);
+    return result;
+  }
+
+  @FunctionalInterface
+  interface UploadPartAnswer {
+    UploadPartResult answer(@NotNull UploadPartRequest request) throws Throwable;
+  }
+}
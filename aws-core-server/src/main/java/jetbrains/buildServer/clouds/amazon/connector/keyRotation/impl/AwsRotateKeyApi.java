@@ -18,6 +18,7 @@ import jetbrains.buildServer.Used;
 import jetbrains.buildServer.clouds.amazon.connector.errors.KeyRotationException;
 import jetbrains.buildServer.clouds.amazon.connector.keyRotation.RotateKeyApi;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ClientConfigurationBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ClientRequestHandlers;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.log.Loggers;
@@ -60,14 +61,12 @@ public class AwsRotateKeyApi implements RotateKeyApi {
 
     String connectionRegion = awsConnectionDescriptor.getParameters().get(AwsCloudConnectorConstants.REGION_NAME_PARAM);
 
-    myIam = AmazonIdentityManagementClientBuilder
-      .standard()
+    myIam = ClientRequestHandlers.withStandardHandlers(AmazonIdentityManagementClientBuilder.standard(), "iam")
       .withRegion(Regions.fromName(connectionRegion))
       .withClientConfiguration(ClientConfigurationBuilder.createClientConfigurationEx("iam"))
       .build();
 
-    mySts = AWSSecurityTokenServiceClientBuilder
-      .standard()
+    mySts = ClientRequestHandlers.withStandardHandlers(AWSSecurityTokenServiceClientBuilder.standard(), "sts")
       .withRegion(Regions.fromName(connectionRegion))
       .withClientConfiguration(ClientConfigurationBuilder.createClientConfigurationEx("sts"))
       .build();
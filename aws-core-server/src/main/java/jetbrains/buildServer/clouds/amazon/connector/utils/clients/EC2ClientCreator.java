@@ -17,8 +17,10 @@ public class EC2ClientCreator {
   @NotNull
   public AmazonEC2 createClient(@NotNull AwsConnectionBean connection) throws ConnectionCredentialsException {
     final AwsCredentialsData credentialsData = connection.getAwsCredentialsHolder().getAwsCredentials();
+    final String suffix = "ec2Client_" + connection.getConnectionId();
     final AmazonEC2ClientBuilder builder = AmazonEC2ClientBuilder.standard()
-                                                                 .withClientConfiguration(AWSCommonParams.createClientConfigurationEx("ec2Client_" + connection.getConnectionId()));
+                                                                 .withClientConfiguration(AWSCommonParams.createClientConfigurationEx(suffix));
+    ClientRequestHandlers.withStandardHandlers(builder, suffix);
 
     final String accessKeyId = credentialsData.getAccessKeyId();
     final String secretAccessKey = credentialsData.getSecretAccessKey();
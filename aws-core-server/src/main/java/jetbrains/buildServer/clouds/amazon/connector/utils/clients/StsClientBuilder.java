@@ -34,5 +34,6 @@ public class StsClientBuilder {
 
     stsBuilder.withEndpointConfiguration(endpointConfiguration);
     stsBuilder.withClientConfiguration(ClientConfigurationBuilder.createClientConfigurationEx("sts"));
+    ClientRequestHandlers.withStandardHandlers(stsBuilder, "sts");
   }
 }
@@ -7,6 +7,7 @@ import com.amazonaws.regions.Regions;
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClientBuilder;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ClientConfigurationBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ClientRequestHandlers;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.IamClientBuilder;
 import org.jetbrains.annotations.NotNull;
 
@@ -14,8 +15,7 @@ public class IamClientBuilderImpl implements IamClientBuilder {
   @NotNull
   @Override
   public AmazonIdentityManagement createIamClient(@NotNull String connectionRegion, @NotNull AWSCredentialsProvider credentials) {
-    return AmazonIdentityManagementClientBuilder
-      .standard()
+    return ClientRequestHandlers.withStandardHandlers(AmazonIdentityManagementClientBuilder.standard(), "iam")
       .withRegion(Regions.fromName(connectionRegion))
       .withCredentials(credentials)
       .withClientConfiguration(ClientConfigurationBuilder.createClientConfigurationEx("iam"))